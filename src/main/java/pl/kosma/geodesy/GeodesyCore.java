@@ -1,7 +1,11 @@
 package pl.kosma.geodesy;
 
 import com.google.common.collect.Sets;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
 import it.unimi.dsi.fastutil.Pair;
+import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.network.chat.Component;
@@ -20,7 +24,6 @@ import net.minecraft.world.level.block.state.properties.*;
 import net.minecraft.world.level.levelgen.structure.BoundingBox;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jspecify.annotations.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pl.kosma.geodesy.solver.*;
@@ -31,7 +34,10 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static net.minecraft.world.level.block.Block.UPDATE_CLIENTS;
@@ -49,9 +55,15 @@ public class GeodesyCore {
     static final Set<Block> PRESERVE_BLOCKS = Sets.newHashSet(Blocks.BUDDING_AMETHYST, Blocks.COMMAND_BLOCK);
     static final Set<Block> STICKY_BLOCKS = Sets.newHashSet(Blocks.SLIME_BLOCK, Blocks.HONEY_BLOCK);
     static final Set<Block> PRESERVE_WALL_BLOCKS = Sets.newHashSet(Blocks.SLIME_BLOCK, Blocks.HONEY_BLOCK, Blocks.OBSIDIAN);
+    // Layouts found while a solve is still running are put in the world at most once per this many ticks.
+    static final int INCUMBENT_APPLY_INTERVAL_TICKS = 20;
+    static final long MILLIS_PER_TICK = 50;
 
     static final Logger LOGGER = LoggerFactory.getLogger("GeodesyCore");
 
+    // Results of earlier solves, shared by all players and kept across restarts.
+    static final SolutionCache SOLUTION_CACHE = new SolutionCache(FabricLoader.getInstance().getConfigDir().resolve("geodesy").resolve("solutions.bin"));
+
     private ServerLevel world;
     @Nullable
     private IterableBoundingBox geode;
@@ -66,6 +78,11 @@ public class GeodesyCore {
     private Direction @Nullable [] lastProjectedDirections;
     // Used to makes sure another solve doesn't start while one is already running.
     private CompletableFuture<Void> solveFuture;
+    // Stops the running solve. Only the solve holding the current token may change the world.
+    @Nullable
+    private CancellationToken solveCancellation;
+    // The settings of the last /geodesy solve, so /geodesy solve resolve solves with the same ones.
+    private SolverConfig lastSolveConfig = SolverConfig.defaults();
 
     public void geodesyGeodesy() {
         sendCommandFeedback("Welcome to Geodesy!");
@@ -91,6 +108,8 @@ public class GeodesyCore {
     void geodesyArea(ServerLevel world, BlockPos startPos, BlockPos endPos) {
         sendCommandFeedback("---");
 
+        abandonSolve();
+
         this.world = world;
 
         // Detect the geode area.
@@ -133,6 +152,8 @@ public class GeodesyCore {
             return;
         }
 
+        abandonSolve();
+
         // Store the directions for later use by /geodesy solve.
         this.lastProjectedDirections = directions;
 
@@ -195,31 +216,119 @@ public class GeodesyCore {
         geodesySolve(SolverConfig.defaults());
     }
 
-    // Solve for optimal slime/honey block placement. Each face is solved in parallel.
+    // Solve for optimal slime/honey block placement. The timeout is shared by all faces, see FaceScheduler.
     void geodesySolve(SolverConfig config) {
         sendCommandFeedback("---");
+        if (!canStartSolve()) return;
+        lastSolveConfig = config;
+
+        // Clear any previous solver results (sticky blocks and mob heads)
+        for (Direction direction : lastProjectedDirections) {
+            clearSolverLayers(geode, direction);
+        }
+
+        List<FaceGrid> faceGrids = extractFaceGrids();
+        if (faceGrids.isEmpty()) return;
+
+        // Faces that are rotations or mirror images of each other are solved once.
+        List<List<FaceSymmetry.Canonical>> groups = new ArrayList<>();
+        for (FaceGrid faceGrid : faceGrids) {
+            FaceSymmetry.Canonical canonical = FaceSymmetry.canonicalize(faceGrid);
+            groups.stream()
+                    .filter(group -> group.getFirst().grid().sameCells(canonical.grid()))
+                    .findFirst()
+                    .ifPresentOrElse(group -> group.add(canonical), () -> groups.add(new ArrayList<>(List.of(canonical))));
+        }
+        if (groups.size() < faceGrids.size()) {
+            LOGGER.info("{} faces are symmetric images of each other, solving {}", faceGrids.size(), groups.size());
+        }
 
         MinecraftServer server = world.getServer();
+        IterableBoundingBox geode = this.geode;
+        startSolve(config, groups.stream()
+                .map(group -> new FaceScheduler.Job(group.getFirst().grid(), faceConfig -> solveFaces(server, geode, faceConfig, group)))
+                .toList());
+    }
+
+    /*
+     * Solves the faces again, keeping the islands already placed in front of them (by an earlier solve or by hand).
+     * With a dirty box, the islands with a cell in it are dropped, and new islands are only placed on the cells in it.
+     * Without one, every placed island is kept, and the rest of the harvest is solved wherever it is.
+     * Placed islands that can't be kept (see PlacedIslands) are removed, and only solved again inside the box.
+     * The settings are those of the last /geodesy solve, but only the backtracking solver can keep islands,
+     * so it is used whatever algorithm that solve picked.
+     */
+    void geodesyResolve(@Nullable BoundingBox dirty) {
+        geodesyResolve(lastSolveConfig, dirty);
+    }
+
+    private void geodesyResolve(SolverConfig config, @Nullable BoundingBox dirty) {
+        sendCommandFeedback("---");
+        if (!canStartSolve()) return;
+
+        // Read the placed islands before anything changes them, on the main thread.
+        List<FaceGrid> faceGrids = extractFaceGrids();
+        if (faceGrids.isEmpty()) return;
+
+        MinecraftServer server = world.getServer();
+        IterableBoundingBox geode = this.geode;
+        List<FaceScheduler.Job> jobs = new ArrayList<>(faceGrids.size());
+        for (FaceGrid faceGrid : faceGrids) {
+            Direction direction = faceGrid.direction();
+            List<AbstractFaceSolver.Island> fixedIslands = new ArrayList<>();
+            IntSet searchArea = null;
+            if (dirty != null) {
+                searchArea = new IntOpenHashSet();
+                for (int x = 0; x < faceGrid.width(); x++) {
+                    for (int y = 0; y < faceGrid.height(); y++) {
+                        if (isInFront(dirty, gridToWallPos(geode, direction, x, y), direction)) {
+                            searchArea.add(AbstractFaceSolver.cellKey(x, y));
+                        }
+                    }
+                }
+            }
+            for (AbstractFaceSolver.Island island : readPlacedIslands(geode, faceGrid)) {
+                IntSet area = searchArea;
+                if (area == null || island.cells().intStream().noneMatch(area::contains)) {
+                    fixedIslands.add(island);
+                }
+            }
+            LOGGER.info("{}: keeping {} placed islands, searching {} cells", direction, fixedIslands.size(),
+                    searchArea == null ? "all" : String.valueOf(searchArea.size()));
+
+            // Mirror images would have different islands placed, so every face is solved on its own.
+            FaceSymmetry.Canonical face = new FaceSymmetry.Canonical(faceGrid, faceGrid, FaceSymmetry.IDENTITY);
+            IntSet faceSearchArea = searchArea;
+            jobs.add(new FaceScheduler.Job(faceGrid, faceConfig -> solveFaces(server, geode, faceConfig.toBuilder()
+                    .fixedIslands(fixedIslands)
+                    .searchArea(faceSearchArea)
+                    .build(), List.of(face))));
+        }
+        startSolve(config.toBuilder().algorithm(SolverConfig.Algorithm.BACKTRACKING).build(), jobs);
+    }
 
-        // Validate that we have the required state.
+    // Validates that a solve can start, and tells the player why not.
+    private boolean canStartSolve() {
         if (geode == null) {
             sendCommandFeedback("No geode detected. Run /geodesy area first.");
-            return;
+            return false;
         }
         if (lastProjectedDirections == null || lastProjectedDirections.length == 0) {
             sendCommandFeedback("No projection found. Run /geodesy project first.");
-            return;
+            return false;
         }
-
-        // Clear any previous solver results (sticky blocks and mob heads)
-        for (Direction direction : lastProjectedDirections) {
-            clearSolverLayers(geode, direction);
+        if (solveFuture != null && !solveFuture.isDone()) {
+            sendCommandFeedback("Solve already in progress. Wait for it to finish, or stop it with /geodesy solve cancel.");
+            return false;
         }
+        return true;
+    }
 
+    // Extracts the grids of all projected faces (must be done on main thread for world access).
+    private List<FaceGrid> extractFaceGrids() {
         String directionNames = Arrays.stream(lastProjectedDirections).map(Direction::toString).collect(Collectors.joining(", "));
-        sendCommandFeedback("Solving %d face(s) in parallel: %s...", lastProjectedDirections.length, directionNames);
+        sendCommandFeedback("Solving %d face(s), easiest first: %s...", lastProjectedDirections.length, directionNames);
 
-        // Extract all face grids first (must be done on main thread for world access)
         List<FaceGrid> faceGrids = new ArrayList<>(6);
         for (Direction direction : lastProjectedDirections) {
             FaceGrid faceGrid = extractFaceGrid(geode, direction);
@@ -232,48 +341,196 @@ public class GeodesyCore {
 
         if (faceGrids.isEmpty()) {
             sendCommandFeedback("No faces to solve.");
-            return;
         }
+        return faceGrids;
+    }
 
-        if (solveFuture != null && !solveFuture.isDone()) {
-            sendCommandFeedback("Solve already in progress. Please wait for it to finish before starting another.");
+    // Runs the jobs in the background, each with its share of the timeout and the cores, see FaceScheduler.
+    private void startSolve(SolverConfig config, List<FaceScheduler.Job> jobs) {
+        MinecraftServer server = world.getServer();
+        CancellationToken cancellation = new CancellationToken();
+        solveCancellation = cancellation;
+        SolverConfig solveConfig = config.toBuilder()
+                .parallelism(Runtime.getRuntime().availableProcessors())
+                .cancellation(cancellation)
+                .build();
+
+        solveFuture = CompletableFuture.runAsync(() -> FaceScheduler.run(jobs, solveConfig))
+                .exceptionally(e -> {
+                    LOGGER.error("Failed to schedule solve", e);
+                    sendCommandFeedback("Failed to solve - %s", e.getMessage());
+                    return null;
+                })
+                .thenRun(SOLUTION_CACHE::save)
+                .thenRun(() -> server.execute(() -> {
+                    if (cancellation != solveCancellation) return;
+                    sendCommandFeedback(cancellation.isCancelled() ? "Solve cancelled, keeping the best layouts found so far. Run /geodesy assemble when ready." : "Solve complete. Run /geodesy assemble when ready.");
+                }));
+    }
+
+    // Stops the running solve. The best layouts it found so far are still applied.
+    void geodesySolveCancel() {
+        sendCommandFeedback("---");
+        if (solveFuture == null || solveFuture.isDone() || solveCancellation == null) {
+            sendCommandFeedback("No solve in progress.");
             return;
         }
+        solveCancellation.cancel();
+        sendCommandFeedback("Cancelling solve...");
+    }
 
-        // Submit all solve tasks in parallel
-        @SuppressWarnings("rawtypes")
-        CompletableFuture[] futures = faceGrids.stream()
-                .map(faceGrid -> solveFace(server, geode, config, faceGrid))
-                .toArray(CompletableFuture[]::new);
-
-        solveFuture = CompletableFuture.allOf(futures)
-                .thenRun(() -> server.execute(() -> sendCommandFeedback("Solve complete. Run /geodesy assemble when ready.")));
+    // Stops the running solve and drops its results, e.g. because the area they belong to is about to change.
+    void abandonSolve() {
+        if (solveCancellation != null) {
+            solveCancellation.cancel();
+            solveCancellation = null;
+        }
     }
 
-    private @NonNull CompletableFuture<Void> solveFace(@NotNull MinecraftServer server, @NotNull IterableBoundingBox geode, SolverConfig config, FaceGrid faceGrid) {
-        // Create a new solver instance for each face (thread safety)
-        return CompletableFuture.supplyAsync(() -> new BacktrackingFaceSolver(faceGrid, config).solve(faceGrid, config))
-                .exceptionally(e -> {
-                    LOGGER.error("Failed to solve face {}", faceGrid.direction(), e);
-                    sendCommandFeedback("  %s: Failed to solve - %s", faceGrid.direction(), e.getMessage());
-                    return SolverResult.empty(faceGrid);
+    // Solves the shared canonical grid of the faces once, and hands the result for each of them to the server thread.
+    private void solveFaces(@NotNull MinecraftServer server, @NotNull IterableBoundingBox geode, SolverConfig config, List<FaceSymmetry.Canonical> faces) {
+        // The cache, the kernel and the independent parts don't know about fixed islands, so re-solves go straight to the solver.
+        boolean resolve = !config.getFixedIslands().isEmpty() || config.getSearchArea() != null;
+        // Create a new solver instance for each face and each independent part of it (thread safety)
+        FaceSolver solver = resolve ? (grid, gridConfig) -> new BacktrackingFaceSolver(grid, gridConfig).solve(grid, gridConfig)
+                : new DecomposingFaceSolver(config.getAlgorithm().solver());
+        FaceGrid faceGrid = faces.getFirst().grid();
+        CancellationToken cancellation = config.getCancellation();
+        List<LiveLayout> liveLayouts = faces.stream()
+                .map(face -> new LiveLayout(server, geode, face.original().direction(), cancellation))
+                .toList();
+        SolverConfig liveConfig = config.toBuilder()
+                .incumbentListener((incumbent, score) -> {
+                    for (int i = 0; i < faces.size(); i++) {
+                        liveLayouts.get(i).onIncumbent(faces.get(i).restore(incumbent), score);
+                    }
                 })
-                .thenAccept(result -> server.execute(() -> {
-                    // Apply the solution to the world (must be on main thread)
-                    applySolverResult(geode, result.direction(), result);
-
-                    // Report results
-                    sendCommandFeedback("  %s: %.0f%% coverage (%d/%d), %d flying machines, %d blocks, %dms%s",
-                            result.direction(),
-                            result.getCoveragePercent(),
-                            result.harvestCovered(),
-                            result.totalHarvest(),
-                            result.islands().size(),
-                            result.getBlockCount(),
-                            result.solveTimeMs(),
-                            result.timedOut() ? " (timed out)" : ""
-                    );
-                }));
+                .build();
+        SolverResult solved;
+        IntSet unharvestable = IntSets.EMPTY_SET;
+        try {
+            // A face solved before with the same settings and at least this timeout is reused as it is.
+            solved = resolve ? null : SOLUTION_CACHE.get(faceGrid, config);
+            if (resolve) {
+                solved = solver.solve(faceGrid, liveConfig);
+            } else if (solved == null) {
+                // Islands an optimal layout can always use, and cells no island can use, are settled before the search
+                FaceKernel kernel = FaceKernel.reduce(faceGrid, config);
+                unharvestable = kernel.unharvestable();
+                if (!unharvestable.isEmpty()) {
+                    LOGGER.info("{}: harvest cells no island can cover: {}", faceGrid.direction(), unharvestable.intStream()
+                            .mapToObj(key -> AbstractFaceSolver.keyRow(key) + "," + AbstractFaceSolver.keyCol(key))
+                            .collect(Collectors.joining(" ")));
+                }
+                solved = kernel.solve(solver, liveConfig);
+                if (!cancellation.isCancelled()) {
+                    SOLUTION_CACHE.put(faceGrid, config, solved);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to solve face {}", faceGrid.direction(), e);
+            sendCommandFeedback("  %s: Failed to solve - %s", faceGrid.direction(), e.getMessage());
+            solved = SolverResult.empty(faceGrid);
+        }
+
+        SolverResult canonicalResult = solved;
+        int unharvestableCount = unharvestable.size();
+        server.execute(() -> {
+            if (cancellation != solveCancellation) return;
+
+            for (int i = 0; i < faces.size(); i++) {
+                SolverResult result = faces.get(i).restore(canonicalResult);
+
+                // Apply the solution to the world (must be on main thread), replacing any intermediate layout
+                liveLayouts.get(i).finish();
+                clearSolverLayers(geode, result.direction());
+                applySolverResult(geode, result.direction(), result);
+
+                // Report results
+                sendCommandFeedback("  %s: %.0f%% coverage (%d/%d), %d flying machines, %d blocks, %dms, %s%s",
+                        result.direction(),
+                        result.getCoveragePercent(),
+                        result.harvestCovered(),
+                        result.totalHarvest(),
+                        result.islands().size(),
+                        result.getBlockCount(),
+                        result.solveTimeMs(),
+                        gapString(result, config.getCostThreshold()),
+                        result.cached() ? " (cached)" : cancellation.isCancelled() ? " (cancelled)" : result.stopReason() == SolverResult.StopReason.WORK_BUDGET ? " (out of work budget)"
+                                : result.stopReason() == SolverResult.StopReason.TRUNCATED ? " (beam search not exhaustive)"
+                                : result.timedOut() ? " (timed out)" : ""
+                );
+                if (unharvestableCount > 0) {
+                    sendCommandFeedback("  %s: %d harvest blocks can't be covered by any flying machine", result.direction(), unharvestableCount);
+                }
+            }
+        });
+    }
+
+    // How far from optimal a layout may be, see SolverResult.gap. Without every island listed, only the listed ones are known.
+    private static String gapString(SolverResult result, double costThreshold) {
+        double gap = result.gap(costThreshold);
+        if (Double.isInfinite(gap)) return "gap unknown";
+        if (!result.shapesComplete()) {
+            return gap == 0 ? "best found" : String.format("within %.1f%% of the listed islands", 100 * gap);
+        }
+        if (gap == 0) return "optimal";
+        return String.format("at most %.1f%% from optimal", 100 * gap);
+    }
+
+    /*
+     * Shows the newest layout of a running solve in the world, at most once per INCUMBENT_APPLY_INTERVAL_TICKS.
+     * Solver threads only hand the layout over; the world is changed on the server thread.
+     */
+    private final class LiveLayout implements IncumbentListener {
+        private final MinecraftServer server;
+        private final IterableBoundingBox geode;
+        private final Direction direction;
+        private final CancellationToken cancellation;
+        private final AtomicReference<SolverResult> pending = new AtomicReference<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Server thread only
+        private int lastAppliedTick = -INCUMBENT_APPLY_INTERVAL_TICKS;
+        private boolean finished;
+
+        private LiveLayout(MinecraftServer server, IterableBoundingBox geode, Direction direction, CancellationToken cancellation) {
+            this.server = server;
+            this.geode = geode;
+            this.direction = direction;
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void onIncumbent(SolverResult incumbent, double score) {
+            pending.set(incumbent);
+            if (scheduled.compareAndSet(false, true)) {
+                server.execute(this::applyPending);
+            }
+        }
+
+        private void applyPending() {
+            if (finished || cancellation != solveCancellation) return;
+
+            int wait = lastAppliedTick + INCUMBENT_APPLY_INTERVAL_TICKS - server.getTickCount();
+            if (wait > 0) {
+                CompletableFuture.delayedExecutor(wait * MILLIS_PER_TICK, TimeUnit.MILLISECONDS, server).execute(this::applyPending);
+                return;
+            }
+
+            scheduled.set(false);
+            SolverResult incumbent = pending.getAndSet(null);
+            if (incumbent == null) return;
+
+            LOGGER.debug("{}: showing intermediate layout, {}/{} covered after {}ms", direction, incumbent.harvestCovered(), incumbent.totalHarvest(), incumbent.solveTimeMs());
+            lastAppliedTick = server.getTickCount();
+            clearSolverLayers(geode, direction);
+            applySolverResult(geode, direction, incumbent);
+        }
+
+        // Called on the server thread right before the final result is applied.
+        private void finish() {
+            finished = true;
+        }
     }
 
     // Clears sticky blocks and mob heads for a face. Allows re-running /geodesy solve.
@@ -321,6 +578,55 @@ public class GeodesyCore {
         }
     }
 
+    // Reads the islands placed in front of a face back from the sticky blocks (wall+1) and mob heads (wall+2).
+    private List<AbstractFaceSolver.Island> readPlacedIslands(@NotNull IterableBoundingBox geode, FaceGrid faceGrid) {
+        Direction direction = faceGrid.direction();
+        byte[][] materials = new byte[faceGrid.width()][faceGrid.height()];
+        byte[][] markers = new byte[faceGrid.width()][faceGrid.height()];
+        BlockPos.MutableBlockPos mutablePos = new BlockPos.MutableBlockPos();
+        for (int x = 0; x < faceGrid.width(); x++) {
+            for (int y = 0; y < faceGrid.height(); y++) {
+                setMutableToWallPos(geode, mutablePos, direction, x, y);
+
+                mutablePos.move(direction, 1);
+                Block stickyBlock = world.getBlockState(mutablePos).getBlock();
+                if (stickyBlock == Blocks.SLIME_BLOCK) {
+                    materials[x][y] = AbstractFaceSolver.SLIME;
+                } else if (stickyBlock == Blocks.HONEY_BLOCK) {
+                    materials[x][y] = AbstractFaceSolver.HONEY;
+                }
+
+                mutablePos.move(direction, 1);
+                Block headBlock = world.getBlockState(mutablePos).getBlock();
+                if (MARKERS_MACHINE.contains(headBlock)) {
+                    markers[x][y] = PlacedIslands.MARKER_STEM;
+                } else if (MARKERS_BLOCKER.contains(headBlock)) {
+                    markers[x][y] = PlacedIslands.MARKER_STOPPER;
+                }
+            }
+        }
+        return PlacedIslands.find(materials, markers);
+    }
+
+    // Whether the box covers the position, ignoring the axis the face looks along.
+    private static boolean isInFront(BoundingBox box, BlockPos pos, Direction direction) {
+        return switch (direction.getAxis()) {
+            case X -> pos.getY() >= box.minY() && pos.getY() <= box.maxY() && pos.getZ() >= box.minZ() && pos.getZ() <= box.maxZ();
+            case Y -> pos.getX() >= box.minX() && pos.getX() <= box.maxX() && pos.getZ() >= box.minZ() && pos.getZ() <= box.maxZ();
+            case Z -> pos.getX() >= box.minX() && pos.getX() <= box.maxX() && pos.getY() >= box.minY() && pos.getY() <= box.maxY();
+        };
+    }
+
+    // The faces of the last /geodesy project, as the solver sees them.
+    List<FaceGrid> projectedFaceGrids() {
+        List<FaceGrid> faceGrids = new ArrayList<>(6);
+        for (Direction direction : lastProjectedDirections) {
+            FaceGrid faceGrid = extractFaceGrid(geode, direction);
+            if (faceGrid != null) faceGrids.add(faceGrid);
+        }
+        return faceGrids;
+    }
+
     // Extracts a FaceGrid from the world. Reads wall blocks placed by /geodesy project.
     @Nullable
     private FaceGrid extractFaceGrid(@NotNull IterableBoundingBox geode, Direction direction) {
@@ -2,27 +2,38 @@ package pl.kosma.geodesy;
 
 import com.mojang.brigadier.arguments.DoubleArgumentType;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.ArgumentTypeRegistry;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
+import net.minecraft.commands.SharedSuggestionProvider;
 import net.minecraft.commands.arguments.coordinates.BlockPosArgument;
 import net.minecraft.commands.synchronization.SingletonArgumentInfo;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
+import net.minecraft.network.chat.Component;
 import net.minecraft.resources.Identifier;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.levelgen.structure.BoundingBox;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pl.kosma.geodesy.solver.PolyominoLibrary;
 import pl.kosma.geodesy.solver.SolverConfig;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static com.mojang.brigadier.Command.SINGLE_SUCCESS;
 import static net.minecraft.commands.Commands.argument;
@@ -34,6 +45,8 @@ public class GeodesyFabricMod implements ModInitializer {
 
     static private final Map<UUID, GeodesyCore> perPlayerCore = new HashMap<>();
 
+    private static final SimpleCommandExceptionType UNKNOWN_ALGORITHM = new SimpleCommandExceptionType(Component.literal("Unknown solver algorithm"));
+
     private GeodesyCore getPerPlayerCore(@Nullable ServerPlayer player) {
         UUID uuid = player != null ? player.getUUID() : null;
         if (!perPlayerCore.containsKey(uuid)) {
@@ -46,6 +59,17 @@ public class GeodesyFabricMod implements ModInitializer {
 
     @Override
     public void onInitialize() {
+        // Build the solver's shape library in the background, it takes about a second.
+        CompletableFuture.runAsync(PolyominoLibrary::preload);
+
+        // Nobody is left to see a solve through once its player is gone.
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+            GeodesyCore core = perPlayerCore.get(handler.getPlayer().getUUID());
+            if (core != null) {
+                core.abandonSolve();
+            }
+        });
+
         ArgumentTypeRegistry.registerArgumentType(Identifier.fromNamespaceAndPath("geodesy", "direction"), DirectionArgumentType.class, SingletonArgumentInfo.contextFree(DirectionArgumentType::direction));
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> {
             dispatcher.register(literal("geodesy")
@@ -148,8 +172,88 @@ public class GeodesyFabricMod implements ModInitializer {
                             .executes(context -> geodesyProjectCommand(context,1)))
                         .executes(context -> geodesyProjectCommand(context,0)))
                     .then(literal("solve")
+                        .then(literal("cancel").executes(context -> {
+                            try {
+                                GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
+                                context.getSource().getServer().execute(core::geodesySolveCancel);
+                                return SINGLE_SUCCESS;
+                            }
+                            catch (Exception e) {
+                                LOGGER.error("solve cancel", e);
+                                throw (e);
+                            }
+                        }))
+                        .then(literal("resolve")
+                            .then(argument("from", BlockPosArgument.blockPos())
+                                .then(argument("to", BlockPosArgument.blockPos())
+                                    .executes(context -> {
+                                        try {
+                                            GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
+                                            BlockPos from = BlockPosArgument.getBlockPos(context, "from");
+                                            BlockPos to = BlockPosArgument.getBlockPos(context, "to");
+                                            BoundingBox dirty = BoundingBox.fromCorners(from, to);
+                                            context.getSource().getServer().execute(() -> core.geodesyResolve(dirty));
+                                            return SINGLE_SUCCESS;
+                                        }
+                                        catch (Exception e) {
+                                            LOGGER.error("solve resolve", e);
+                                            throw (e);
+                                        }
+                                    })))
+                            .executes(context -> {
+                                try {
+                                    GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
+                                    context.getSource().getServer().execute(() -> core.geodesyResolve(null));
+                                    return SINGLE_SUCCESS;
+                                }
+                                catch (Exception e) {
+                                    LOGGER.error("solve resolve", e);
+                                    throw (e);
+                                }
+                            }))
                         .then(argument("timeout", IntegerArgumentType.integer(1, 300))
                             .then(argument("cost", DoubleArgumentType.doubleArg(1.0, 12.0))
+                                .then(argument("algorithm", StringArgumentType.word())
+                                    .suggests((context, builder) -> SharedSuggestionProvider.suggest(
+                                            Arrays.stream(SolverConfig.Algorithm.values()).map(algorithm -> algorithm.name().toLowerCase(Locale.ROOT)), builder))
+                                    .then(argument("restarts", IntegerArgumentType.integer(0, 1_000_000))
+                                        .executes(context -> {
+                                            try {
+                                                GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
+                                                int timeout = IntegerArgumentType.getInteger(context, "timeout");
+                                                double cost = DoubleArgumentType.getDouble(context, "cost");
+                                                SolverConfig config = SolverConfig.builder()
+                                                        .timeoutMs(timeout * 1000L)
+                                                        .costThreshold(cost)
+                                                        .algorithm(getAlgorithm(context))
+                                                        .restartUnit(IntegerArgumentType.getInteger(context, "restarts"))
+                                                        .build();
+                                                context.getSource().getServer().execute(() -> core.geodesySolve(config));
+                                                return SINGLE_SUCCESS;
+                                            }
+                                            catch (Exception e) {
+                                                LOGGER.error("solve", e);
+                                                throw (e);
+                                            }
+                                        }))
+                                    .executes(context -> {
+                                        try {
+                                            GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
+                                            int timeout = IntegerArgumentType.getInteger(context, "timeout");
+                                            double cost = DoubleArgumentType.getDouble(context, "cost");
+                                            SolverConfig config = SolverConfig.builder()
+                                                    .timeoutMs(timeout * 1000L)
+                                                    .costThreshold(cost)
+                                                    .algorithm(getAlgorithm(context))
+                                                    .build();
+                                            context.getSource().getServer().execute(() -> core.geodesySolve(config));
+                                            return SINGLE_SUCCESS;
+                                        }
+                                        catch (Exception e) {
+                                            LOGGER.error("solve", e);
+                                            throw (e);
+                                        }
+                                    }))
                                 .executes(context -> {
                                     try {
                                         GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
@@ -219,6 +323,16 @@ public class GeodesyFabricMod implements ModInitializer {
         });
     }
 
+    private static SolverConfig.Algorithm getAlgorithm(CommandContext<CommandSourceStack> context) throws CommandSyntaxException {
+        String name = StringArgumentType.getString(context, "algorithm");
+        for (SolverConfig.Algorithm algorithm : SolverConfig.Algorithm.values()) {
+            if (algorithm.name().equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        throw UNKNOWN_ALGORITHM.create();
+    }
+
     private int geodesyProjectCommand(CommandContext<CommandSourceStack> context, int argumentIndex) {
         try {
             GeodesyCore core = getPerPlayerCore(context.getSource().getPlayer());
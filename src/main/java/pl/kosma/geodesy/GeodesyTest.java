@@ -4,9 +4,14 @@ import net.fabricmc.fabric.api.gametest.v1.GameTest;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
 import net.minecraft.core.BlockPos;
+import net.minecraft.core.Direction;
 import net.minecraft.gametest.framework.GameTestHelper;
+import net.minecraft.network.chat.Component;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.level.block.Blocks;
+import pl.kosma.geodesy.solver.FaceGrid;
+import pl.kosma.geodesy.solver.SolverConfig;
+import pl.kosma.geodesy.solver.SolverResult;
 
 public class GeodesyTest {
     @GameTest(structure = "geodesy:geodesytest.test", maxTicks = 500)
@@ -56,4 +61,28 @@ public class GeodesyTest {
             context.succeed();
         });
     }
+
+    // The exact solvers must agree on the best score of every face of the test geode.
+    @GameTest(structure = "geodesy:geodesytest.test")
+    public void solversAgree(GameTestHelper context) {
+        GeodesyCore core = new GeodesyCore();
+        core.setPlayerEntity(null);
+        BlockPos absolutePos = context.absolutePos(new BlockPos(18, 18, 18));
+        core.geodesyArea(context.getLevel(), absolutePos, absolutePos);
+        core.geodesyProject(new Direction[]{Direction.NORTH, Direction.EAST, Direction.DOWN});
+
+        // No profile DP, it would solve the narrow faces for all of them
+        SolverConfig config = SolverConfig.builder().timeoutMs(30_000).profileWidth(0).build();
+        for (FaceGrid grid : core.projectedFaceGrids()) {
+            SolverResult expected = SolverConfig.Algorithm.BACKTRACKING.solver().solve(grid, config);
+            context.assertTrue(!expected.timedOut(), Component.literal("Backtracking didn't finish the " + grid.direction() + " face"));
+            for (SolverConfig.Algorithm algorithm : new SolverConfig.Algorithm[]{SolverConfig.Algorithm.SAT, SolverConfig.Algorithm.DLX}) {
+                SolverResult result = algorithm.solver().solve(grid, config);
+                context.assertTrue(!result.timedOut() && result.score(config.getCostThreshold()) == expected.score(config.getCostThreshold()),
+                        Component.literal(algorithm + " scored " + result.score(config.getCostThreshold()) + " (" + result.stopReason() + ") on the "
+                                + grid.direction() + " face, backtracking " + expected.score(config.getCostThreshold())));
+            }
+        }
+        context.succeed();
+    }
 }
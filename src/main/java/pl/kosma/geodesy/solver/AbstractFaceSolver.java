@@ -1,11 +1,10 @@
 package pl.kosma.geodesy.solver;
 
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
-import it.unimi.dsi.fastutil.ints.IntSet;
-import it.unimi.dsi.fastutil.ints.IntSets;
+import it.unimi.dsi.fastutil.ints.*;
 
-import java.util.BitSet;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.function.IntUnaryOperator;
 
 public abstract class AbstractFaceSolver implements FaceSolver {
 
@@ -15,21 +14,87 @@ public abstract class AbstractFaceSolver implements FaceSolver {
     public static final byte SLIME = 1;
     public static final byte HONEY = 2;
 
+    // (row, col) offsets of the four neighbors of a cell.
+    protected static final int[][] NEIGHBOR_OFFSETS = {{0, 1}, {0, -1}, {1, 0}, {-1, 0}};
+
+    // Special processing for subtracting 1 from the lower 16 bits.
+    // Underflow will impact the upper 16 bits, but we rely on range checks on the lower 16 bits to catch that.
+    protected static final int[] DIRECTIONS = {cellKey(0, 1), -1, cellKey(1, 0), cellKey(-1, 0)};
+
+    protected static final int MAX_SHAPES_PER_TARGET = 100;
+
     // Grid state
+    private final FaceGrid face;
     protected final byte[][] grid;
     protected final int rows;
     protected final int cols;
     protected final double islandCost;
-    protected final long timeoutMs;
+    protected final long timeoutMs;  // For the search, without the share kept for the large neighbourhood search
+    private final long totalTimeoutMs;
+    // Same split for the work budget, in search steps; Long.MAX_VALUE if there is none
+    protected final long workBudget;
+    private final long totalWorkBudget;
+    private final double lnsShare;
     protected long startTime;
+    // Why the search stopped. Set once, by whichever limit is reached first.
+    private volatile SolverResult.StopReason stopReason = SolverResult.StopReason.FINISHED;
+    protected final double gapTolerance;
+    // Upper bound on the score of the islands this solver places (not the fixed ones), see recordBound
+    protected double upperBound = Double.POSITIVE_INFINITY;
+    // Highest bound of the branches pruned only thanks to the gap tolerance
+    private final DoubleAccumulator toleratedBound = new DoubleAccumulator(Math::max, Double.NEGATIVE_INFINITY);
+    private final IncumbentListener incumbentListener;
+    protected final CancellationToken cancellation;
+
+    // Target tracking and precomputed shapes, see FaceShapes
+    private final FaceShapes shapes;
+    protected final IntList targets;  // List of [row, col] for all 1s
+    protected final Int2IntOpenHashMap targetIndices;  // Map cell key -> index in targets
+
+    // Precomputed shapes: Map target_index -> list of Shape
+    protected final Int2ObjectOpenHashMap<List<Shape>> possibleShapes;
+
+    // Best solution found
+    protected List<Island> bestSolution = new ArrayList<>();
+    // Store slime and honey masks for best solution for use in hill climbing
+    protected BitSet bestSolutionSlimeMask = new BitSet();
+    protected BitSet bestSolutionHoneyMask = new BitSet();
+
+    // Islands kept as they are, see applyFixedIslands. They are not part of bestSolution, but of every result.
+    protected List<Island> fixedIslands = List.of();
+    protected final BitSet fixedSlimeMask = new BitSet();
+    protected final BitSet fixedHoneyMask = new BitSet();
+    protected final BitSet fixedStemMask = new BitSet();
+
+    // Hill climbing index over bestSolution: island at every cell bit (-1 if none), and island indices by size
+    private int[] islandAt;
+    private IntLinkedOpenHashSet[] islandsBySize;
+
+    /**
+     * @param targetIndices indices (into targets) of the harvest cells covered by the shape
+     */
+    protected record Shape(IntSet cells, BitSet mask, BitSet neighborsMask, int onesCovered, int[] targetIndices, FlyingMachine flyingMachine) {}
 
     public AbstractFaceSolver(FaceGrid input, SolverConfig config) {
+        face = input;
         grid = input.copyCells();
         rows = input.width();
         cols = input.height();
+        shapes = new FaceShapes(grid, rows, cols);
+        targets = shapes.targets;
+        targetIndices = shapes.targetIndices;
+        possibleShapes = shapes.possibleShapes;
 
-        timeoutMs = config.getTimeoutMs();
+        totalTimeoutMs = config.getTimeoutMs();
+        // The large neighbourhood search doesn't know about fixed islands or the search area, so re-solves go without it.
+        lnsShare = config.getFixedIslands().isEmpty() && config.getSearchArea() == null ? config.getLnsShare() : 0;
+        timeoutMs = (long) (totalTimeoutMs * (1 - lnsShare));
+        totalWorkBudget = config.getWorkBudget() > 0 ? config.getWorkBudget() : Long.MAX_VALUE;
+        workBudget = config.getWorkBudget() > 0 ? (long) (totalWorkBudget * (1 - lnsShare)) : Long.MAX_VALUE;
         islandCost = config.getCostThreshold();
+        gapTolerance = config.getGapTolerance();
+        incumbentListener = config.getIncumbentListener();
+        cancellation = config.getCancellation();
     }
 
     public static int cellKey(int row, int col) {
@@ -49,20 +114,475 @@ public abstract class AbstractFaceSolver implements FaceSolver {
         return row * cols + col;
     }
 
-    protected SolverResult buildResult(FaceGrid input, List<Island> bestSolution, long solveTime, boolean timedOut) {
+    public static BitSet cellsMask(IntSet cells, int cols) {
+        BitSet mask = new BitSet();
+        for (int key : cells) {
+            mask.set(keyRow(key) * cols + keyCol(key));
+        }
+        return mask;
+    }
+
+    // All in-bounds cells that are next to one of the cells, but not part of them.
+    public static BitSet neighborsMask(IntSet cells, int rows, int cols) {
+        BitSet mask = new BitSet();
+        for (int key : cells) {
+            int r = keyRow(key);
+            int c = keyCol(key);
+            for (int[] d : NEIGHBOR_OFFSETS) {
+                int nr = r + d[0];
+                int nc = c + d[1];
+                if (nr >= 0 && nr < rows && nc >= 0 && nc < cols && !cells.contains(cellKey(nr, nc))) {
+                    mask.set(nr * cols + nc);
+                }
+            }
+        }
+        return mask;
+    }
+
+    private static IntSet remapCells(IntSet cells, IntUnaryOperator mapping) {
+        IntSet mapped = new IntOpenHashSet(cells.size());
+        for (int key : cells) {
+            mapped.add(mapping.applyAsInt(key));
+        }
+        return IntSets.unmodifiable(mapped);
+    }
+
+    /**
+     * Keeps the fixed islands of the config as they are, and limits the search to its search area:
+     * all their cells, and every cell outside the area, are blocked. Only the backtracking solver calls this.
+     * Must be called before findTargets.
+     */
+    protected void applyFixedIslands(SolverConfig config) {
+        IntSet searchArea = config.getSearchArea();
+        if (searchArea != null) {
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    if (!searchArea.contains(cellKey(r, c))) grid[r][c] = FaceGrid.CELL_BLOCKED;
+                }
+            }
+        }
+
+        fixedIslands = config.getFixedIslands();
+        for (Island island : fixedIslands) {
+            for (int key : island.cells()) {
+                grid[keyRow(key)][keyCol(key)] = FaceGrid.CELL_BLOCKED;
+            }
+            (island.material() == SLIME ? fixedSlimeMask : fixedHoneyMask).or(island.mask());
+            fixedStemMask.or(island.flyingMachine().stemMask());
+        }
+        bestSolutionSlimeMask = (BitSet) fixedSlimeMask.clone();
+        bestSolutionHoneyMask = (BitSet) fixedHoneyMask.clone();
+    }
+
+    protected void findTargets() {
+        shapes.findTargets();
+    }
+
+    // Fills possibleShapes, see FaceShapes.enumerate.
+    protected void precomputeShapes() {
+        shapes.enumerate();
+    }
+
+    // Distinct shapes that add to the score, in target order. Any other island can be dropped without breaking a constraint.
+    protected List<Shape> profitableShapes() {
+        return shapes.profitableShapes(islandCost);
+    }
+
+    protected IntSet getNeighbors(IntSet current) {
+        IntSet neighbors = new IntOpenHashSet();
+
+        for (int key : current) {
+            for (int dir : DIRECTIONS) {
+                int nKey = key + dir;
+                int nr = keyRow(nKey);
+                int nc = keyCol(nKey);
+
+                if (nr >= 0 && nr < rows && nc >= 0 && nc < cols && grid[nr][nc] != FaceGrid.CELL_BLOCKED && !current.contains(nKey)) {
+                    neighbors.add(nKey);
+                }
+            }
+        }
+        return neighbors;
+    }
+
+    // Finds the flying machine cells (4 cells: 3 in a row + 1 neighbor) by looking the shape up in the polyomino library.
+    protected FlyingMachine findFlyingMachine(IntSet cells) {
+        int[] keys = cells.toIntArray();
+        int anchor = PolyominoLibrary.anchor(keys, keys.length);
+        long template = PolyominoLibrary.encode(keys, keys.length, anchor);
+        if (template == 0) return null;
+
+        int machine = PolyominoLibrary.machine(template);
+        if (machine == PolyominoLibrary.NO_MACHINE) return null;
+        return shapes.flyingMachine(anchor, machine);
+    }
+
+    protected Shape createShape(IntSet newShape, FlyingMachine flyingMachine) {
+        return shapes.createShape(newShape, flyingMachine);
+    }
+
+    // Time left of the whole budget, including the share kept for the large neighbourhood search.
+    protected long remainingMs() {
+        return Math.max(0, totalTimeoutMs - (System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Checks whether the search has to stop: cancelled, past the work budget, or (only when {@code checkClock} is set,
+     * since reading the clock is comparatively slow) out of time. The first limit reached is kept as the stop reason.
+     *
+     * @param work search steps done so far
+     */
+    protected boolean limitReached(long work, boolean checkClock) {
+        if (stopped()) return true;
+        SolverResult.StopReason reason;
+        if (cancellation.isCancelled()) {
+            reason = SolverResult.StopReason.CANCELLED;
+        } else if (work > workBudget) {
+            reason = SolverResult.StopReason.WORK_BUDGET;
+        } else if (checkClock && System.currentTimeMillis() - startTime > timeoutMs) {
+            reason = SolverResult.StopReason.TIMEOUT;
+        } else {
+            return false;
+        }
+        stop(reason);
+        return true;
+    }
+
+    protected void stop(SolverResult.StopReason reason) {
+        if (!stopped()) stopReason = reason;
+    }
+
+    protected boolean stopped() {
+        return stopReason != SolverResult.StopReason.FINISHED;
+    }
+
+    /**
+     * Whether a branch whose score is bounded by {@code bound} can be left out, because it can't beat {@code best}
+     * by more than the gap tolerance. Branches left out only thanks to the tolerance are remembered for recordBound.
+     */
+    protected boolean prunable(double bound, double best) {
+        if (bound <= best) return true;
+        if (bound * (1 - gapTolerance) > best) return false;
+        toleratedBound.accumulate(bound);
+        return true;
+    }
+
+    /**
+     * Records the upper bound once the search is over. {@code openBound} bounds the branches it had not searched yet
+     * when it stopped early; it is ignored if the search finished. A finished search that left out branches
+     * thanks to the gap tolerance has only proven its layout within the tolerance, and stops WITHIN_TOLERANCE.
+     *
+     * @param best the best score found, by this or any other solver on the same grid
+     */
+    protected void recordBound(double best, double openBound) {
+        double tolerated = toleratedBound.get();
+        if (!stopped()) {
+            openBound = Double.NEGATIVE_INFINITY;
+            if (tolerated > best) stop(SolverResult.StopReason.WITHIN_TOLERANCE);
+        }
+        upperBound = Math.max(best, Math.max(openBound, tolerated));
+    }
+
+    /**
+     * Polishes the best solution: hill climbing, and if the search ran out of time or work, a large neighbourhood
+     * search in the rest of both budgets followed by hill climbing again.
+     */
+    protected void improveSolution() {
+        hillClimbSolution();
+        if (stopReason.compareTo(SolverResult.StopReason.WITHIN_TOLERANCE) > 0 && lnsShare > 0 && !cancellation.isCancelled()) {
+            long lnsWorkBudget = totalWorkBudget == Long.MAX_VALUE ? Long.MAX_VALUE : totalWorkBudget - workBudget;
+            bestSolution = new LargeNeighborhoodSearch(this).run(bestSolution, System.currentTimeMillis(), startTime + totalTimeoutMs,
+                    lnsWorkBudget, cancellation);
+            bestSolutionSlimeMask = new BitSet();
+            bestSolutionHoneyMask = new BitSet();
+            for (Island island : bestSolution) {
+                (island.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask).or(island.mask());
+            }
+            hillClimbSolution();
+        }
+    }
+
+    protected void hillClimbSolution() {
+        indexSolution();
+
+        IntArrayList order = new IntArrayList(bestSolution.size());
+        boolean improved = true;
+        while (improved && !cancellation.isCancelled()) {
+            improved = false;
+
+            // Smallest islands first
+            order.clear();
+            for (IntLinkedOpenHashSet bucket : islandsBySize) {
+                order.addAll(bucket);
+            }
+
+            for (int k = 0; k < order.size(); k++) {
+                int i = order.getInt(k);
+                Island island = bestSolution.get(i);
+                if (island == null || island.cells().size() >= MAX_ISLAND_SIZE) continue;
+                BitSet materialMask = island.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask;
+
+                IntSet neighbors = getNeighbors(island.cells());
+                for (int n : neighbors) {
+                    int nr = keyRow(n);
+                    int nc = keyCol(n);
+                    int nBit = cellBit(nr, nc);
+                    if (isAdjacent(materialMask, island.mask(), n)) continue;
+
+                    // Expand island
+                    // Only expand into harvest cells, or else we may expand in useless air directions.
+                    if (grid[nr][nc] == FaceGrid.CELL_HARVEST && !bestSolutionSlimeMask.get(nBit) && !bestSolutionHoneyMask.get(nBit)) {
+                        materialMask.set(nBit);
+
+                        setIsland(i, island.withCell(n, nBit));
+
+                        improved = true;
+                        break;
+                    }
+
+                    // Find the island occupying this neighbor cell.
+                    int j = getIslandIndexAt(nBit);
+                    if (j < 0 || i == j) continue;
+                    Island neighboring = bestSolution.get(j);
+
+                    // Try merging the neighboring island into the current island.
+                    if (tryMerge(i, island, materialMask, j, neighboring)) {
+                        improved = true;
+                        break;
+                    }
+
+                    // Try stealing this cell from the neighboring island.
+                    if (neighboring.cells().size() >= island.cells().size() + 2 && tryTakeCell(i, island, n, nBit, j, neighboring)) {
+                        // This does not count as an improvement.
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        bestSolution.removeIf(Objects::isNull);
+        islandAt = null;
+        islandsBySize = null;
+    }
+
+    // Builds the hill climbing index. Island indices stay stable until the end of hill climbing; removed islands are set to null.
+    private void indexSolution() {
+        List<Island> solution = bestSolution;
+        bestSolution = new ArrayList<>(solution.size());
+        islandAt = new int[rows * cols];
+        Arrays.fill(islandAt, -1);
+        islandsBySize = new IntLinkedOpenHashSet[MAX_ISLAND_SIZE + 1];
+        for (int size = 0; size <= MAX_ISLAND_SIZE; size++) {
+            islandsBySize[size] = new IntLinkedOpenHashSet();
+        }
+        for (Island island : solution) {
+            if (island == null) continue;
+            bestSolution.add(null);
+            setIsland(bestSolution.size() - 1, island);
+        }
+    }
+
+    // Replaces island i, keeping the index up to date. Costs time proportional to the size of both islands.
+    protected void setIsland(int i, Island island) {
+        Island previous = bestSolution.set(i, island);
+        if (previous != null) {
+            BitSet mask = previous.mask();
+            for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+                // The cell may already belong to another island
+                if (islandAt[bit] == i) islandAt[bit] = -1;
+            }
+            islandsBySize[Math.min(previous.cells().size(), MAX_ISLAND_SIZE)].remove(i);
+        }
+        if (island != null) {
+            BitSet mask = island.mask();
+            for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+                islandAt[bit] = i;
+            }
+            islandsBySize[Math.min(island.cells().size(), MAX_ISLAND_SIZE)].add(i);
+        }
+    }
+
+    protected int getIslandIndexAt(int nBit) {
+        return islandAt[nBit];
+    }
+
+    /**
+     * Try merging neighbor into the current island, preferring slime if possible.
+     */
+    protected boolean tryMerge(int i, Island island, BitSet materialMask, int j, Island neighboring) {
+        if (island.cells().size() + neighboring.cells().size() > MAX_ISLAND_SIZE) return false;
+
+        BitSet neighboringMaterialMask = neighboring.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask;
+        boolean canChangeIsland = island.cells().intStream().noneMatch(key -> isAdjacent(neighboringMaterialMask, neighboring.mask(), key));
+        boolean canChangeNeighbor = neighboring.cells().intStream().noneMatch(key -> isAdjacent(materialMask, island.mask(), key));
+
+        if (island.material() == SLIME && canChangeNeighbor || neighboring.material() == SLIME && canChangeIsland) {
+            return merge(i, island, j, neighboring, SLIME);
+        } else if (island.material() == HONEY && canChangeNeighbor || neighboring.material() == HONEY && canChangeIsland) {
+            return merge(i, island, j, neighboring, HONEY);
+        } else {
+            return false;
+        }
+    }
+
+    protected boolean merge(int i, Island island, int j, Island neighboring, byte newMaterial) {
+        if (newMaterial == SLIME) {
+            bestSolutionSlimeMask.or(island.mask());
+            bestSolutionSlimeMask.or(neighboring.mask());
+            bestSolutionHoneyMask.andNot(island.mask());
+            bestSolutionHoneyMask.andNot(neighboring.mask());
+        } else {
+            bestSolutionSlimeMask.andNot(island.mask());
+            bestSolutionSlimeMask.andNot(neighboring.mask());
+            bestSolutionHoneyMask.or(island.mask());
+            bestSolutionHoneyMask.or(neighboring.mask());
+        }
+
+        setIsland(i, island.union(neighboring, newMaterial));
+        setIsland(j, null); // Avoid breaking existing indices
+
+        return true;
+    }
+
+    /**
+     * Try to steal the provided cell from a neighbor.
+     * This allows other larger islands to expand and does not count as an improvement.
+     *
+     * @param i      the index of the current island we are trying to expand
+     * @param island the current island we are trying to expand
+     * @param n      the cell we are trying to steal from a neighbor
+     * @param nBit   the bit index of the cell we are trying to steal from a neighbor
+     * @return true if we successfully stole the cell and updated the solution, false if we could not steal the cell
+     */
+    protected boolean tryTakeCell(int i, Island island, int n, int nBit, int j, Island neighboring) {
+        if (neighboring.cells().size() <= 4) return false;
+
+        // Create the new neighboring island state after losing this cell.
+        IntSet neighborNewCells = new IntOpenHashSet(neighboring.cells());
+        BitSet neighborNewMask = (BitSet) neighboring.mask().clone();
+        FlyingMachine neighborFlyingMachine = neighboring.flyingMachine();
+        neighborNewCells.remove(n);
+        neighborNewMask.clear(nBit);
+        neighborNewCells = IntSets.unmodifiable(neighborNewCells);
+
+        // If we steal part of the neighbor's flying machine.
+        if (neighborFlyingMachine.stemMask().get(nBit) || neighborFlyingMachine.stopperCell() == n) {
+            // Try to find a new flying machine.
+            neighborFlyingMachine = findFlyingMachine(neighborNewCells);
+            if (neighborFlyingMachine == null || isStemAdjacent(j, neighborFlyingMachine)) {
+                return false;
+            }
+        }
+
+        // Check the neighbor is still connected after losing this cell.
+        if (!isConnected(neighborNewCells)) return false;
+
+        // Update the material masks to reflect the cell transfer.
+        if (island.material() == SLIME) {
+            bestSolutionSlimeMask.set(nBit);
+            bestSolutionHoneyMask.clear(nBit);
+        } else {
+            bestSolutionSlimeMask.clear(nBit);
+            bestSolutionHoneyMask.set(nBit);
+        }
+
+        // Create the new island state after stealing this cell.
+        // Update the island variable for the next iteration of the neighbor loop.
+        setIsland(i, island.withCell(n, nBit));
+        setIsland(j, new Island(neighborNewCells, neighborNewMask, neighborFlyingMachine, neighboring.material()));
+
+        return true;
+    }
+
+    // Whether the flying machine would be next to the stem of any island other than island j.
+    protected boolean isStemAdjacent(int j, FlyingMachine flyingMachine) {
+        BitSet stemNeighbors = flyingMachine.stemNeighborsMask();
+        if (fixedStemMask.intersects(stemNeighbors)) return true;
+        for (int bit = stemNeighbors.nextSetBit(0); bit >= 0; bit = stemNeighbors.nextSetBit(bit + 1)) {
+            int k = islandAt[bit];
+            if (k >= 0 && k != j && bestSolution.get(k).flyingMachine().stemMask().get(bit)) return true;
+        }
+        return false;
+    }
+
+    protected boolean isAdjacent(BitSet flyingMachineStemMask, FlyingMachine newFlyingMachine) {
+        return flyingMachineStemMask.intersects(newFlyingMachine.stemNeighborsMask());
+    }
+
+    protected boolean isAdjacent(BitSet cellsMask, Shape newShape) {
+        return cellsMask.intersects(newShape.neighborsMask());
+    }
+
+    protected boolean isAdjacent(BitSet cellsMask, BitSet excluding, int key) {
+        for (var dir : DIRECTIONS) {
+            int adj = key + dir;
+            int nr = keyRow(adj);
+            int nc = keyCol(adj);
+
+            if (nr >= 0 && nr < rows && nc >= 0 && nc < cols) {
+                int bit = cellBit(nr, nc);
+                if (cellsMask.get(bit) && !excluding.get(bit)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    protected boolean isConnected(IntSet cells) {
+        if (cells.isEmpty()) return true;
+
+        IntSet visited = new IntOpenHashSet(cells.size());
+        IntPriorityQueue queue = new IntArrayFIFOQueue(cells.size());
+        int start = cells.iterator().nextInt();
+        queue.enqueue(start);
+        visited.add(start);
+
+        while (!queue.isEmpty()) {
+            int current = queue.dequeueInt();
+            for (int dir : DIRECTIONS) {
+                int neighbor = current + dir;
+                if (cells.contains(neighbor) && visited.add(neighbor)) {
+                    queue.enqueue(neighbor);
+                }
+            }
+        }
+
+        return visited.size() == cells.size();
+    }
+
+    // Best score found by other solvers working on the same grid, see IncumbentListener.bestScore.
+    protected double sharedBestScore() {
+        return incumbentListener.bestScore();
+    }
+
+    // Reports a new best solution while the search goes on. Callers must publish improvements in order.
+    protected void publishIncumbent(List<Island> solution, double score) {
+        if (incumbentListener == IncumbentListener.NONE) return;
+        incumbentListener.onIncumbent(buildResult(face, solution, System.currentTimeMillis() - startTime), score);
+    }
+
+    protected SolverResult buildResult(FaceGrid input, List<Island> bestSolution, long solveTime) {
         SolverResult.Builder builder = SolverResult.builder(input.width(), input.height(), input.direction())
                 .totalHarvest(input.getHarvestCount())
                 .solveTimeMs(solveTime)
-                .timedOut(timedOut);
+                .stopReason(stopReason)
+                .shapesComplete(shapes.complete());
 
-        builder.harvestCovered((int) bestSolution.stream()
-                .map(Island::cells)
-                .flatMapToInt(IntSet::intStream)
-                .distinct()
-                .filter(key -> grid[keyRow(key)][keyCol(key)] == FaceGrid.CELL_HARVEST)
-                .count());
+        List<Island> islands = bestSolution;
+        if (!fixedIslands.isEmpty()) {
+            islands = new ArrayList<>(fixedIslands);
+            islands.addAll(bestSolution);
+        }
 
-        for (Island island : bestSolution) {
+        int harvestCovered = harvestCovered(input, islands);
+        builder.harvestCovered(harvestCovered);
+        // The bound only covers the islands placed by this solver, the fixed ones add their own score
+        double fixedScore = harvestCovered(input, fixedIslands) - fixedIslands.size() * islandCost;
+        builder.upperBound(Math.max(harvestCovered - islands.size() * islandCost, fixedScore + upperBound));
+
+        for (Island island : islands) {
             for (int key : island.cells) {
                 int r = keyRow(key);
                 int c = keyCol(key);
@@ -76,6 +596,16 @@ public abstract class AbstractFaceSolver implements FaceSolver {
         return builder.build();
     }
 
+    // The input, not grid: grid has the cells of fixed islands blocked
+    private static int harvestCovered(FaceGrid input, List<Island> islands) {
+        return (int) islands.stream()
+                .map(Island::cells)
+                .flatMapToInt(IntSet::intStream)
+                .distinct()
+                .filter(key -> input.getCell(keyRow(key), keyCol(key)) == FaceGrid.CELL_HARVEST)
+                .count();
+    }
+
     /**
      * @param material    1 = slime, 2 = honey
      */
@@ -99,6 +629,14 @@ public abstract class AbstractFaceSolver implements FaceSolver {
 
             return new Island(IntSets.unmodifiable(newCells), newMask, flyingMachine, newMaterial);
         }
+
+        /**
+         * Moves every cell of the island through {@code mapping} and rebuilds the masks for a rows x cols grid.
+         */
+        public Island remap(IntUnaryOperator mapping, int rows, int cols) {
+            IntSet newCells = remapCells(cells, mapping);
+            return new Island(newCells, cellsMask(newCells, cols), flyingMachine.remap(mapping, rows, cols), material);
+        }
     }
 
     /**
@@ -107,5 +645,10 @@ public abstract class AbstractFaceSolver implements FaceSolver {
      * @param stemNeighborsMask pre-computed mask of all neighbors of the stem cells, used for quick adjacency checks
      * @param stopperCell       the neighbor cell for the blocker block
      */
-    public record FlyingMachine(IntSet stemCells, BitSet stemMask, BitSet stemNeighborsMask, int stopperCell) {}
+    public record FlyingMachine(IntSet stemCells, BitSet stemMask, BitSet stemNeighborsMask, int stopperCell) {
+        public FlyingMachine remap(IntUnaryOperator mapping, int rows, int cols) {
+            IntSet newStemCells = remapCells(stemCells, mapping);
+            return new FlyingMachine(newStemCells, cellsMask(newStemCells, cols), neighborsMask(newStemCells, rows, cols), mapping.applyAsInt(stopperCell));
+        }
+    }
 }
@@ -1,13 +1,15 @@
 package pl.kosma.geodesy.solver;
 
-import it.unimi.dsi.fastutil.ints.*;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.fastutil.objects.ObjectSet;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /*
  * Optimized face solver using island-based backtracking algorithm.
@@ -26,529 +28,534 @@ public class BacktrackingFaceSolver extends AbstractFaceSolver implements FaceSo
 
     private static final Logger LOGGER = LoggerFactory.getLogger("BacktrackingFaceSolver");
 
-    private static final int MAX_SHAPES_PER_TARGET = 100;
+    // Number of branching levels at the top of the search tree that are split into fork-join tasks.
+    private static final int MAX_FORK_DEPTH = 2;
 
     private static final Comparator<Shape> SHAPE_PRIORITY_COMPARATOR = Comparator.comparingInt(Shape::onesCovered).reversed();
 
-    // Target tracking
-    private final IntList targets = new IntArrayList();  // List of [row, col] for all 1s
-    private final Int2IntOpenHashMap targetIndices = new Int2IntOpenHashMap();  // Map cell key -> index in targets
+    // Order in which the search visits the targets.
+    public enum TargetOrder {
+        // Fewest possible shapes first. Best on sparse faces, where most targets have few shapes.
+        SCARCITY,
+        // Row by row. Keeps the placed islands in one compact front, which suits dense faces.
+        ROW_MAJOR
+    }
+
+    // Order in which the shapes covering a target are tried.
+    public enum ShapeOrder {
+        MOST_HARVEST,
+        // Most harvest cells per island cell first, so fewer air cells get used up early.
+        DENSEST
+    }
 
-    // Precomputed shapes: Map target_index -> list of Shape
-    private final Int2ObjectOpenHashMap<List<Shape>> possibleShapes = new Int2ObjectOpenHashMap<>();
+    private static final Comparator<Shape> DENSEST_SHAPE_COMPARATOR = Comparator.comparingDouble((Shape shape) -> (double) shape.onesCovered() / shape.cells().size()).reversed();
 
     // Sorted target indices (by scarcity - fewest shapes first)
     private int[] sortedTargetIndices;
 
-    // Best solution found
-    private double bestScore = Double.NEGATIVE_INFINITY;
-    private List<Island> bestSolution = new ArrayList<>();
-    // Store slime and honey masks for best solution for use in hill climbing
-    private BitSet bestSolutionSlimeMask = new BitSet();
-    private BitSet bestSolutionHoneyMask = new BitSet();
-
-    // Time tracking
-    private long backtrackCalls;
-    private boolean timedOut;
-
-    // Special processing for subtracting 1 from the lower 16 bits.
-    // Underflow will impact the upper 16 bits, but we rely on range checks on the lower 16 bits to catch that.
-    private static final int[] DIRECTIONS = {cellKey(0, 1), -1, cellKey(1, 0), cellKey(-1, 0)};
-
-    private record Shape(IntSet cells, BitSet mask, BitSet neighborsMask, int onesCovered, FlyingMachine flyingMachine) {}
+    // Upper bound on the score contribution of covering each target, see computeTargetGains.
+    private double[] targetGains;
+
+    // Best solution found. The score is read without locking by all search threads for pruning.
+    private volatile double bestScore = Double.NEGATIVE_INFINITY;
+
+    // Backtracking calls of the finished restart runs, counted against the work budget
+    private long previousRunsWork;
+
+    private final int parallelism;
+    private final int transpositionTableSize;
+    private final TargetOrder targetOrder;
+    private final ShapeOrder shapeOrder;
+    // Ties in both orders are broken randomly with this seed, or kept in grid order if it is 0.
+    private final long seed;
+    // Serial searches restart after luby(run) * restartUnit backtracking calls, with ties broken by a new seed.
+    private final int restartUnit;
+    private final long restartSeed;
+
+    // Buffers of the search, taken from the pool for the duration of the search
+    private SolverWorkspace workspace;
+
+    // States already searched with a score at least as high, keyed by the Zobrist hash of the state and the depth.
+    // The state is the material, stem and skipped target of every cell the rest of the search depends on.
+    private TranspositionTable transpositions;
+    private long[] slimeKeys;
+    private long[] honeyKeys;
+    private long[] stemKeys;
+    private long[] skipKeys;
+    private long[] depthKeys;
+    // Per sortedIdx: cells that shapes of this target can cover or touch, but no shape of a later target can.
+    // Once the search moves past the target, nothing can change them or depend on them any more.
+    private int[][] leavingCells;
+
+    // Tolerance for the floating point bound, so rounding can never prune a strictly better branch.
+    private static final double BOUND_EPSILON = 1e-9;
 
     public BacktrackingFaceSolver(FaceGrid input, SolverConfig config) {
+        this(input, config, TargetOrder.SCARCITY, ShapeOrder.MOST_HARVEST, 0);
+    }
+
+    public BacktrackingFaceSolver(FaceGrid input, SolverConfig config, TargetOrder targetOrder, ShapeOrder shapeOrder, long seed) {
         super(input, config);
+        // Forked searches split the work in an order that depends on timing, so a work budget searches serially.
+        // Restarts only exist in the serial search.
+        parallelism = config.isSerialBacktracking() ? 1 : config.getParallelism();
+        transpositionTableSize = config.getTranspositionTableSize();
+        this.targetOrder = targetOrder;
+        this.shapeOrder = shapeOrder;
+        this.seed = seed;
+        restartUnit = config.getRestartUnit();
+        restartSeed = config.getSeed();
     }
 
     @Override
     public SolverResult solve(FaceGrid input, SolverConfig config) {
         startTime = System.currentTimeMillis();
 
-        int totalCells = rows * cols;
-
-        // Initialize state
-        targetIndices.defaultReturnValue(-1);
-
-        // Find all target cells
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                if (grid[r][c] == FaceGrid.CELL_HARVEST) {
-                    int key = cellKey(r, c);
-                    targetIndices.put(key, targets.size());
-                    targets.add(key);
-                }
-            }
-        }
+        // Find all target cells, outside the fixed islands
+        applyFixedIslands(config);
+        findTargets();
 
         if (targets.isEmpty()) {
             LOGGER.info("No harvest cells to solve");
-            return SolverResult.empty(input);
+            if (fixedIslands.isEmpty()) return SolverResult.empty(input);
+            upperBound = 0;
+            return buildResult(input, bestSolution, System.currentTimeMillis() - startTime);
         }
 
         LOGGER.info("Solving {}x{} grid with {} harvest cells", rows, cols, targets.size());
 
         precomputeShapes();
-        sortShapes();
-        backtrack(0, new ArrayList<>(), new BitSet(totalCells), new BitSet(totalCells), new BitSet(totalCells), 0, targets.size(), 0);
-        hillClimbSolution();
+        sortShapes(seed);
+        computeTargetGains();
+        workspace = SolverWorkspace.acquire(rows * cols);
+        try {
+            search();
+        } finally {
+            workspace.release();
+            workspace = null;
+        }
+        improveSolution();
 
         long solveTime = System.currentTimeMillis() - startTime;
-        return buildResult(input, bestSolution, solveTime, timedOut);
+        return buildResult(input, bestSolution, solveTime);
     }
 
-    private void precomputeShapes() {
-        LOGGER.debug("Pre-computing shapes...");
+    private void sortShapes(long seed) {
+        sortedTargetIndices = new int[targets.size()];
+        for (int i = 0; i < targets.size(); i++) {
+            sortedTargetIndices[i] = i;
+        }
+        Random random = seed != 0 ? new Random(seed) : null;
+        // Targets are found row by row, so ROW_MAJOR needs no sorting.
+        if (targetOrder == TargetOrder.SCARCITY) {
+            IntComparator scarcity = IntComparator.comparingInt(i -> possibleShapes.getOrDefault(i, Collections.emptyList()).size());
+            if (random != null) {
+                // Shuffled, then sorted stably, so the ties end up in random order
+                IntArrays.shuffle(sortedTargetIndices, random);
+                IntArrays.mergeSort(sortedTargetIndices, scarcity);
+            } else {
+                IntArrays.quickSort(sortedTargetIndices, scarcity);
+            }
+        }
 
-        ObjectSet<IntSet> seenShapesGlobal = new ObjectOpenHashSet<>();
+        Comparator<Shape> shapePriority = shapeOrder == ShapeOrder.DENSEST ? DENSEST_SHAPE_COMPARATOR : SHAPE_PRIORITY_COMPARATOR;
+        for (List<Shape> possibleShapes : possibleShapes.values()) {
+            if (random != null) Collections.shuffle(possibleShapes, random);
+            possibleShapes.sort(shapePriority);
+        }
+    }
 
+    /*
+     * An island covering n targets adds n - islandCost to the score, i.e. (n - islandCost) / n per target.
+     * The best such share over all shapes covering a target (or 0, since it can always be left uncovered)
+     * bounds what that target can still contribute. The sum over all targets that are neither covered
+     * nor skipped is then an upper bound on how much the current partial solution can still improve.
+     */
+    private void computeTargetGains() {
+        targetGains = new double[targets.size()];
         for (int tIdx = 0; tIdx < targets.size(); tIdx++) {
-            possibleShapes.computeIfAbsent(tIdx, k -> new ArrayList<>());
-
-            int start = targets.getInt(tIdx);
-
-            // BFS to find shapes starting from this target
-            ArrayDeque<IntSet> queueHarvest = new ArrayDeque<>();
-            ArrayDeque<IntSet> queueAir = new ArrayDeque<>();
-            ObjectSet<IntSet> seenLocal = new ObjectOpenHashSet<>();
-
-            IntSet initial = IntSet.of(start);
-            queueHarvest.add(initial);
-            seenLocal.add(initial);
-
-            int shapesFound = 0;
-
-            while ((!queueHarvest.isEmpty() || !queueAir.isEmpty()) && shapesFound < MAX_SHAPES_PER_TARGET) {
-                IntSet current = !queueHarvest.isEmpty() ? queueHarvest.poll() : queueAir.poll();
-
-                if (current.size() >= MAX_ISLAND_SIZE) continue;
-                IntSet neighbors = getNeighbors(current);
-
-                for (int n : neighbors) {
-                    IntSet newShape = new IntOpenHashSet(current);
-                    newShape.add(n);
-                    newShape = IntSets.unmodifiable(newShape);
-
-                    if (!seenLocal.add(newShape)) continue;
-
-                    // We have not seen this shape locally
-                    // Prioritize harvest-cell neighbors
-                    int nr = keyRow(n);
-                    int nc = keyCol(n);
-                    if (grid[nr][nc] == FaceGrid.CELL_HARVEST) {
-                        queueHarvest.add(newShape);
-                    } else {
-                        queueAir.add(newShape);
-                    }
-
-                    if (newShape.size() < MIN_ISLAND_SIZE) continue;
-
-                    FlyingMachine flyingMachine = findFlyingMachine(newShape);
-                    if (flyingMachine == null) continue;
-
-                    if (!seenShapesGlobal.add(newShape)) continue;
-
-                    // We have not seen this shape globally
-                    Shape shape = createShape(newShape, flyingMachine);
-
-                    // Assign shape to every target it covers
-                    for (int key : newShape) {
-                        int ti = targetIndices.get(key);
-                        if (ti != -1) {
-                            possibleShapes.computeIfAbsent(ti, k -> new ArrayList<>()).add(shape);
-                        }
-                    }
-
-                    shapesFound++;
-                }
+            double gain = 0;
+            for (Shape shape : possibleShapes.getOrDefault(tIdx, Collections.emptyList())) {
+                gain = Math.max(gain, (shape.onesCovered() - islandCost) / shape.onesCovered());
             }
+            targetGains[tIdx] = gain;
         }
+    }
 
-        LOGGER.debug("Found {} unique shapes", seenShapesGlobal.size());
+    private int targetBit(int targetIdx) {
+        int key = targets.getInt(targetIdx);
+        return cellBit(keyRow(key), keyCol(key));
     }
 
-    private IntSet getNeighbors(IntSet current) {
-        IntSet neighbors = new IntOpenHashSet();
+    private double shapeGain(Shape shape) {
+        double gain = 0;
+        for (int ti : shape.targetIndices()) {
+            gain += targetGains[ti];
+        }
+        return gain;
+    }
 
-        for (int key : current) {
-            for (int dir : DIRECTIONS) {
-                int nKey = key + dir;
-                int nr = keyRow(nKey);
-                int nc = keyCol(nKey);
+    private void initTranspositions() {
+        slimeKeys = workspace.slimeKeys;
+        honeyKeys = workspace.honeyKeys;
+        stemKeys = workspace.stemKeys;
+        skipKeys = workspace.skipKeys;
+        transpositions = workspace.transpositions(transpositionTableSize);
+    }
 
-                if (nr >= 0 && nr < rows && nc >= 0 && nc < cols && grid[nr][nc] != FaceGrid.CELL_BLOCKED && !current.contains(nKey)) {
-                    neighbors.add(nKey);
-                }
+    // Per search order: new depth keys, so entries of earlier (and possibly unfinished) runs and solves never match again.
+    private void orderTranspositions() {
+        int totalCells = rows * cols;
+        workspace.newDepthKeys(targets.size());
+        depthKeys = workspace.depthKeys;
+
+        leavingCells = new int[targets.size()][];
+        BitSet relevant = new BitSet(totalCells);
+        for (int sortedIdx = targets.size() - 1; sortedIdx >= 0; sortedIdx--) {
+            int targetIdx = sortedTargetIndices[sortedIdx];
+            BitSet before = (BitSet) relevant.clone();
+            relevant.set(targetBit(targetIdx));
+            for (Shape shape : possibleShapes.getOrDefault(targetIdx, Collections.emptyList())) {
+                relevant.or(shape.mask());
+                relevant.or(shape.neighborsMask());
             }
+            BitSet leaving = (BitSet) relevant.clone();
+            leaving.andNot(before);
+            leavingCells[sortedIdx] = leaving.stream().toArray();
         }
-        return neighbors;
     }
 
-    // Finds the flying machine cells (4 cells: 3 in a row + 1 neighbor).
-    private FlyingMachine findFlyingMachine(IntSet cells) {
-        for (int key : cells) {
-            for (int i = 0; i <= 2; i += 2) {
-                int stemDir = DIRECTIONS[i];
-                int prevKey = key - stemDir;
-                int nextKey = key + stemDir;
-
-                if (cells.contains(prevKey) && cells.contains(nextKey)) {
-                    // If stem is on +col (i=0), +row (perp=2) is perp
-                    // If stem is on +row (i=2), +col (perp=0) is perp
-                    int perpDir = DIRECTIONS[2 - i];
-                    int target;
-
-                    // 1. Check one side (perpDir)
-                    if (cells.contains(target = prevKey + perpDir)
-                            || cells.contains(target = key + perpDir)
-                            || cells.contains(target = nextKey + perpDir))
-                        return createFlyingMachine(prevKey, key, nextKey, target);
-
-                    // 2. Check other side (-perpDir)
-                    if (cells.contains(target = prevKey - perpDir)
-                            || cells.contains(target = key - perpDir)
-                            || cells.contains(target = nextKey - perpDir))
-                        return createFlyingMachine(prevKey, key, nextKey, target);
-
-                    // 3. Check end sides (1x4 case)
-                    if (cells.contains(target = prevKey - stemDir)
-                            || cells.contains(target = nextKey + stemDir))
-                        return createFlyingMachine(prevKey, key, nextKey, target);
-                }
-            }
+    private long shapeHash(Shape shape, byte color) {
+        long[] materialKeys = color == HONEY ? honeyKeys : slimeKeys;
+        long hash = 0;
+        BitSet mask = shape.mask();
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            hash ^= materialKeys[bit];
+        }
+        BitSet stemMask = shape.flyingMachine().stemMask();
+        for (int bit = stemMask.nextSetBit(0); bit >= 0; bit = stemMask.nextSetBit(bit + 1)) {
+            hash ^= stemKeys[bit];
         }
-        return null;
+        return hash;
     }
 
-    private FlyingMachine createFlyingMachine(int prevKey, int key, int nextKey, int target) {
-        IntSet stemCells = IntSet.of(prevKey, key, nextKey);
-        return new FlyingMachine(stemCells, getMask(stemCells), getNeighborsMask(stemCells), target);
-    }
+    private void search() {
+        if (transpositionTableSize > 0) {
+            initTranspositions();
+            orderTranspositions();
+        }
 
-    private Shape createShape(IntSet newShape, FlyingMachine flyingMachine) {
-        int ones = 0;
+        double maxGain = Arrays.stream(targetGains).sum();
+        LOGGER.debug("Initial upper bound: {}", maxGain);
 
-        for (int key : newShape) {
-            int r = keyRow(key);
-            int c = keyCol(key);
-            if (grid[r][c] == FaceGrid.CELL_HARVEST) {
-                ones++;
-            }
+        if (parallelism == 1) {
+            searchWithRestarts(maxGain);
+            return;
         }
 
-        return new Shape(newShape, getMask(newShape), getNeighborsMask(newShape), ones, flyingMachine);
+        LOGGER.debug("Searching with {} threads", parallelism);
+        try (ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+            pool.invoke(new BacktrackTask(newSearch(MAX_FORK_DEPTH, Long.MAX_VALUE), 0, 0, maxGain, 0));
+        }
+        // The forked searches don't keep track of what they left open, so only the initial bound is known.
+        recordBound(Math.max(bestScore, sharedBestScore()), maxGain);
     }
 
-    private BitSet getMask(IntSet cells) {
-        BitSet mask = new BitSet();
-        for (int key : cells) {
-            int r = keyRow(key);
-            int c = keyCol(key);
-            mask.set(cellBit(r, c));
+    /*
+     * Depth-first search gets stuck in the subtree of its first choices. The search is restarted after a growing
+     * number of backtracking calls (the Luby sequence times restartUnit), each time with the ties in the target
+     * and shape orders broken differently. The incumbent carries over, so later runs prune with it from the start.
+     * The runs get longer without limit, so a search that can finish still does.
+     */
+    private void searchWithRestarts(double maxGain) {
+        for (int run = 0; ; run++) {
+            long nodeLimit = restartUnit > 0 ? restartUnit * luby(run + 1) : Long.MAX_VALUE;
+            Search root = newSearch(0, nodeLimit);
+            root.backtrack(0, 0, maxGain, 0);
+            if (!root.restart || stopped()) {
+                recordBound(Math.max(bestScore, sharedBestScore()), root.openBound());
+                LOGGER.debug("Search ended in run {} with upper bound {}", run, upperBound);
+                return;
+            }
+
+            previousRunsWork += root.backtrackCalls;
+            sortShapes(HashCommon.murmurHash3(restartSeed + run + 1) ^ seed);
+            if (transpositions != null) orderTranspositions();
         }
-        return mask;
     }
 
-    private BitSet getNeighborsMask(IntSet shape) {
-        BitSet neighborsMask = new BitSet();
-        for (int key : shape) {
-            for (int dir : DIRECTIONS) {
-                int nKey = key + dir;
-                int nr = keyRow(nKey);
-                int nc = keyCol(nKey);
-                if (nr >= 0 && nr < rows && nc >= 0 && nc < cols && !shape.contains(nKey)) {
-                    neighborsMask.set(cellBit(nr, nc));
-                }
+    // 1, 1, 2, 1, 1, 2, 4, 1, 1, 2, 1, 1, 2, 4, 8, ... for i = 1, 2, ...
+    private static long luby(long i) {
+        for (int k = 1; ; k++) {
+            if (i == (1L << k) - 1) return 1L << (k - 1);
+            if (i < (1L << k) - 1) {
+                // Same as the value at i within the previous, complete part of the sequence
+                i -= (1L << (k - 1)) - 1;
+                k = 0;
             }
         }
-        return neighborsMask;
     }
 
-    private void sortShapes() {
-        sortedTargetIndices = new int[targets.size()];
-        for (int i = 0; i < targets.size(); i++) {
-            sortedTargetIndices[i] = i;
-        }
-        IntArrays.quickSort(sortedTargetIndices, IntComparator.comparingInt(i -> possibleShapes.getOrDefault(i, Collections.emptyList()).size()));
+    private Search newSearch(int forkDepth, long nodeLimit) {
+        // New islands must not stick to the fixed ones, nor touch their stems
+        workspace.reset(fixedSlimeMask, fixedHoneyMask, fixedStemMask);
+        return new Search(new ArrayList<>(), workspace.slimeMask, workspace.honeyMask, workspace.stemMask, workspace.occupiedMask, 0,
+                transpositions != null ? workspace.frozenHashes : null, workspace.openBounds, forkDepth, nodeLimit);
+    }
 
-        for (List<Shape> possibleShapes : possibleShapes.values()) {
-            possibleShapes.sort(SHAPE_PRIORITY_COMPARATOR);
+    private void offerSolution(double score, Search search) {
+        // Cheap unsynchronized check first; most leaves are not improvements.
+        if (score <= bestScore) return;
+
+        synchronized (this) {
+            if (score > bestScore) {
+                bestSolution = new ArrayList<>(search.currentIslands);
+                bestSolutionSlimeMask = (BitSet) search.slimeMask.clone();
+                bestSolutionHoneyMask = (BitSet) search.honeyMask.clone();
+                bestScore = score;
+                publishIncumbent(bestSolution, score);
+            }
         }
     }
 
-    private void backtrack(int sortedIdx, List<Island> currentIslands,
-                           BitSet slimeMask, BitSet honeyMask, BitSet flyingMachineStemMask,
-                           int currentOnes, int remainingPossibleTargets, int currentIslandsCount) {
-        if ((backtrackCalls++ & 0xFFFF) == 0 && System.currentTimeMillis() - startTime > timeoutMs) {
-            timedOut = true;
-            return;
+    /**
+     * State of a single depth-first search over the sorted targets.
+     * The serial solver uses one instance; in parallel mode every forked subtree gets its own copy,
+     * while the incumbent ({@link #bestScore}) is shared by all of them.
+     */
+    private final class Search {
+        private final List<Island> currentIslands;
+        private final BitSet slimeMask;
+        private final BitSet honeyMask;
+        private final BitSet flyingMachineStemMask;
+        // Cells of all placed islands, plus the skipped targets. No island may be placed over any of them.
+        private final BitSet occupiedMask;
+        // Zobrist hash of the masks above, kept up to date only if there is a transposition table
+        private long hash;
+        // Per sortedIdx on the current path: hash of the cells the rest of the search no longer depends on
+        private final long[] frozenHashes;
+        // Remaining branching levels to split into tasks before falling back to serial recursion.
+        private final int forkDepth;
+        private long backtrackCalls;
+        // Backtracking calls after which the search gives up for a restart
+        private final long nodeLimit;
+        private boolean restart;
+        // Per sortedIdx on the current path: bound of the node while it has branches left to search, -infinity otherwise.
+        // When the search stops, everything it has not searched is below one of these nodes.
+        private final double[] openBounds;
+
+        // The arrays may be longer than needed; only the first targets.size() (+ 1) entries are used.
+        private Search(List<Island> currentIslands, BitSet slimeMask, BitSet honeyMask, BitSet flyingMachineStemMask, BitSet occupiedMask, long hash,
+                       long[] frozenHashes, double[] openBounds, int forkDepth, long nodeLimit) {
+            this.currentIslands = currentIslands;
+            this.slimeMask = slimeMask;
+            this.honeyMask = honeyMask;
+            this.flyingMachineStemMask = flyingMachineStemMask;
+            this.occupiedMask = occupiedMask;
+            this.hash = hash;
+            this.frozenHashes = frozenHashes;
+            this.forkDepth = forkDepth;
+            this.nodeLimit = nodeLimit;
+            this.openBounds = openBounds;
+            Arrays.fill(openBounds, 0, targets.size() + 1, Double.NEGATIVE_INFINITY);
         }
 
-        double currentScore = currentOnes - (currentIslandsCount * islandCost);
+        // Bound of everything left to search, at the time the search stopped
+        private double openBound() {
+            return Arrays.stream(openBounds, 0, targets.size() + 1).max().orElse(Double.NEGATIVE_INFINITY);
+        }
 
-        // Base case: all targets considered
-        if (sortedIdx >= targets.size()) {
-            if (currentScore > bestScore) {
-                bestScore = currentScore;
-                bestSolution = new ArrayList<>(currentIslands);
-                bestSolutionSlimeMask = (BitSet) slimeMask.clone();
-                bestSolutionHoneyMask = (BitSet) honeyMask.clone();
-            }
-            return;
+        private Search fork() {
+            long[] forkedHashes = frozenHashes != null ? Arrays.copyOf(frozenHashes, targets.size()) : null;
+            return new Search(new ArrayList<>(currentIslands), (BitSet) slimeMask.clone(), (BitSet) honeyMask.clone(),
+                    (BitSet) flyingMachineStemMask.clone(), (BitSet) occupiedMask.clone(), hash, forkedHashes, new double[targets.size() + 1], forkDepth - 1, nodeLimit);
         }
 
-        // Pruning: score estimation
-        if (currentScore + remainingPossibleTargets <= bestScore) return;
+        // Contribution of a cell to the hash
+        private long cellHash(int bit) {
+            long cellHash = slimeMask.get(bit) ? slimeKeys[bit] : honeyMask.get(bit) ? honeyKeys[bit] : occupiedMask.get(bit) ? skipKeys[bit] : 0;
+            return flyingMachineStemMask.get(bit) ? cellHash ^ stemKeys[bit] : cellHash;
+        }
 
-        int realTargetIdx = sortedTargetIndices[sortedIdx];
-        int targetKey = targets.getInt(realTargetIdx);
-        int targetBit = cellBit(keyRow(targetKey), keyCol(targetKey));
+        /**
+         * @param remainingGain upper bound on how much the score can still grow, see computeTargetGains
+         */
+        private void backtrack(int sortedIdx, int currentOnes, double remainingGain, int currentIslandsCount) {
+            if (limitReached(previousRunsWork + ++backtrackCalls, (backtrackCalls & 0xFFFF) == 0)) {
+                openBounds[sortedIdx] = currentOnes - currentIslandsCount * islandCost + remainingGain;
+                return;
+            }
+            if (backtrackCalls > nodeLimit) {
+                restart = true;
+                return;
+            }
 
-        // Pruning: target already covered?
-        if (slimeMask.get(targetBit) || honeyMask.get(targetBit)) {
-            backtrack(sortedIdx + 1, currentIslands, slimeMask, honeyMask, flyingMachineStemMask, currentOnes, remainingPossibleTargets, currentIslandsCount);
-            return;
-        }
+            double currentScore = currentOnes - (currentIslandsCount * islandCost);
 
-        List<Shape> shapes = possibleShapes.getOrDefault(realTargetIdx, Collections.emptyList());
+            // Base case: all targets considered
+            if (sortedIdx >= targets.size()) {
+                offerSolution(currentScore, this);
+                return;
+            }
 
-        for (Shape shape : shapes) {
-            if (slimeMask.intersects(shape.mask) || honeyMask.intersects(shape.mask)) continue;
+            if (frozenHashes != null && sortedIdx > 0) {
+                long frozenHash = frozenHashes[sortedIdx - 1];
+                for (int bit : leavingCells[sortedIdx - 1]) {
+                    frozenHash ^= cellHash(bit);
+                }
+                frozenHashes[sortedIdx] = frozenHash;
+            }
 
-            // L-shapes contain the flying machine mechanism (pistons + slime/honey).
-            // Even though adjacent islands use different materials, adjacent L-shapes
-            // would cause mechanical interference during piston extension — the
-            // flying machines would push/pull each other's components.
-            if (isAdjacent(flyingMachineStemMask, shape.flyingMachine)) continue;
+            // Pruning: score estimation, allowing for the gap tolerance
+            double bound = currentScore + remainingGain;
+            if (prunable(bound + BOUND_EPSILON, Math.max(bestScore, sharedBestScore()))) return;
 
-            // Check if this shape would be adjacent to both slime and honey islands, which is not allowed
-            boolean slimeAdj = isAdjacent(slimeMask, shape);
-            if (slimeAdj && isAdjacent(honeyMask, shape)) continue;
+            int realTargetIdx = sortedTargetIndices[sortedIdx];
+            int targetKey = targets.getInt(realTargetIdx);
+            int targetBit = cellBit(keyRow(targetKey), keyCol(targetKey));
 
-            byte color = slimeAdj ? HONEY : SLIME;
+            // Pruning: target already covered?
+            if (slimeMask.get(targetBit) || honeyMask.get(targetBit)) {
+                backtrack(sortedIdx + 1, currentOnes, remainingGain, currentIslandsCount);
+                return;
+            }
 
-            currentIslands.add(new Island(shape.cells, shape.mask, shape.flyingMachine, color));
-            if (slimeAdj) honeyMask.or(shape.mask);
-            else slimeMask.or(shape.mask);
-            flyingMachineStemMask.or(shape.flyingMachine.stemMask());
+            // Pruning: same state searched before, from a score at least as good.
+            // Only the cells the rest of the search depends on count, so different pasts can lead to the same state.
+            if (transpositions != null && !transpositions.offer(hash ^ frozenHashes[sortedIdx] ^ depthKeys[sortedIdx], currentScore)) return;
 
-            backtrack(
-                    sortedIdx + 1,
-                    currentIslands,
-                    slimeMask,
-                    honeyMask,
-                    flyingMachineStemMask,
-                    currentOnes + shape.onesCovered,
-                    remainingPossibleTargets - shape.onesCovered,
-                    currentIslandsCount + 1
-            );
+            List<Shape> shapes = possibleShapes.getOrDefault(realTargetIdx, Collections.emptyList());
 
-            if (timedOut) return;
+            if (forkDepth > 0) {
+                forkChildren(sortedIdx, shapes, currentOnes, remainingGain, currentIslandsCount);
+                return;
+            }
 
-            currentIslands.removeLast();
-            if (slimeAdj) honeyMask.andNot(shape.mask);
-            else slimeMask.andNot(shape.mask);
-            flyingMachineStemMask.andNot(shape.flyingMachine.stemMask());
-        }
+            openBounds[sortedIdx] = bound;
+            for (Shape shape : shapes) {
+                byte color = chooseColor(shape);
+                if (color == 0) continue;
 
-        // Option: skip this target
-        // There are no valid shapes that cover this target
-        backtrack(sortedIdx + 1, currentIslands, slimeMask, honeyMask, flyingMachineStemMask, currentOnes, remainingPossibleTargets - 1, currentIslandsCount);
-    }
+                double lostGain = place(shape, color);
+                backtrack(
+                        sortedIdx + 1,
+                        currentOnes + shape.onesCovered(),
+                        remainingGain - lostGain,
+                        currentIslandsCount + 1
+                );
 
-    private void hillClimbSolution() {
-        boolean improved = true;
-        while (improved) {
-            improved = false;
-
-            bestSolution = bestSolution.stream().filter(Objects::nonNull).sorted(Comparator.comparingInt(island -> island.cells().size())).collect(Collectors.toList());
-
-            for (int i = 0; i < bestSolution.size(); i++) {
-                Island island = bestSolution.get(i);
-                if (island == null || island.cells().size() >= MAX_ISLAND_SIZE) continue;
-                BitSet materialMask = island.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask;
-
-                IntSet neighbors = getNeighbors(island.cells());
-                for (int n : neighbors) {
-                    int nr = keyRow(n);
-                    int nc = keyCol(n);
-                    int nBit = cellBit(nr, nc);
-                    if (isAdjacent(materialMask, island.mask(), n)) continue;
-
-                    // Expand island
-                    // Only expand into harvest cells, or else we may expand in useless air directions.
-                    if (grid[nr][nc] == FaceGrid.CELL_HARVEST && !bestSolutionSlimeMask.get(nBit) && !bestSolutionHoneyMask.get(nBit)) {
-                        materialMask.set(nBit);
-
-                        bestSolution.set(i, island.withCell(n, nBit));
-
-                        improved = true;
-                        break;
-                    }
-
-                    // Find the island occupying this neighbor cell.
-                    int j = getIslandIndexAt(nBit);
-                    if (j < 0 || i == j) continue;
-                    Island neighboring = bestSolution.get(j);
-
-                    // Try merging the neighboring island into the current island.
-                    if (tryMerge(i, island, materialMask, j, neighboring)) {
-                        improved = true;
-                        break;
-                    }
-
-                    // Try stealing this cell from the neighboring island.
-                    if (neighboring.cells().size() >= island.cells().size() + 2 && tryTakeCell(i, island, n, nBit, j, neighboring)) {
-                        // This does not count as an improvement.
-                        improved = true;
-                        break;
-                    }
-                }
-            }
-        }
-    }
+                if (restart || stopped()) return;
 
-    private int getIslandIndexAt(int nBit) {
-        for (int j = 0; j < bestSolution.size(); j++) {
-            Island neighboring = bestSolution.get(j);
-            if (neighboring != null && neighboring.mask().get(nBit)) {
-                return j;
+                remove(shape, color);
             }
-        }
-        return -1;
-    }
-
-    /**
-     * Try merging neighbor into the current island, preferring slime if possible.
-     */
-    private boolean tryMerge(int i, Island island, BitSet materialMask, int j, Island neighboring) {
-        if (island.cells().size() + neighboring.cells().size() > MAX_ISLAND_SIZE) return false;
-
-        BitSet neighboringMaterialMask = neighboring.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask;
-        boolean canChangeIsland = island.cells().intStream().noneMatch(key -> isAdjacent(neighboringMaterialMask, neighboring.mask(), key));
-        boolean canChangeNeighbor = neighboring.cells().intStream().noneMatch(key -> isAdjacent(materialMask, island.mask(), key));
-
-        if (island.material() == SLIME && canChangeNeighbor || neighboring.material() == SLIME && canChangeIsland) {
-            return merge(i, island, j, neighboring, SLIME);
-        } else if (island.material() == HONEY && canChangeNeighbor || neighboring.material() == HONEY && canChangeIsland) {
-            return merge(i, island, j, neighboring, HONEY);
-        } else {
-            return false;
-        }
-    }
 
-    private boolean merge(int i, Island island, int j, Island neighboring, byte newMaterial) {
-        if (newMaterial == SLIME) {
-            bestSolutionSlimeMask.or(island.mask());
-            bestSolutionSlimeMask.or(neighboring.mask());
-            bestSolutionHoneyMask.andNot(island.mask());
-            bestSolutionHoneyMask.andNot(neighboring.mask());
-        } else {
-            bestSolutionSlimeMask.andNot(island.mask());
-            bestSolutionSlimeMask.andNot(neighboring.mask());
-            bestSolutionHoneyMask.or(island.mask());
-            bestSolutionHoneyMask.or(neighboring.mask());
+            // Option: skip this target
+            // There are no valid shapes that cover this target
+            // A skipped target stays uncovered, otherwise the same layout would be searched again from a later target.
+            // It is the last branch, so from here on the node is only open through its child.
+            openBounds[sortedIdx] = Double.NEGATIVE_INFINITY;
+            double lostGain = skip(realTargetIdx);
+            backtrack(sortedIdx + 1, currentOnes, remainingGain - lostGain, currentIslandsCount);
+            unskip(realTargetIdx);
         }
 
-        bestSolution.set(i, island.union(neighboring, newMaterial));
-        bestSolution.set(j, null); // Avoid breaking existing indices
+        // Same branches as the serial loop in backtrack, but each one runs as a separate task on a copy of the state.
+        private void forkChildren(int sortedIdx, List<Shape> shapes, int currentOnes, double remainingGain, int currentIslandsCount) {
+            List<BacktrackTask> tasks = new ArrayList<>(shapes.size() + 1);
 
-        return true;
-    }
+            for (Shape shape : shapes) {
+                byte color = chooseColor(shape);
+                if (color == 0) continue;
 
-    /**
-     * Try to steal the provided cell from a neighbor.
-     * This allows other larger islands to expand and does not count as an improvement.
-     *
-     * @param i      the index of the current island we are trying to expand
-     * @param island the current island we are trying to expand
-     * @param n      the cell we are trying to steal from a neighbor
-     * @param nBit   the bit index of the cell we are trying to steal from a neighbor
-     * @return true if we successfully stole the cell and updated the solution, false if we could not steal the cell
-     */
-    private boolean tryTakeCell(int i, Island island, int n, int nBit, int j, Island neighboring) {
-        if (neighboring.cells().size() <= 4) return false;
-
-        // Create the new neighboring island state after losing this cell.
-        IntSet neighborNewCells = new IntOpenHashSet(neighboring.cells());
-        BitSet neighborNewMask = (BitSet) neighboring.mask().clone();
-        FlyingMachine neighborFlyingMachine = neighboring.flyingMachine();
-        neighborNewCells.remove(n);
-        neighborNewMask.clear(nBit);
-        neighborNewCells = IntSets.unmodifiable(neighborNewCells);
-
-        // If we steal part of the neighbor's flying machine.
-        if (neighborFlyingMachine.stemMask().get(nBit) || neighborFlyingMachine.stopperCell() == n) {
-            // Try to find a new flying machine.
-            neighborFlyingMachine = findFlyingMachine(neighborNewCells);
-            if (neighborFlyingMachine == null) {
-                return false;
+                double lostGain = place(shape, color);
+                tasks.add(new BacktrackTask(fork(), sortedIdx + 1,
+                        currentOnes + shape.onesCovered(), remainingGain - lostGain, currentIslandsCount + 1));
+                remove(shape, color);
             }
-        }
 
-        // Check the neighbor is still connected after losing this cell.
-        if (!isConnected(neighborNewCells)) return false;
+            int realTargetIdx = sortedTargetIndices[sortedIdx];
+            double lostGain = skip(realTargetIdx);
+            tasks.add(new BacktrackTask(fork(), sortedIdx + 1, currentOnes, remainingGain - lostGain, currentIslandsCount));
+            unskip(realTargetIdx);
 
-        // Update the material masks to reflect the cell transfer.
-        if (island.material() == SLIME) {
-            bestSolutionSlimeMask.set(nBit);
-            bestSolutionHoneyMask.clear(nBit);
-        } else {
-            bestSolutionSlimeMask.clear(nBit);
-            bestSolutionHoneyMask.set(nBit);
+            ForkJoinTask.invokeAll(tasks);
         }
 
-        // Create the new island state after stealing this cell.
-        // Update the island variable for the next iteration of the neighbor loop.
-        bestSolution.set(i, island.withCell(n, nBit));
-        bestSolution.set(j, new Island(neighborNewCells, neighborNewMask, neighborFlyingMachine, neighboring.material()));
+        /**
+         * @return the material the shape would get if placed now, or 0 if it cannot be placed
+         */
+        private byte chooseColor(Shape shape) {
+            if (occupiedMask.intersects(shape.mask())) return 0;
 
-        return true;
-    }
+            // L-shapes contain the flying machine mechanism (pistons + slime/honey).
+            // Even though adjacent islands use different materials, adjacent L-shapes
+            // would cause mechanical interference during piston extension — the
+            // flying machines would push/pull each other's components.
+            if (isAdjacent(flyingMachineStemMask, shape.flyingMachine())) return 0;
 
-    private boolean isAdjacent(BitSet flyingMachineStemMask, FlyingMachine newFlyingMachine) {
-        return flyingMachineStemMask.intersects(newFlyingMachine.stemNeighborsMask());
-    }
+            // Check if this shape would be adjacent to both slime and honey islands, which is not allowed
+            boolean slimeAdj = isAdjacent(slimeMask, shape);
+            if (slimeAdj && isAdjacent(honeyMask, shape)) return 0;
 
-    private boolean isAdjacent(BitSet cellsMask, Shape newShape) {
-        return cellsMask.intersects(newShape.neighborsMask);
-    }
+            return slimeAdj ? HONEY : SLIME;
+        }
 
-    private boolean isAdjacent(BitSet cellsMask, BitSet excluding, int key) {
-        for (var dir : DIRECTIONS) {
-            int adj = key + dir;
-            int nr = keyRow(adj);
-            int nc = keyCol(adj);
+        /**
+         * @return how much the upper bound drops, i.e. the gain of the covered targets
+         */
+        private double place(Shape shape, byte color) {
+            currentIslands.add(new Island(shape.cells(), shape.mask(), shape.flyingMachine(), color));
+            if (color == HONEY) honeyMask.or(shape.mask());
+            else slimeMask.or(shape.mask());
+            occupiedMask.or(shape.mask());
+            flyingMachineStemMask.or(shape.flyingMachine().stemMask());
+            if (transpositions != null) hash ^= shapeHash(shape, color);
+            return shapeGain(shape);
+        }
 
-            if (nr >= 0 && nr < rows && nc >= 0 && nc < cols) {
-                int bit = cellBit(nr, nc);
-                if (cellsMask.get(bit) && !excluding.get(bit)) {
-                    return true;
-                }
-            }
+        // Like place, but for leaving a target uncovered.
+        private double skip(int targetIdx) {
+            occupiedMask.set(targetBit(targetIdx));
+            if (transpositions != null) hash ^= skipKeys[targetBit(targetIdx)];
+            return targetGains[targetIdx];
+        }
+
+        private void unskip(int targetIdx) {
+            occupiedMask.clear(targetBit(targetIdx));
+            if (transpositions != null) hash ^= skipKeys[targetBit(targetIdx)];
+        }
+
+        private void remove(Shape shape, byte color) {
+            currentIslands.removeLast();
+            if (color == HONEY) honeyMask.andNot(shape.mask());
+            else slimeMask.andNot(shape.mask());
+            occupiedMask.andNot(shape.mask());
+            flyingMachineStemMask.andNot(shape.flyingMachine().stemMask());
+            if (transpositions != null) hash ^= shapeHash(shape, color);
         }
-        return false;
     }
 
-    private boolean isConnected(IntSet cells) {
-        if (cells.isEmpty()) return true;
-
-        IntSet visited = new IntOpenHashSet(cells.size());
-        IntPriorityQueue queue = new IntArrayFIFOQueue(cells.size());
-        int start = cells.iterator().nextInt();
-        queue.enqueue(start);
-        visited.add(start);
-
-        while (!queue.isEmpty()) {
-            int current = queue.dequeueInt();
-            for (int dir : DIRECTIONS) {
-                int neighbor = current + dir;
-                if (cells.contains(neighbor) && visited.add(neighbor)) {
-                    queue.enqueue(neighbor);
-                }
-            }
+    // Fork-join tasks are serializable, but these are never serialized
+    @SuppressWarnings("serial")
+    private final class BacktrackTask extends RecursiveAction {
+        private final Search search;
+        private final int sortedIdx;
+        private final int currentOnes;
+        private final double remainingGain;
+        private final int currentIslandsCount;
+
+        private BacktrackTask(Search search, int sortedIdx, int currentOnes, double remainingGain, int currentIslandsCount) {
+            this.search = search;
+            this.sortedIdx = sortedIdx;
+            this.currentOnes = currentOnes;
+            this.remainingGain = remainingGain;
+            this.currentIslandsCount = currentIslandsCount;
         }
 
-        return visited.size() == cells.size();
+        @Override
+        protected void compute() {
+            search.backtrack(sortedIdx, currentOnes, remainingGain, currentIslandsCount);
+        }
     }
+
 }
@@ -0,0 +1,419 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/*
+ * Face solver using beam search, for faces too large for the exact searches to get far.
+ *
+ * Sweeps the targets line by line along the longer side of the face, so the placed islands form one front.
+ * At every target, each kept partial layout is extended with every shape that covers it, or leaves it uncovered;
+ * of all extensions, the beamWidth ones with the highest score plus bound (the per-target gains of the
+ * backtracking solver) are kept. Extensions that agree on every cell the rest of the sweep depends on are the same
+ * state, and only the best of them is kept. Every partial layout is a valid layout, so the best one so far is
+ * always at hand.
+ *
+ * The time grows linearly with the number of targets and with beamWidth. The search is exact if no extension is
+ * ever dropped; otherwise it stops with TRUNCATED, the best dropped bound is its
+ * upper bound, and the rest of the time goes to the large neighbourhood search like after any other search.
+ */
+public class BeamFaceSolver extends AbstractFaceSolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("BeamFaceSolver");
+
+    // Tolerance for the floating point bound, so rounding can never prune a strictly better branch.
+    private static final double BOUND_EPSILON = 1e-9;
+
+    // Color of an extension that leaves the target uncovered
+    private static final byte SKIP = -1;
+
+    private final int beamWidth;
+
+    // Target indices in sweep order
+    private int[] order;
+    // Profitable shapes per target, most harvest first
+    private List<List<Shape>> shapesOf;
+    // Upper bound on the score contribution of covering each target, see BacktrackingFaceSolver.computeTargetGains
+    private double[] targetGains;
+    // Per sweep position: cells that no target from the next position on can cover or touch
+    private int[][] leavingCells;
+    private SolverWorkspace workspace;
+    // Masks of dropped states, for reuse
+    private final ArrayDeque<BitSet> spareMasks = new ArrayDeque<>();
+
+    private double bestScore;
+    private Step bestSteps;
+    private long work;
+
+    // The islands of a partial layout, newest first
+    private record Step(Step previous, Shape shape, byte color) {}
+
+    private static final class State {
+        private final BitSet slimeMask;
+        private final BitSet honeyMask;
+        private final BitSet stemMask;
+        // Cells of all placed islands, plus the skipped targets
+        private final BitSet occupiedMask;
+        private double score;
+        private double remainingGain;
+        // Zobrist hash of the masks, and of the cells the rest of the sweep no longer depends on
+        private long hash;
+        private long frozenHash;
+        private Step steps;
+
+        private State(BitSet slimeMask, BitSet honeyMask, BitSet stemMask, BitSet occupiedMask) {
+            this.slimeMask = slimeMask;
+            this.honeyMask = honeyMask;
+            this.stemMask = stemMask;
+            this.occupiedMask = occupiedMask;
+        }
+    }
+
+    // Extensions of the states at one sweep position, as parallel arrays
+    private int candidateCount;
+    private int[] parents = new int[16];
+    private Shape[] candidateShapes = new Shape[16];
+    private byte[] colors = new byte[16];
+    private double[] scores = new double[16];
+    private double[] remainingGains = new double[16];
+    private long[] frozenHashes = new long[16];
+
+    public BeamFaceSolver(FaceGrid input, SolverConfig config) {
+        super(input, config);
+        beamWidth = config.getBeamWidth();
+    }
+
+    @Override
+    public SolverResult solve(FaceGrid input, SolverConfig config) {
+        startTime = System.currentTimeMillis();
+
+        findTargets();
+        if (targets.isEmpty()) {
+            LOGGER.info("No harvest cells to solve");
+            return SolverResult.empty(input);
+        }
+
+        LOGGER.info("Solving {}x{} grid with {} harvest cells, beam width {}", rows, cols, targets.size(), beamWidth);
+
+        precomputeShapes();
+        prepare();
+        workspace = SolverWorkspace.acquire(rows * cols);
+        try {
+            search();
+        } finally {
+            workspace.release();
+            workspace = null;
+        }
+        bestSolution = islands(bestSteps);
+        bestSolutionSlimeMask = new BitSet();
+        bestSolutionHoneyMask = new BitSet();
+        for (Island island : bestSolution) {
+            (island.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask).or(island.mask());
+        }
+        improveSolution();
+
+        long solveTime = System.currentTimeMillis() - startTime;
+        return buildResult(input, bestSolution, solveTime);
+    }
+
+    private void prepare() {
+        // Targets are found row by row; along the longer side, the front is across the shorter one
+        order = new int[targets.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        if (cols > rows) {
+            IntArrays.mergeSort(order, (a, b) -> {
+                int keyA = targets.getInt(a);
+                int keyB = targets.getInt(b);
+                int byCol = Integer.compare(keyCol(keyA), keyCol(keyB));
+                return byCol != 0 ? byCol : Integer.compare(keyRow(keyA), keyRow(keyB));
+            });
+        }
+
+        shapesOf = new ArrayList<>(targets.size());
+        targetGains = new double[targets.size()];
+        for (int tIdx = 0; tIdx < targets.size(); tIdx++) {
+            List<Shape> shapes = new ArrayList<>();
+            double gain = 0;
+            for (Shape shape : possibleShapes.getOrDefault(tIdx, Collections.emptyList())) {
+                if (shape.onesCovered() <= islandCost) continue;
+                shapes.add(shape);
+                gain = Math.max(gain, (shape.onesCovered() - islandCost) / shape.onesCovered());
+            }
+            shapes.sort(Comparator.comparingInt(Shape::onesCovered).reversed());
+            shapesOf.add(shapes);
+            targetGains[tIdx] = gain;
+        }
+
+        leavingCells = new int[order.length][];
+        BitSet relevant = new BitSet(rows * cols);
+        for (int pos = order.length - 1; pos >= 0; pos--) {
+            BitSet before = (BitSet) relevant.clone();
+            relevant.set(targetBit(order[pos]));
+            for (Shape shape : shapesOf.get(order[pos])) {
+                relevant.or(shape.mask());
+                relevant.or(shape.neighborsMask());
+            }
+            BitSet leaving = (BitSet) relevant.clone();
+            leaving.andNot(before);
+            leavingCells[pos] = leaving.stream().toArray();
+        }
+    }
+
+    private int targetBit(int targetIdx) {
+        int key = targets.getInt(targetIdx);
+        return cellBit(keyRow(key), keyCol(key));
+    }
+
+    private void search() {
+        State root = newState();
+        for (double gain : targetGains) {
+            root.remainingGain += gain;
+        }
+        double maxGain = root.remainingGain;
+        List<State> beam = List.of(root);
+        bestScore = 0;
+        // Best bound of the extensions dropped to keep the beam narrow
+        double droppedBound = Double.NEGATIVE_INFINITY;
+
+        Long2IntOpenHashMap seen = new Long2IntOpenHashMap();
+        seen.defaultReturnValue(-1);
+        for (int pos = 0; pos < order.length; pos++) {
+            candidateCount = 0;
+            seen.clear();
+            expand(beam, pos, seen);
+            if (stopped()) {
+                for (State state : beam) {
+                    droppedBound = Math.max(droppedBound, state.score + state.remainingGain);
+                }
+                break;
+            }
+
+            // Highest score plus bound first, ties in the order they were found
+            int[] ranked = new int[candidateCount];
+            for (int i = 0; i < ranked.length; i++) {
+                ranked[i] = i;
+            }
+            IntArrays.mergeSort(ranked, (a, b) -> Double.compare(scores[b] + remainingGains[b], scores[a] + remainingGains[a]));
+            int kept = Math.min(beamWidth, ranked.length);
+            for (int i = kept; i < ranked.length; i++) {
+                droppedBound = Math.max(droppedBound, scores[ranked[i]] + remainingGains[ranked[i]]);
+            }
+
+            List<State> next = new ArrayList<>(kept);
+            for (int i = 0; i < kept; i++) {
+                next.add(extend(beam.get(parents[ranked[i]]), ranked[i], pos));
+            }
+            for (State state : beam) {
+                release(state);
+            }
+            beam = next;
+
+            // Every partial layout is a layout: the first one has the highest score plus bound, not the best score
+            State best = null;
+            for (State state : beam) {
+                if (state.score > bestScore && (best == null || state.score > best.score)) best = state;
+            }
+            if (best != null) {
+                bestScore = best.score;
+                bestSteps = best.steps;
+                publishIncumbent(islands(bestSteps), bestScore);
+            }
+        }
+
+        if (!stopped() && droppedBound > Math.max(bestScore, sharedBestScore()) + BOUND_EPSILON) {
+            LOGGER.debug("Beam dropped layouts bounded by {}", droppedBound);
+            stop(SolverResult.StopReason.TRUNCATED);
+        }
+        LOGGER.debug("Initial upper bound: {}, best score {} after {} extensions", maxGain, bestScore, work);
+        recordBound(Math.max(bestScore, sharedBestScore()), droppedBound);
+    }
+
+    // Adds the extensions of every state at the sweep position, keeping only the best of each distinct state.
+    private void expand(List<State> beam, int pos, Long2IntOpenHashMap seen) {
+        int targetIdx = order[pos];
+        int bit = targetBit(targetIdx);
+        double best = Math.max(bestScore, sharedBestScore());
+
+        for (int parent = 0; parent < beam.size(); parent++) {
+            State state = beam.get(parent);
+            if (limitReached(++work, (work & 0xFFF) == 0)) return;
+
+            // Already covered: nothing to decide
+            if (state.slimeMask.get(bit) || state.honeyMask.get(bit)) {
+                offer(seen, state, parent, null, (byte) 0, pos, state.score, state.remainingGain);
+                continue;
+            }
+
+            for (Shape shape : shapesOf.get(targetIdx)) {
+                byte color = chooseColor(state, shape);
+                if (color == 0) continue;
+
+                double score = state.score + shape.onesCovered() - islandCost;
+                double remainingGain = state.remainingGain - shapeGain(shape);
+                if (prunable(score + remainingGain + BOUND_EPSILON, best)) continue;
+                offer(seen, state, parent, shape, color, pos, score, remainingGain);
+            }
+
+            double remainingGain = state.remainingGain - targetGains[targetIdx];
+            if (prunable(state.score + remainingGain + BOUND_EPSILON, best)) continue;
+            offer(seen, state, parent, null, SKIP, pos, state.score, remainingGain);
+        }
+    }
+
+    /**
+     * Adds an extension of a state: placing a shape, leaving the target uncovered (color SKIP), or neither.
+     * An extension the same as an earlier one on every cell that still matters replaces it only if it scores higher.
+     */
+    private void offer(Long2IntOpenHashMap seen, State state, int parent, Shape shape, byte color, int pos,
+                       double score, double remainingGain) {
+        int skipBit = color == SKIP ? targetBit(order[pos]) : -1;
+        long frozenHash = state.frozenHash;
+        for (int bit : leavingCells[pos]) {
+            frozenHash ^= cellHash(state, shape, color, skipBit, bit);
+        }
+        long hash = state.hash;
+        if (shape != null) hash ^= shapeHash(shape, color);
+        if (skipBit >= 0) hash ^= workspace.skipKeys[skipBit];
+
+        int existing = seen.get(hash ^ frozenHash);
+        if (existing >= 0) {
+            if (scores[existing] < score) set(existing, parent, shape, color, score, remainingGain, frozenHash);
+            return;
+        }
+        if (candidateCount == parents.length) grow();
+        seen.put(hash ^ frozenHash, candidateCount);
+        set(candidateCount++, parent, shape, color, score, remainingGain, frozenHash);
+    }
+
+    private void set(int candidate, int parent, Shape shape, byte color, double score, double remainingGain, long frozenHash) {
+        parents[candidate] = parent;
+        candidateShapes[candidate] = shape;
+        colors[candidate] = color;
+        scores[candidate] = score;
+        remainingGains[candidate] = remainingGain;
+        frozenHashes[candidate] = frozenHash;
+    }
+
+    private void grow() {
+        int size = parents.length * 2;
+        parents = Arrays.copyOf(parents, size);
+        candidateShapes = Arrays.copyOf(candidateShapes, size);
+        colors = Arrays.copyOf(colors, size);
+        scores = Arrays.copyOf(scores, size);
+        remainingGains = Arrays.copyOf(remainingGains, size);
+        frozenHashes = Arrays.copyOf(frozenHashes, size);
+    }
+
+    // The state a kept extension leads to
+    private State extend(State parent, int candidate, int pos) {
+        State state = newState();
+        state.slimeMask.or(parent.slimeMask);
+        state.honeyMask.or(parent.honeyMask);
+        state.stemMask.or(parent.stemMask);
+        state.occupiedMask.or(parent.occupiedMask);
+        state.hash = parent.hash;
+        state.steps = parent.steps;
+
+        Shape shape = candidateShapes[candidate];
+        if (shape != null) {
+            byte color = colors[candidate];
+            (color == HONEY ? state.honeyMask : state.slimeMask).or(shape.mask());
+            state.stemMask.or(shape.flyingMachine().stemMask());
+            state.occupiedMask.or(shape.mask());
+            state.hash ^= shapeHash(shape, color);
+            state.steps = new Step(parent.steps, shape, color);
+        } else if (colors[candidate] == SKIP) {
+            int bit = targetBit(order[pos]);
+            state.occupiedMask.set(bit);
+            state.hash ^= workspace.skipKeys[bit];
+        }
+        state.score = scores[candidate];
+        state.remainingGain = remainingGains[candidate];
+        state.frozenHash = frozenHashes[candidate];
+        return state;
+    }
+
+    /**
+     * @return the material the shape would get if placed in the state, or 0 if it cannot be placed
+     */
+    private static byte chooseColor(State state, Shape shape) {
+        if (state.occupiedMask.intersects(shape.mask())) return 0;
+        // Flying machines of different islands cannot be adjacent
+        if (state.stemMask.intersects(shape.flyingMachine().stemNeighborsMask())) return 0;
+
+        boolean slimeAdj = state.slimeMask.intersects(shape.neighborsMask());
+        if (slimeAdj && state.honeyMask.intersects(shape.neighborsMask())) return 0;
+        return slimeAdj ? HONEY : SLIME;
+    }
+
+    private double shapeGain(Shape shape) {
+        double gain = 0;
+        for (int ti : shape.targetIndices()) {
+            gain += targetGains[ti];
+        }
+        return gain;
+    }
+
+    // Contribution of a cell to the hash of the state after the extension
+    private long cellHash(State state, Shape shape, byte color, int skipBit, int bit) {
+        long cellHash;
+        if (shape != null && shape.mask().get(bit)) {
+            cellHash = (color == HONEY ? workspace.honeyKeys : workspace.slimeKeys)[bit];
+        } else {
+            cellHash = state.slimeMask.get(bit) ? workspace.slimeKeys[bit] : state.honeyMask.get(bit) ? workspace.honeyKeys[bit]
+                    : state.occupiedMask.get(bit) || bit == skipBit ? workspace.skipKeys[bit] : 0;
+        }
+        boolean stem = state.stemMask.get(bit) || shape != null && shape.flyingMachine().stemMask().get(bit);
+        return stem ? cellHash ^ workspace.stemKeys[bit] : cellHash;
+    }
+
+    private long shapeHash(Shape shape, byte color) {
+        long[] materialKeys = color == HONEY ? workspace.honeyKeys : workspace.slimeKeys;
+        long hash = 0;
+        BitSet mask = shape.mask();
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            hash ^= materialKeys[bit];
+        }
+        BitSet stemMask = shape.flyingMachine().stemMask();
+        for (int bit = stemMask.nextSetBit(0); bit >= 0; bit = stemMask.nextSetBit(bit + 1)) {
+            hash ^= workspace.stemKeys[bit];
+        }
+        return hash;
+    }
+
+    private State newState() {
+        return new State(spareMask(), spareMask(), spareMask(), spareMask());
+    }
+
+    private BitSet spareMask() {
+        BitSet mask = spareMasks.poll();
+        return mask != null ? mask : new BitSet(rows * cols);
+    }
+
+    private void release(State state) {
+        release(state.slimeMask);
+        release(state.honeyMask);
+        release(state.stemMask);
+        release(state.occupiedMask);
+    }
+
+    private void release(BitSet mask) {
+        mask.clear();
+        spareMasks.push(mask);
+    }
+
+    private static List<Island> islands(Step steps) {
+        List<Island> islands = new ArrayList<>();
+        for (Step step = steps; step != null; step = step.previous()) {
+            islands.add(new Island(step.shape().cells(), step.shape().mask(), step.shape().flyingMachine(), step.color()));
+        }
+        Collections.reverse(islands);
+        return islands;
+    }
+}
@@ -0,0 +1,32 @@
+package pl.kosma.geodesy.solver;
+
+/**
+ * Stops a running solve early. Solvers poll it alongside their timeout and return the best solution found so far.
+ * One token is shared by everything a single solve runs, including sub-grids and worker threads.
+ */
+public final class CancellationToken {
+
+    private final CancellationToken parent;
+    private volatile boolean cancelled;
+
+    public CancellationToken() {
+        this(null);
+    }
+
+    private CancellationToken(CancellationToken parent) {
+        this.parent = parent;
+    }
+
+    // A token that is cancelled with this one, but can also be cancelled on its own.
+    public CancellationToken child() {
+        return new CancellationToken(this);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || parent != null && parent.isCancelled();
+    }
+}
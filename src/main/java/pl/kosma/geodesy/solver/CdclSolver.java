@@ -0,0 +1,652 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Small conflict-driven clause learning SAT solver, with native support for linear pseudo-boolean
+ * constraints: sum(weight * literal) >= bound.
+ *
+ * Literals are 2 * var for the positive and 2 * var + 1 for the negative literal of a variable.
+ * - two watched literals per clause
+ * - VSIDS branching on a binary heap, with phase saving
+ * - first UIP learning with local clause minimization
+ * - Luby restarts, and halving of the learnt clauses by activity at restarts
+ *
+ * Linear constraints are propagated with a slack counter. Their reasons are only built when conflict
+ * analysis needs them, from the heaviest false literals first, so they stay short.
+ * Their bounds may only be raised between calls to solve(): everything learnt under a lower bound stays valid.
+ */
+final class CdclSolver {
+
+    enum Result {SATISFIABLE, UNSATISFIABLE, UNKNOWN}
+
+    // Reasons and conflicts are clause indices, or -2 - index for linear constraints.
+    private static final int NO_REASON = -1;
+    private static final int NO_CONFLICT = -1;
+
+    private static final byte TRUE = 1;
+    private static final byte FALSE = -1;
+    private static final byte UNDEF = 0;
+
+    private static final int RESTART_UNIT = 100;
+    private static final double VAR_DECAY = 0.95;
+    private static final double CLAUSE_DECAY = 0.999;
+
+    // Variable state
+    private int numVars;
+    private byte[] assigns = new byte[0];
+    private int[] levels = new int[0];
+    private int[] reasons = new int[0];
+    private int[] trailPos = new int[0];
+    private double[] activity = new double[0];
+    private boolean[] phase = new boolean[0];
+    private boolean[] seen = new boolean[0];
+    private IntArrayList[] watches = new IntArrayList[0];  // Indexed by literal: clauses watching it
+    private double varInc = 1;
+
+    // Clause database
+    private ObjectArrayList<int[]> clauses = new ObjectArrayList<>();
+    private BooleanArrayList learnt = new BooleanArrayList();
+    private DoubleArrayList clauseActivity = new DoubleArrayList();
+    private int learntCount;
+    private double maxLearnts;
+    private double clauseInc = 1;
+
+    // Trail
+    private int[] trail = new int[0];
+    private int trailSize;
+    private int qhead;
+    private final IntArrayList trailLim = new IntArrayList();
+
+    // VSIDS heap
+    private int[] heap = new int[0];
+    private int[] heapIndex = new int[0];
+    private int heapSize;
+
+    private final ObjectArrayList<LinearConstraint> linearConstraints = new ObjectArrayList<>();
+
+    private boolean unsat;
+    private boolean[] model;
+    private long conflicts;
+
+    private final IntArrayList reasonLits = new IntArrayList();
+    private final IntArrayList analyzeToClear = new IntArrayList();
+
+    static int literal(int var, boolean positive) {
+        return 2 * var + (positive ? 0 : 1);
+    }
+
+    int newVariable() {
+        int v = numVars++;
+        if (v == assigns.length) {
+            int capacity = Math.max(16, 2 * v);
+            assigns = Arrays.copyOf(assigns, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            reasons = Arrays.copyOf(reasons, capacity);
+            trailPos = Arrays.copyOf(trailPos, capacity);
+            activity = Arrays.copyOf(activity, capacity);
+            phase = Arrays.copyOf(phase, capacity);
+            seen = Arrays.copyOf(seen, capacity);
+            trail = Arrays.copyOf(trail, capacity);
+            heap = Arrays.copyOf(heap, capacity);
+            heapIndex = Arrays.copyOf(heapIndex, capacity);
+            watches = Arrays.copyOf(watches, 2 * capacity);
+        }
+        for (LinearConstraint constraint : linearConstraints) {
+            constraint.grow(2 * assigns.length);
+        }
+        reasons[v] = NO_REASON;
+        watches[2 * v] = new IntArrayList();
+        watches[2 * v + 1] = new IntArrayList();
+        heapIndex[v] = -1;
+        heapInsert(v);
+        return v;
+    }
+
+    /**
+     * Makes the first descent branch on the variable early, trying the given value first.
+     * Both are overridden by VSIDS and phase saving once the search gets going.
+     *
+     * @param priority initial activity, in units of one conflict bump
+     */
+    void suggest(int var, boolean value, double priority) {
+        phase[var] = value;
+        activity[var] = priority * varInc;
+        if (heapIndex[var] >= 0) percolateUp(heapIndex[var]);
+    }
+
+    int variableCount() {
+        return numVars;
+    }
+
+    int clauseCount() {
+        return clauses.size() - learntCount;
+    }
+
+    long conflictCount() {
+        return conflicts;
+    }
+
+    /**
+     * Adds a clause. Only allowed before solving or between calls to solve().
+     * The array is reordered and may be kept by the solver.
+     *
+     * @return false if the problem became trivially unsatisfiable
+     */
+    boolean addClause(int... lits) {
+        if (unsat) return false;
+
+        IntArrays.quickSort(lits);
+        int size = 0;
+        int previous = -1;
+        for (int lit : lits) {
+            if (lit == previous) continue;
+            // Sorting puts x and -x next to each other.
+            if ((lit ^ 1) == previous || value(lit) == TRUE) return true;
+            previous = lit;
+            if (value(lit) == UNDEF) lits[size++] = lit;
+        }
+
+        if (size == 0) {
+            unsat = true;
+        } else if (size == 1) {
+            enqueue(lits[0], NO_REASON);
+            unsat = propagate() != NO_CONFLICT;
+        } else {
+            attach(size == lits.length ? lits : Arrays.copyOf(lits, size), false);
+        }
+        return !unsat;
+    }
+
+    /**
+     * Adds sum(weights[i] * lits[i]) >= bound. The bound starts at 0, so the constraint is satisfied
+     * until it is raised. Every literal may appear at most once, and weights must be positive.
+     *
+     * @return the index of the constraint, for {@link #setBound}
+     */
+    int addLinearConstraint(int[] lits, long[] weights) {
+        linearConstraints.add(new LinearConstraint(lits, weights, 2 * assigns.length));
+        LinearConstraint constraint = linearConstraints.top();
+        for (int i = 0; i < constraint.lits.length; i++) {
+            if (value(constraint.lits[i]) == FALSE) constraint.slack -= constraint.weights[i];
+        }
+        return linearConstraints.size() - 1;
+    }
+
+    void setBound(int index, long bound) {
+        LinearConstraint constraint = linearConstraints.get(index);
+        constraint.slack -= bound - constraint.bound;
+        constraint.bound = bound;
+    }
+
+    boolean modelValue(int var) {
+        return model[var];
+    }
+
+    Result solve(BooleanSupplier stop) {
+        model = null;
+        if (unsat) return Result.UNSATISFIABLE;
+        if (propagateLinearConstraints() != NO_CONFLICT || propagate() != NO_CONFLICT) {
+            unsat = true;
+            return Result.UNSATISFIABLE;
+        }
+
+        maxLearnts = Math.max(maxLearnts, clauseCount() / 3.0 + 1000);
+        IntArrayList learntClause = new IntArrayList();
+        for (int restarts = 0; ; restarts++) {
+            Result result = search(RESTART_UNIT * luby(restarts), stop, learntClause);
+            cancelUntil(0);
+            if (result != null) return result;
+
+            if (learntCount >= maxLearnts) {
+                reduceDatabase();
+                maxLearnts *= 1.1;
+            }
+        }
+    }
+
+    /**
+     * @return the result, or null when the conflict budget runs out and the search should restart
+     */
+    private Result search(long conflictBudget, BooleanSupplier stop, IntArrayList learntClause) {
+        long budgetEnd = conflicts + conflictBudget;
+        int steps = 0;
+        while (true) {
+            if ((++steps & 0xFF) == 0 && stop.getAsBoolean()) return Result.UNKNOWN;
+
+            int conflict = propagate();
+            if (conflict != NO_CONFLICT) {
+                conflicts++;
+                if (decisionLevel() == 0) {
+                    unsat = true;
+                    return Result.UNSATISFIABLE;
+                }
+
+                int backtrackLevel = analyze(conflict, learntClause);
+                cancelUntil(backtrackLevel);
+                if (learntClause.size() == 1) {
+                    enqueue(learntClause.getInt(0), NO_REASON);
+                } else {
+                    int ref = attach(learntClause.toIntArray(), true);
+                    bumpClause(ref);
+                    enqueue(learntClause.getInt(0), ref);
+                }
+
+                varInc /= VAR_DECAY;
+                clauseInc /= CLAUSE_DECAY;
+                continue;
+            }
+
+            if (conflicts >= budgetEnd) return null;
+
+            int next = pickBranch();
+            if (next < 0) {
+                model = new boolean[numVars];
+                for (int v = 0; v < numVars; v++) model[v] = assigns[v] == TRUE;
+                return Result.SATISFIABLE;
+            }
+            trailLim.add(trailSize);
+            enqueue(next, NO_REASON);
+        }
+    }
+
+    private int decisionLevel() {
+        return trailLim.size();
+    }
+
+    private byte value(int lit) {
+        byte v = assigns[lit >> 1];
+        return (lit & 1) == 0 ? v : (byte) -v;
+    }
+
+    private void enqueue(int lit, int reason) {
+        int v = lit >> 1;
+        assigns[v] = (lit & 1) == 0 ? TRUE : FALSE;
+        levels[v] = decisionLevel();
+        reasons[v] = reason;
+        trailPos[v] = trailSize;
+        trail[trailSize++] = lit;
+    }
+
+    private int attach(int[] clause, boolean isLearnt) {
+        int ref = clauses.size();
+        clauses.add(clause);
+        learnt.add(isLearnt);
+        clauseActivity.add(0);
+        if (isLearnt) learntCount++;
+        watches[clause[0]].add(ref);
+        watches[clause[1]].add(ref);
+        return ref;
+    }
+
+    private void cancelUntil(int level) {
+        if (decisionLevel() <= level) return;
+
+        int limit = trailLim.getInt(level);
+        for (int c = trailSize - 1; c >= limit; c--) {
+            int lit = trail[c];
+            int v = lit >> 1;
+            // Only terms that propagate() has already seen were taken off the slack.
+            if (c < qhead) {
+                for (LinearConstraint constraint : linearConstraints) {
+                    int term = constraint.termOf[lit ^ 1];
+                    if (term >= 0) constraint.slack += constraint.weights[term];
+                }
+            }
+            phase[v] = (lit & 1) == 0;
+            assigns[v] = UNDEF;
+            reasons[v] = NO_REASON;
+            if (heapIndex[v] < 0) heapInsert(v);
+        }
+        trailSize = limit;
+        qhead = limit;
+        trailLim.size(level);
+    }
+
+    private int pickBranch() {
+        while (heapSize > 0) {
+            int v = heapRemoveMax();
+            if (assigns[v] == UNDEF) return literal(v, phase[v]);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the conflicting clause or linear constraint, or NO_CONFLICT
+     */
+    private int propagate() {
+        while (qhead < trailSize) {
+            int falseLit = trail[qhead++] ^ 1;
+
+            // Every constraint takes the term off its slack before any of them can return a conflict, since
+            // cancelUntil puts it back in all of them.
+            for (LinearConstraint constraint : linearConstraints) {
+                int term = constraint.termOf[falseLit];
+                if (term >= 0) constraint.slack -= constraint.weights[term];
+            }
+            for (int index = 0; index < linearConstraints.size(); index++) {
+                LinearConstraint constraint = linearConstraints.get(index);
+                if (constraint.termOf[falseLit] >= 0 && !propagate(constraint, -2 - index)) return -2 - index;
+            }
+
+            IntArrayList ws = watches[falseLit];
+            int[] refs = ws.elements();
+            int size = ws.size();
+            int i = 0;
+            int j = 0;
+            while (i < size) {
+                int ref = refs[i++];
+                int[] clause = clauses.get(ref);
+                if (clause[0] == falseLit) {
+                    clause[0] = clause[1];
+                    clause[1] = falseLit;
+                }
+                if (value(clause[0]) == TRUE) {
+                    refs[j++] = ref;
+                    continue;
+                }
+
+                // Look for a new literal to watch
+                boolean moved = false;
+                for (int k = 2; k < clause.length; k++) {
+                    if (value(clause[k]) != FALSE) {
+                        clause[1] = clause[k];
+                        clause[k] = falseLit;
+                        watches[clause[1]].add(ref);
+                        moved = true;
+                        break;
+                    }
+                }
+                if (moved) continue;
+
+                refs[j++] = ref;
+                if (value(clause[0]) == FALSE) {
+                    while (i < size) refs[j++] = refs[i++];
+                    ws.size(j);
+                    return ref;
+                }
+                enqueue(clause[0], ref);
+            }
+            ws.size(j);
+        }
+        return NO_CONFLICT;
+    }
+
+    private int propagateLinearConstraints() {
+        for (int index = 0; index < linearConstraints.size(); index++) {
+            if (!propagate(linearConstraints.get(index), -2 - index)) return -2 - index;
+        }
+        return NO_CONFLICT;
+    }
+
+    /**
+     * @return false on conflict
+     */
+    private boolean propagate(LinearConstraint constraint, int reason) {
+        if (constraint.slack < 0) return false;
+        // A term heavier than the slack cannot be false anymore.
+        for (int i = 0; i < constraint.lits.length && constraint.weights[i] > constraint.slack; i++) {
+            if (value(constraint.lits[i]) == UNDEF) enqueue(constraint.lits[i], reason);
+        }
+        return true;
+    }
+
+    /**
+     * Fills reasonLits with the clause behind a conflict (implied = -1) or behind the implication of a literal.
+     * Reasons of linear constraints are the implied literal plus the heaviest terms that were false before it,
+     * just enough of them that the remaining terms cannot reach the bound.
+     */
+    private void explain(int ref, int implied) {
+        reasonLits.clear();
+        if (ref >= 0) {
+            reasonLits.addElements(0, clauses.get(ref));
+            if (learnt.getBoolean(ref)) bumpClause(ref);
+            return;
+        }
+
+        LinearConstraint constraint = linearConstraints.get(-2 - ref);
+        long needed = constraint.total - constraint.bound;
+        if (implied >= 0) {
+            reasonLits.add(implied);
+            needed -= constraint.weights[constraint.termOf[implied]];
+        }
+        long sum = 0;
+        for (int i = 0; i < constraint.lits.length && sum <= needed; i++) {
+            int lit = constraint.lits[i];
+            if (value(lit) == FALSE && (implied < 0 || trailPos[lit >> 1] < trailPos[implied >> 1])) {
+                reasonLits.add(lit);
+                sum += constraint.weights[i];
+            }
+        }
+    }
+
+    /**
+     * First UIP conflict analysis.
+     *
+     * @return the level to backtrack to; the learnt clause is left in out, asserting literal first
+     */
+    private int analyze(int conflict, IntArrayList out) {
+        out.clear();
+        out.add(-1);
+        int pathCount = 0;
+        int p = -1;
+        int index = trailSize - 1;
+
+        do {
+            explain(conflict, p);
+            for (int k = 0; k < reasonLits.size(); k++) {
+                int q = reasonLits.getInt(k);
+                if (q == p) continue;
+                int v = q >> 1;
+                if (!seen[v] && levels[v] > 0) {
+                    seen[v] = true;
+                    bumpVariable(v);
+                    if (levels[v] >= decisionLevel()) {
+                        pathCount++;
+                    } else {
+                        out.add(q);
+                    }
+                }
+            }
+
+            while (!seen[trail[index] >> 1]) index--;
+            p = trail[index--];
+            conflict = reasons[p >> 1];
+            seen[p >> 1] = false;
+            pathCount--;
+        } while (pathCount > 0);
+        out.set(0, p ^ 1);
+
+        // Drop literals implied by a clause whose other literals are all in the learnt clause already.
+        analyzeToClear.clear();
+        analyzeToClear.addAll(out);
+        int j = 1;
+        for (int i = 1; i < out.size(); i++) {
+            int q = out.getInt(i);
+            int reason = reasons[q >> 1];
+            if (reason < 0 || !isRedundant(clauses.get(reason))) out.set(j++, q);
+        }
+        out.size(j);
+        for (int i = 1; i < analyzeToClear.size(); i++) seen[analyzeToClear.getInt(i) >> 1] = false;
+
+        if (out.size() == 1) return 0;
+
+        // Put the literal from the highest remaining level second, so it gets watched.
+        int maxIndex = 1;
+        for (int i = 2; i < out.size(); i++) {
+            if (levels[out.getInt(i) >> 1] > levels[out.getInt(maxIndex) >> 1]) maxIndex = i;
+        }
+        int q = out.getInt(maxIndex);
+        out.set(maxIndex, out.getInt(1));
+        out.set(1, q);
+        return levels[q >> 1];
+    }
+
+    private boolean isRedundant(int[] reason) {
+        for (int k = 1; k < reason.length; k++) {
+            int v = reason[k] >> 1;
+            if (!seen[v] && levels[v] > 0) return false;
+        }
+        return true;
+    }
+
+    /*
+     * Drops the less active half of the learnt clauses, keeping binary ones.
+     * Only called at level 0, where no reason is needed anymore, so the database can be renumbered freely.
+     */
+    private void reduceDatabase() {
+        IntArrayList learntRefs = new IntArrayList();
+        for (int ref = 0; ref < clauses.size(); ref++) {
+            if (learnt.getBoolean(ref) && clauses.get(ref).length > 2) learntRefs.add(ref);
+        }
+        int[] sorted = learntRefs.toIntArray();
+        IntArrays.quickSort(sorted, (a, b) -> Double.compare(clauseActivity.getDouble(a), clauseActivity.getDouble(b)));
+        boolean[] removed = new boolean[clauses.size()];
+        for (int i = 0; i < sorted.length / 2; i++) removed[sorted[i]] = true;
+
+        ObjectArrayList<int[]> newClauses = new ObjectArrayList<>();
+        BooleanArrayList newLearnt = new BooleanArrayList();
+        DoubleArrayList newActivity = new DoubleArrayList();
+        for (int ref = 0; ref < clauses.size(); ref++) {
+            if (removed[ref]) {
+                learntCount--;
+                continue;
+            }
+            newClauses.add(clauses.get(ref));
+            newLearnt.add(learnt.getBoolean(ref));
+            newActivity.add(clauseActivity.getDouble(ref));
+        }
+        clauses = newClauses;
+        learnt = newLearnt;
+        clauseActivity = newActivity;
+
+        for (int lit = 0; lit < 2 * numVars; lit++) watches[lit].clear();
+        for (int ref = 0; ref < clauses.size(); ref++) {
+            int[] clause = clauses.get(ref);
+            watches[clause[0]].add(ref);
+            watches[clause[1]].add(ref);
+        }
+        for (int i = 0; i < trailSize; i++) reasons[trail[i] >> 1] = NO_REASON;
+    }
+
+    private void bumpVariable(int v) {
+        activity[v] += varInc;
+        if (activity[v] > 1e100) {
+            for (int i = 0; i < numVars; i++) activity[i] *= 1e-100;
+            varInc *= 1e-100;
+        }
+        if (heapIndex[v] >= 0) percolateUp(heapIndex[v]);
+    }
+
+    private void bumpClause(int ref) {
+        double a = clauseActivity.getDouble(ref) + clauseInc;
+        clauseActivity.set(ref, a);
+        if (a > 1e20) {
+            for (int i = 0; i < clauseActivity.size(); i++) clauseActivity.set(i, clauseActivity.getDouble(i) * 1e-20);
+            clauseInc *= 1e-20;
+        }
+    }
+
+    private void heapInsert(int v) {
+        heapIndex[v] = heapSize;
+        heap[heapSize++] = v;
+        percolateUp(heapIndex[v]);
+    }
+
+    private int heapRemoveMax() {
+        int v = heap[0];
+        heap[0] = heap[--heapSize];
+        heapIndex[heap[0]] = 0;
+        heapIndex[v] = -1;
+        if (heapSize > 0) percolateDown(0);
+        return v;
+    }
+
+    private void percolateUp(int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (activity[heap[parent]] >= activity[v]) break;
+            heap[i] = heap[parent];
+            heapIndex[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapIndex[v] = i;
+    }
+
+    private void percolateDown(int i) {
+        int v = heap[i];
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && activity[heap[child + 1]] > activity[heap[child]]) child++;
+            if (activity[heap[child]] <= activity[v]) break;
+            heap[i] = heap[child];
+            heapIndex[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapIndex[v] = i;
+    }
+
+    // sum(weights[i] * lits[i]) >= bound, terms sorted by descending weight
+    private static final class LinearConstraint {
+        private final int[] lits;
+        private final long[] weights;
+        private int[] termOf;  // Indexed by literal: index of the term, or -1
+        private final long total;
+        private long bound;
+        private long slack;  // Total weight of the terms that are not false, minus the bound
+
+        private LinearConstraint(int[] lits, long[] weights, int literalCount) {
+            int[] order = new int[lits.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            IntArrays.quickSort(order, (a, b) -> Long.compare(weights[b], weights[a]));
+
+            this.lits = new int[lits.length];
+            this.weights = new long[lits.length];
+            termOf = new int[literalCount];
+            Arrays.fill(termOf, -1);
+            long sum = 0;
+            for (int i = 0; i < order.length; i++) {
+                this.lits[i] = lits[order[i]];
+                this.weights[i] = weights[order[i]];
+                termOf[this.lits[i]] = i;
+                sum += this.weights[i];
+            }
+            total = sum;
+            slack = sum;
+        }
+
+        private void grow(int literalCount) {
+            if (termOf.length >= literalCount) return;
+            int oldLength = termOf.length;
+            termOf = Arrays.copyOf(termOf, literalCount);
+            Arrays.fill(termOf, oldLength, literalCount, -1);
+        }
+    }
+
+    // Luby sequence 1, 1, 2, 1, 1, 2, 4, 1, 1, 2, ...
+    private static long luby(int i) {
+        int size = 1;
+        int seq = 0;
+        while (size < i + 1) {
+            seq++;
+            size = 2 * size + 1;
+        }
+        int x = i;
+        while (size - 1 != x) {
+            size = (size - 1) >> 1;
+            seq--;
+            x = x % size;
+        }
+        return 1L << seq;
+    }
+}
@@ -0,0 +1,312 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/*
+ * Splits a face into independent sub-grids and solves each of them with the delegate solver.
+ *
+ * Islands are connected and have at most MAX_ISLAND_SIZE cells, so every cell of an island is at most
+ * MAX_ISLAND_SIZE - 1 steps (through non-blocked cells) away from each harvest cell it covers.
+ * Two harvest cells further apart than two such reaches plus one step can never end up in islands
+ * that overlap or touch, so they can be solved separately without losing anything.
+ */
+public class DecomposingFaceSolver implements FaceSolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DecomposingFaceSolver");
+
+    // Maximum distance between an island cell and a harvest cell covered by the same island.
+    private static final int ISLAND_REACH = AbstractFaceSolver.MAX_ISLAND_SIZE - 1;
+    // Harvest cells closer than this may be covered by islands that overlap or are adjacent.
+    private static final int INTERACTION_DISTANCE = 2 * ISLAND_REACH + 1;
+
+    private final FaceSolver delegate;
+
+    public DecomposingFaceSolver(FaceSolver delegate) {
+        this.delegate = delegate;
+    }
+
+    // A part of the face, offset by (offsetX, offsetY) from the top-left corner.
+    private record SubGrid(FaceGrid grid, int offsetX, int offsetY) {}
+
+    @Override
+    public SolverResult solve(FaceGrid input, SolverConfig config) {
+        long startTime = System.currentTimeMillis();
+
+        List<IntList> components = findComponents(input);
+        if (components.size() <= 1) {
+            return delegate.solve(input, config);
+        }
+
+        LOGGER.info("Split {}x{} face into {} independent sub-grids", input.width(), input.height(), components.size());
+
+        // Smallest sub-grids first: they usually finish well before their share of the time budget runs out,
+        // and whatever they leave unused goes to the bigger ones started later.
+        List<SubGrid> subGrids = components.stream()
+                .sorted(Comparator.comparingInt(IntList::size))
+                .map(component -> extractSubGrid(input, component))
+                .toList();
+
+        long deadline = startTime + config.getTimeoutMs();
+        int lanes = Math.min(config.getParallelism(), subGrids.size());
+        int subParallelism = Math.max(1, config.getParallelism() / subGrids.size());
+        AtomicInteger unstartedHarvest = new AtomicInteger(input.getHarvestCount());
+
+        Incumbents incumbents = new Incumbents(input, subGrids, config, startTime);
+
+        List<Callable<SolverResult>> tasks = IntStream.range(0, subGrids.size())
+                .<Callable<SolverResult>>mapToObj(i -> () -> {
+                    SubGrid subGrid = subGrids.get(i);
+                    if (config.getCancellation().isCancelled()) {
+                        return SolverResult.empty(subGrid.grid());
+                    }
+                    // Share of the remaining time proportional to this sub-grid's harvest cells, with `lanes` sub-grids running at once.
+                    int harvest = subGrid.grid().getHarvestCount();
+                    int unstarted = unstartedHarvest.getAndAdd(-harvest);
+                    long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                    long timeout = Math.min(remaining, remaining * lanes * harvest / unstarted);
+
+                    SolverConfig.Builder subConfig = config.toBuilder()
+                            .timeoutMs(timeout)
+                            .parallelism(subParallelism);
+                    if (incumbents.enabled()) {
+                        subConfig.incumbentListener((incumbent, score) -> incumbents.update(i, incumbent, score));
+                    }
+                    SolverResult result = delegate.solve(subGrid.grid(), subConfig.build());
+                    if (incumbents.enabled()) {
+                        incumbents.update(i, result, result.harvestCovered() - result.islands().size() * config.getCostThreshold());
+                    }
+                    return result;
+                })
+                .toList();
+
+        List<SolverResult> results = new ArrayList<>(tasks.size());
+        try (ExecutorService executor = Executors.newFixedThreadPool(lanes)) {
+            for (Future<SolverResult> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while solving sub-grids", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to solve sub-grid", e.getCause());
+        }
+
+        return stitch(input, subGrids, results, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Groups harvest cells that can interact with each other.
+     *
+     * @return cell indices (x * height + y) of the harvest cells in each group
+     */
+    private static List<IntList> findComponents(FaceGrid input) {
+        int width = input.width();
+        int height = input.height();
+
+        int[] cellToHarvest = new int[width * height];
+        Arrays.fill(cellToHarvest, -1);
+        IntList harvestCells = new IntArrayList();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (input.getCell(x, y) == FaceGrid.CELL_HARVEST) {
+                    cellToHarvest[x * height + y] = harvestCells.size();
+                    harvestCells.add(x * height + y);
+                }
+            }
+        }
+
+        // Union-find over harvest cells
+        int[] parent = new int[harvestCells.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+
+        // Bounded BFS from every harvest cell. Distances are reused between runs by stamping the visited cells.
+        int[] visitedStamp = new int[width * height];
+        int[] distance = new int[width * height];
+        IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
+        for (int i = 0; i < harvestCells.size(); i++) {
+            int stamp = i + 1;
+            int start = harvestCells.getInt(i);
+            visitedStamp[start] = stamp;
+            distance[start] = 0;
+            queue.enqueue(start);
+
+            while (!queue.isEmpty()) {
+                int cell = queue.dequeueInt();
+                int j = cellToHarvest[cell];
+                if (j > i) {
+                    union(parent, i, j);
+                }
+                if (distance[cell] == INTERACTION_DISTANCE) continue;
+
+                int x = cell / height;
+                int y = cell % height;
+                for (int[] d : AbstractFaceSolver.NEIGHBOR_OFFSETS) {
+                    int nx = x + d[0];
+                    int ny = y + d[1];
+                    if (nx < 0 || nx >= width || ny < 0 || ny >= height || input.getCell(nx, ny) == FaceGrid.CELL_BLOCKED) continue;
+                    int next = nx * height + ny;
+                    if (visitedStamp[next] == stamp) continue;
+                    visitedStamp[next] = stamp;
+                    distance[next] = distance[cell] + 1;
+                    queue.enqueue(next);
+                }
+            }
+        }
+
+        List<IntList> components = new ArrayList<>();
+        int[] rootToComponent = new int[parent.length];
+        Arrays.fill(rootToComponent, -1);
+        for (int i = 0; i < parent.length; i++) {
+            int root = find(parent, i);
+            if (rootToComponent[root] == -1) {
+                rootToComponent[root] = components.size();
+                components.add(new IntArrayList());
+            }
+            components.get(rootToComponent[root]).add(harvestCells.getInt(i));
+        }
+        return components;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j) {
+        parent[find(parent, i)] = find(parent, j);
+    }
+
+    /**
+     * Cuts out the area any island covering the given harvest cells could reach.
+     * Cells outside of that area are marked as blocked.
+     */
+    private static SubGrid extractSubGrid(FaceGrid input, IntList component) {
+        int width = input.width();
+        int height = input.height();
+
+        // Multi-source BFS from all harvest cells of the component.
+        int[] distance = new int[width * height];
+        Arrays.fill(distance, -1);
+        IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
+        for (int cell : component) {
+            distance[cell] = 0;
+            queue.enqueue(cell);
+        }
+
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        while (!queue.isEmpty()) {
+            int cell = queue.dequeueInt();
+            int x = cell / height;
+            int y = cell % height;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            if (distance[cell] == ISLAND_REACH) continue;
+
+            for (int[] d : AbstractFaceSolver.NEIGHBOR_OFFSETS) {
+                int nx = x + d[0];
+                int ny = y + d[1];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height || input.getCell(nx, ny) == FaceGrid.CELL_BLOCKED) continue;
+                int next = nx * height + ny;
+                if (distance[next] != -1) continue;
+                distance[next] = distance[cell] + 1;
+                queue.enqueue(next);
+            }
+        }
+
+        FaceGrid grid = new FaceGrid(maxX - minX + 1, maxY - minY + 1, input.direction());
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                byte value = distance[x * height + y] != -1 ? input.getCell(x, y) : FaceGrid.CELL_BLOCKED;
+                grid.setCell(x - minX, y - minY, value);
+            }
+        }
+        return new SubGrid(grid, minX, minY);
+    }
+
+    /*
+     * Latest incumbent of every sub-grid. Each update is stitched with the others into an incumbent for the whole face.
+     */
+    private static final class Incumbents {
+        private final FaceGrid input;
+        private final List<SubGrid> subGrids;
+        private final IncumbentListener listener;
+        private final long startTime;
+        private final List<SolverResult> results;
+        private final double[] scores;
+
+        private Incumbents(FaceGrid input, List<SubGrid> subGrids, SolverConfig config, long startTime) {
+            this.input = input;
+            this.subGrids = subGrids;
+            this.listener = config.getIncumbentListener();
+            this.startTime = startTime;
+            this.results = new ArrayList<>(subGrids.stream().map(subGrid -> SolverResult.empty(subGrid.grid())).toList());
+            this.scores = new double[subGrids.size()];
+        }
+
+        private boolean enabled() {
+            return listener != IncumbentListener.NONE;
+        }
+
+        private synchronized void update(int i, SolverResult incumbent, double score) {
+            results.set(i, incumbent);
+            scores[i] = score;
+            listener.onIncumbent(stitch(input, subGrids, results, System.currentTimeMillis() - startTime), Arrays.stream(scores).sum());
+        }
+    }
+
+    private static SolverResult stitch(FaceGrid input, List<SubGrid> subGrids, List<SolverResult> results, long solveTime) {
+        SolverResult.Builder builder = SolverResult.builder(input.width(), input.height(), input.direction())
+                .totalHarvest(input.getHarvestCount())
+                .solveTimeMs(solveTime);
+
+        int harvestCovered = 0;
+        double upperBound = 0;
+        boolean shapesComplete = true;
+        SolverResult.StopReason stopReason = SolverResult.StopReason.FINISHED;
+        for (int i = 0; i < subGrids.size(); i++) {
+            SubGrid subGrid = subGrids.get(i);
+            SolverResult result = results.get(i);
+            int offset = AbstractFaceSolver.cellKey(subGrid.offsetX(), subGrid.offsetY());
+
+            for (AbstractFaceSolver.Island island : result.islands()) {
+                AbstractFaceSolver.Island translated = island.remap(key -> key + offset, input.width(), input.height());
+                for (int key : translated.cells()) {
+                    builder.setPlacement(AbstractFaceSolver.keyRow(key), AbstractFaceSolver.keyCol(key), translated.material());
+                }
+                builder.addIsland(translated);
+            }
+
+            harvestCovered += result.harvestCovered();
+            // The parts are independent, so their bounds add up
+            upperBound += result.upperBound();
+            shapesComplete &= result.shapesComplete();
+            stopReason = stopReason.combine(result.stopReason());
+        }
+
+        return builder
+                .harvestCovered(harvestCovered)
+                .stopReason(stopReason)
+                .upperBound(upperBound)
+                .shapesComplete(shapesComplete)
+                .build();
+    }
+}
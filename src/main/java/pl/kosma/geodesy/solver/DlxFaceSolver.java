@@ -0,0 +1,298 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Face solver using Knuth's dancing links (Algorithm X) for island packing.
+ *
+ * Every profitable shape is a row. Harvest cells are primary columns, air cells are secondary columns.
+ * All columns are optional: the search picks the live harvest cell with the fewest remaining shapes,
+ * and branches on every shape covering it, plus leaving it uncovered. Covering a column unlinks every
+ * shape that overlaps it in O(1) per node, so overlapping shapes never have to be checked.
+ * The material and stem adjacency rules are checked when a shape is picked.
+ *
+ * Pruning uses the per-target gains of the backtracking solver, kept up to date in cover/uncover:
+ * a harvest cell counts only while it is uncovered and some shape can still cover it.
+ */
+public class DlxFaceSolver extends AbstractFaceSolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("DlxFaceSolver");
+
+    // Fixed point scale of scores and gains, so cover/uncover keep the bound exact.
+    private static final int SCORE_SCALE = 1000;
+
+    private static final int ROOT = 0;
+
+    // Links: node 0 is the root, then one header node per column, then one node per cell of every shape.
+    private int[] left;
+    private int[] right;
+    private int[] up;
+    private int[] down;
+    private int[] column;
+    private int[] rowOf;
+    // Per header node
+    private int[] size;
+    private long[] gain;
+
+    // Per row
+    private List<Shape> shapes;
+    private long[] rowScores;
+    private int[][] rowCells;
+    private int[][] rowNeighbors;
+    private int[][] rowStems;
+    private int[][] rowStemNeighbors;
+
+    // Search state
+    private byte[] material;  // Per cell bit: SLIME, HONEY or 0
+    private boolean[] stem;  // Per cell bit: part of a placed stem
+    private long liveGain;  // Total gain of the uncovered harvest columns that are not empty
+    private final IntArrayList chosenRows = new IntArrayList();
+    private final IntArrayList chosenColors = new IntArrayList();
+    private long bestScore;
+    private long searchCalls;
+
+    public DlxFaceSolver(FaceGrid input, SolverConfig config) {
+        super(input, config);
+    }
+
+    @Override
+    public SolverResult solve(FaceGrid input, SolverConfig config) {
+        startTime = System.currentTimeMillis();
+
+        findTargets();
+        if (targets.isEmpty()) {
+            LOGGER.info("No harvest cells to solve");
+            return SolverResult.empty(input);
+        }
+
+        LOGGER.info("Solving {}x{} grid with {} harvest cells", rows, cols, targets.size());
+
+        precomputeShapes();
+        shapes = profitableShapes();
+        // Rows are linked in this order, so every column tries the biggest shapes first.
+        shapes.sort(Comparator.comparingInt(Shape::onesCovered).reversed());
+        buildLinks();
+        long maxGain = liveGain;
+        search(0);
+        // Only the initial bound is known if the search stops early
+        recordBound(Math.max((double) bestScore / SCORE_SCALE, sharedBestScore()), (double) maxGain / SCORE_SCALE);
+        improveSolution();
+
+        long solveTime = System.currentTimeMillis() - startTime;
+        return buildResult(input, bestSolution, solveTime);
+    }
+
+    private void buildLinks() {
+        int totalCells = rows * cols;
+        material = new byte[totalCells];
+        stem = new boolean[totalCells];
+
+        long[] targetGains = new long[targets.size()];
+        int nodeCount = 1;
+        rowScores = new long[shapes.size()];
+        rowCells = new int[shapes.size()][];
+        rowNeighbors = new int[shapes.size()][];
+        rowStems = new int[shapes.size()][];
+        rowStemNeighbors = new int[shapes.size()][];
+        for (int r = 0; r < shapes.size(); r++) {
+            Shape shape = shapes.get(r);
+            rowScores[r] = Math.round((shape.onesCovered() - islandCost) * SCORE_SCALE);
+            rowCells[r] = shape.mask().stream().toArray();
+            rowNeighbors[r] = shape.neighborsMask().stream().toArray();
+            rowStems[r] = shape.flyingMachine().stemMask().stream().toArray();
+            rowStemNeighbors[r] = shape.flyingMachine().stemNeighborsMask().stream().toArray();
+            nodeCount += rowCells[r].length;
+
+            // Rounded up, so the bound stays valid
+            long share = (long) Math.ceil((shape.onesCovered() - islandCost) / shape.onesCovered() * SCORE_SCALE);
+            for (int ti : shape.targetIndices()) {
+                targetGains[ti] = Math.max(targetGains[ti], share);
+            }
+        }
+
+        // Column headers for every cell used by some shape
+        int[] headerOfBit = new int[totalCells];
+        BitSet usedCells = new BitSet(totalCells);
+        for (Shape shape : shapes) {
+            usedCells.or(shape.mask());
+        }
+        int columnCount = usedCells.cardinality();
+        nodeCount += columnCount;
+
+        left = new int[nodeCount];
+        right = new int[nodeCount];
+        up = new int[nodeCount];
+        down = new int[nodeCount];
+        column = new int[nodeCount];
+        rowOf = new int[nodeCount];
+        size = new int[columnCount + 1];
+        gain = new long[columnCount + 1];
+
+        int next = 1;
+        for (int bit = usedCells.nextSetBit(0); bit >= 0; bit = usedCells.nextSetBit(bit + 1)) {
+            int h = next++;
+            headerOfBit[bit] = h;
+            up[h] = down[h] = column[h] = h;
+
+            int ti = targetIndices.get(cellKey(bit / cols, bit % cols));
+            if (ti >= 0) {
+                // Primary column: append to the header list
+                gain[h] = targetGains[ti];
+                liveGain += gain[h];
+                left[h] = left[ROOT];
+                right[h] = ROOT;
+                right[left[ROOT]] = h;
+                left[ROOT] = h;
+            } else {
+                // Secondary column: not in the header list, so never chosen, but still covered
+                left[h] = right[h] = h;
+            }
+        }
+
+        for (int r = 0; r < shapes.size(); r++) {
+            int first = -1;
+            for (int bit : rowCells[r]) {
+                int n = next++;
+                int h = headerOfBit[bit];
+                column[n] = h;
+                rowOf[n] = r;
+                size[h]++;
+
+                up[n] = up[h];
+                down[n] = h;
+                down[up[h]] = n;
+                up[h] = n;
+
+                if (first < 0) {
+                    first = n;
+                    left[n] = right[n] = n;
+                } else {
+                    left[n] = left[first];
+                    right[n] = first;
+                    right[left[first]] = n;
+                    left[first] = n;
+                }
+            }
+        }
+
+        LOGGER.debug("Built {} rows over {} columns", shapes.size(), columnCount);
+    }
+
+    private void search(long score) {
+        if (limitReached(++searchCalls, (searchCalls & 0xFFF) == 0)) return;
+
+        // Any set of rows picked so far is a valid solution on its own.
+        if (score > bestScore) saveSolution(score);
+
+        // Pruning: score estimation, also against solutions found by other solvers
+        if (score + liveGain <= Math.max(bestScore, (long) Math.floor(sharedBestScore() * SCORE_SCALE))) return;
+
+        // Column with the fewest remaining shapes
+        int c = right[ROOT];
+        if (c == ROOT) return;
+        for (int h = right[c]; h != ROOT; h = right[h]) {
+            if (size[h] < size[c]) c = h;
+        }
+
+        cover(c);
+        for (int r = down[c]; r != c; r = down[r]) {
+            int row = rowOf[r];
+            byte color = chooseColor(row);
+            if (color == 0) continue;
+
+            for (int j = right[r]; j != r; j = right[j]) cover(column[j]);
+            place(row, color);
+            search(score + rowScores[row]);
+            remove(row);
+            for (int j = left[r]; j != r; j = left[j]) uncover(column[j]);
+
+            if (stopped()) return;
+        }
+
+        // Option: leave this cell uncovered. It is covered already, so no later shape can take it.
+        search(score);
+        uncover(c);
+    }
+
+    private void cover(int c) {
+        if (size[c] > 0) liveGain -= gain[c];
+        right[left[c]] = right[c];
+        left[right[c]] = left[c];
+        for (int i = down[c]; i != c; i = down[i]) {
+            for (int j = right[i]; j != i; j = right[j]) {
+                down[up[j]] = down[j];
+                up[down[j]] = up[j];
+                if (--size[column[j]] == 0) liveGain -= gain[column[j]];
+            }
+        }
+    }
+
+    private void uncover(int c) {
+        for (int i = up[c]; i != c; i = up[i]) {
+            for (int j = left[i]; j != i; j = left[j]) {
+                if (size[column[j]]++ == 0) liveGain += gain[column[j]];
+                down[up[j]] = j;
+                up[down[j]] = j;
+            }
+        }
+        right[left[c]] = c;
+        left[right[c]] = c;
+        if (size[c] > 0) liveGain += gain[c];
+    }
+
+    /**
+     * @return the material the shape would get if placed now, or 0 if it cannot be placed
+     */
+    private byte chooseColor(int row) {
+        // Flying machines of different islands cannot be adjacent
+        for (int bit : rowStemNeighbors[row]) {
+            if (stem[bit]) return 0;
+        }
+
+        boolean slimeAdj = false;
+        boolean honeyAdj = false;
+        for (int bit : rowNeighbors[row]) {
+            slimeAdj |= material[bit] == SLIME;
+            honeyAdj |= material[bit] == HONEY;
+        }
+        if (slimeAdj && honeyAdj) return 0;
+
+        return slimeAdj ? HONEY : SLIME;
+    }
+
+    private void place(int row, byte color) {
+        for (int bit : rowCells[row]) material[bit] = color;
+        for (int bit : rowStems[row]) stem[bit] = true;
+        chosenRows.add(row);
+        chosenColors.add(color);
+    }
+
+    private void remove(int row) {
+        for (int bit : rowCells[row]) material[bit] = 0;
+        for (int bit : rowStems[row]) stem[bit] = false;
+        chosenRows.removeInt(chosenRows.size() - 1);
+        chosenColors.removeInt(chosenColors.size() - 1);
+    }
+
+    private void saveSolution(long score) {
+        bestScore = score;
+        bestSolution = new ArrayList<>(chosenRows.size());
+        bestSolutionSlimeMask = new BitSet();
+        bestSolutionHoneyMask = new BitSet();
+        for (int i = 0; i < chosenRows.size(); i++) {
+            Shape shape = shapes.get(chosenRows.getInt(i));
+            byte color = (byte) chosenColors.getInt(i);
+            bestSolution.add(new Island(shape.cells(), shape.mask(), shape.flyingMachine(), color));
+            (color == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask).or(shape.mask());
+        }
+        publishIncumbent(bestSolution, (double) score / SCORE_SCALE);
+    }
+}
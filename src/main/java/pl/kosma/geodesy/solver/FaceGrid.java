@@ -2,6 +2,8 @@ package pl.kosma.geodesy.solver;
 
 import net.minecraft.core.Direction;
 
+import java.util.Arrays;
+
 /**
  * Represents a 2D grid of a single face of the geode projection.
  * This is the input to the solver algorithm.
@@ -58,6 +60,11 @@ public record FaceGrid(int width, int height, byte[][] cells, Direction directio
         return new FaceGrid(cells, width, height, direction);
     }
 
+    // Same size and cells, whatever the direction.
+    public boolean sameCells(FaceGrid other) {
+        return width == other.width && height == other.height && Arrays.deepEquals(cells, other.cells);
+    }
+
     public byte[][] copyCells() {
         byte[][] copy = new byte[width][height];
         for (int x = 0; x < width; x++) {
@@ -0,0 +1,321 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Shrinks a face before the search, keeping an optimal layout of the face reachable.
+ *
+ * Works on the shapes all solvers search over (see FaceShapes), and only on the ones that add to the score;
+ * any other island can be dropped without breaking a constraint.
+ * - Harvest cells no shape covers can never be harvested. Shape enumeration only stops early after finding
+ *   shapes, so finding none proves it. Harvest cells only unprofitable shapes cover are never worth covering.
+ * - An island is forced if every shape overlapping or touching it covers only harvest cells it covers too.
+ *   Any layout can swap the islands covering those cells for it without losing score, and no other island
+ *   can ever get in its way. The shapes it makes redundant are dropped, which may force more islands.
+ * - Cells no remaining shape uses are blocked, and the face is cropped to the cells left.
+ *
+ * The forced islands touch nothing the search can place, so the reduced face is solved on its own.
+ * Forcing and blocking are only sound if the shapes are all the islands there are, so a face whose shape
+ * enumeration was cut short (see FaceShapes.complete) is left as it is. So is a face that takes longer than
+ * MAX_TIME_SHARE of its timeout to reduce; the time spent counts against the timeout either way.
+ */
+public final class FaceKernel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("FaceKernel");
+
+    private static final double MAX_TIME_SHARE = 0.2;
+
+    private final FaceGrid input;
+    // Null if nothing is left to search
+    private final FaceGrid grid;
+    private final int offsetX;
+    private final int offsetY;
+    private final List<AbstractFaceSolver.Island> forcedIslands;
+    private final IntSet unharvestable;
+    private final int forcedHarvest;
+    private final long reduceTimeMs;
+
+    private FaceKernel(FaceGrid input, FaceGrid grid, int offsetX, int offsetY, List<AbstractFaceSolver.Island> forcedIslands,
+                       IntSet unharvestable, int forcedHarvest, long reduceTimeMs) {
+        this.input = input;
+        this.grid = grid;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.forcedIslands = forcedIslands;
+        this.unharvestable = unharvestable;
+        this.forcedHarvest = forcedHarvest;
+        this.reduceTimeMs = reduceTimeMs;
+    }
+
+    public static FaceKernel reduce(FaceGrid input, SolverConfig config) {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + (long) (config.getTimeoutMs() * MAX_TIME_SHARE);
+        FaceKernel kernel = new Reducer(input, config, deadline).reduce(startTime);
+        LOGGER.info("Reduced {}x{} face to {}: {} forced islands, {} unharvestable cells, {}ms",
+                input.width(), input.height(), kernel.grid == null ? "nothing" : kernel.grid.width() + "x" + kernel.grid.height(),
+                kernel.forcedIslands.size(), kernel.unharvestable.size(), kernel.reduceTimeMs);
+        return kernel;
+    }
+
+    // The face left to search, or null if the forced islands cover everything worth covering.
+    public FaceGrid grid() {
+        return grid;
+    }
+
+    public List<AbstractFaceSolver.Island> forcedIslands() {
+        return forcedIslands;
+    }
+
+    // Cell keys of the harvest cells no island can cover
+    public IntSet unharvestable() {
+        return unharvestable;
+    }
+
+    /**
+     * Solves the reduced face with {@code solver}, and returns the layout for the whole face: the forced islands
+     * and the solved ones. Incumbents are passed on the same way. The time spent reducing counts against the timeout.
+     */
+    public SolverResult solve(FaceSolver solver, SolverConfig config) {
+        double forcedScore = forcedHarvest - forcedIslands.size() * config.getCostThreshold();
+        if (grid == null) {
+            return restore(SolverResult.empty(new FaceGrid(0, 0, input.direction())), forcedScore);
+        }
+
+        IncumbentListener listener = config.getIncumbentListener();
+        SolverConfig.Builder kernelConfig = config.toBuilder()
+                .timeoutMs(Math.max(0, config.getTimeoutMs() - reduceTimeMs));
+        if (listener != IncumbentListener.NONE) {
+            kernelConfig.incumbentListener(new IncumbentListener() {
+                @Override
+                public void onIncumbent(SolverResult incumbent, double score) {
+                    listener.onIncumbent(restore(incumbent, 0), score + forcedScore);
+                }
+
+                @Override
+                public double bestScore() {
+                    return listener.bestScore() - forcedScore;
+                }
+            });
+        }
+        return restore(solver.solve(grid, kernelConfig.build()), forcedScore);
+    }
+
+    private SolverResult restore(SolverResult result, double forcedScore) {
+        SolverResult.Builder builder = SolverResult.builder(input.width(), input.height(), input.direction())
+                .totalHarvest(input.getHarvestCount())
+                .harvestCovered(result.harvestCovered() + forcedHarvest)
+                .solveTimeMs(result.solveTimeMs() + reduceTimeMs)
+                .stopReason(result.stopReason())
+                .upperBound(result.upperBound() + forcedScore)
+                // Only faces with every island listed are reduced, so the result's shapes are the face's
+                .shapesComplete(result.shapesComplete())
+                .cached(result.cached());
+
+        int offset = AbstractFaceSolver.cellKey(offsetX, offsetY);
+        List<AbstractFaceSolver.Island> islands = new ArrayList<>(forcedIslands);
+        for (AbstractFaceSolver.Island island : result.islands()) {
+            islands.add(island.remap(key -> key + offset, input.width(), input.height()));
+        }
+        for (AbstractFaceSolver.Island island : islands) {
+            for (int key : island.cells()) {
+                builder.setPlacement(AbstractFaceSolver.keyRow(key), AbstractFaceSolver.keyCol(key), island.material());
+            }
+            builder.addIsland(island);
+        }
+        return builder.build();
+    }
+
+    // Reduces over the shapes of the face, see FaceShapes.
+    private static final class Reducer {
+        private final FaceGrid input;
+        private final int rows;
+        private final int cols;
+        private final double islandCost;
+        private final CancellationToken cancellation;
+        private final long deadline;
+        private final FaceShapes faceShapes;
+
+        // Profitable shapes, the ones dropped so far, and indices into them by cell bit and by target
+        private List<AbstractFaceSolver.Shape> shapes;
+        private boolean[] dropped;
+        private IntArrayList[] shapesAt;
+        private IntArrayList[] shapesOf;
+        // Reused by targetReach and isForced
+        private final BitSet targetsScratch = new BitSet();
+        private final BitSet cellsScratch = new BitSet();
+
+        private Reducer(FaceGrid input, SolverConfig config, long deadline) {
+            this.input = input;
+            rows = input.width();
+            cols = input.height();
+            islandCost = config.getCostThreshold();
+            cancellation = config.getCancellation();
+            this.deadline = deadline;
+            faceShapes = new FaceShapes(input.copyCells(), rows, cols);
+        }
+
+        private FaceKernel reduce(long startTime) {
+            faceShapes.findTargets();
+            IntList targets = faceShapes.targets;
+            if (!targets.isEmpty() && !faceShapes.enumerate(cancellation, deadline)) {
+                LOGGER.debug("Out of time enumerating shapes, leaving the face as it is");
+                return unreduced(IntSets.EMPTY_SET, startTime);
+            }
+
+            IntSet unharvestable = new IntOpenHashSet();
+            for (int tIdx = 0; tIdx < targets.size(); tIdx++) {
+                if (faceShapes.possibleShapes.get(tIdx).isEmpty()) unharvestable.add(targets.getInt(tIdx));
+            }
+            unharvestable = IntSets.unmodifiable(unharvestable);
+            if (!faceShapes.complete()) {
+                LOGGER.debug("Shape enumeration was cut short, leaving the face as it is");
+                return unreduced(unharvestable, startTime);
+            }
+
+            // Most harvest first, then fewest cells, so of two islands covering the same cells the smaller one is forced
+            shapes = faceShapes.profitableShapes(islandCost);
+            shapes.sort(Comparator.comparingInt(AbstractFaceSolver.Shape::onesCovered).reversed().thenComparingInt(shape -> shape.cells().size()));
+            dropped = new boolean[shapes.size()];
+            shapesAt = new IntArrayList[rows * cols];
+            shapesOf = new IntArrayList[targets.size()];
+            for (int s = 0; s < shapes.size(); s++) {
+                BitSet mask = shapes.get(s).mask();
+                for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+                    if (shapesAt[bit] == null) shapesAt[bit] = new IntArrayList();
+                    shapesAt[bit].add(s);
+                }
+                for (int ti : shapes.get(s).targetIndices()) {
+                    if (shapesOf[ti] == null) shapesOf[ti] = new IntArrayList();
+                    shapesOf[ti].add(s);
+                }
+            }
+
+            List<AbstractFaceSolver.Island> forced = new ArrayList<>();
+            int forcedHarvest = 0;
+            boolean changed = true;
+            while (changed && !outOfTime()) {
+                changed = false;
+                int[] reach = targetReach(targets.size());
+                for (int s = 0; s < shapes.size(); s++) {
+                    if (dropped[s] || !mayBeForced(shapes.get(s), reach)) continue;
+                    if (outOfTime()) break;
+                    if (!isForced(s)) continue;
+
+                    AbstractFaceSolver.Shape shape = shapes.get(s);
+                    // Nothing touches it, so either material will do
+                    forced.add(new AbstractFaceSolver.Island(shape.cells(), shape.mask(), shape.flyingMachine(), AbstractFaceSolver.SLIME));
+                    forcedHarvest += shape.onesCovered();
+                    dropTouching(shape);
+                    changed = true;
+                }
+            }
+
+            // Cells of the remaining shapes, and the box around them
+            BitSet live = new BitSet(rows * cols);
+            for (int s = 0; s < shapes.size(); s++) {
+                if (!dropped[s]) live.or(shapes.get(s).mask());
+            }
+            long reduceTimeMs = System.currentTimeMillis() - startTime;
+            if (live.isEmpty()) {
+                return new FaceKernel(input, null, 0, 0, List.copyOf(forced), unharvestable, forcedHarvest, reduceTimeMs);
+            }
+
+            int minX = rows, minY = cols, maxX = -1, maxY = -1;
+            for (int bit = live.nextSetBit(0); bit >= 0; bit = live.nextSetBit(bit + 1)) {
+                minX = Math.min(minX, bit / cols);
+                minY = Math.min(minY, bit % cols);
+                maxX = Math.max(maxX, bit / cols);
+                maxY = Math.max(maxY, bit % cols);
+            }
+            FaceGrid reduced = new FaceGrid(maxX - minX + 1, maxY - minY + 1, input.direction());
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    reduced.setCell(x - minX, y - minY, live.get(x * cols + y) ? input.getCell(x, y) : FaceGrid.CELL_BLOCKED);
+                }
+            }
+            return new FaceKernel(input, reduced, minX, minY, List.copyOf(forced), unharvestable, forcedHarvest, reduceTimeMs);
+        }
+
+        private FaceKernel unreduced(IntSet unharvestable, long startTime) {
+            return new FaceKernel(input, input, 0, 0, List.of(), unharvestable, 0, System.currentTimeMillis() - startTime);
+        }
+
+        private boolean outOfTime() {
+            return cancellation.isCancelled() || System.currentTimeMillis() > deadline;
+        }
+
+        // Per target: how many targets the shapes left covering it cover together.
+        private int[] targetReach(int targetCount) {
+            int[] reach = new int[targetCount];
+            for (int ti = 0; ti < targetCount; ti++) {
+                if (shapesOf[ti] == null) continue;
+                targetsScratch.clear();
+                for (int s : shapesOf[ti]) {
+                    if (dropped[s]) continue;
+                    for (int other : shapes.get(s).targetIndices()) {
+                        targetsScratch.set(other);
+                    }
+                }
+                reach[ti] = targetsScratch.cardinality();
+            }
+            return reach;
+        }
+
+        // Cheap necessary condition for isForced: the shapes covering its targets cover nothing else.
+        private static boolean mayBeForced(AbstractFaceSolver.Shape shape, int[] reach) {
+            for (int ti : shape.targetIndices()) {
+                if (reach[ti] != shape.onesCovered()) return false;
+            }
+            return true;
+        }
+
+        // Whether every other shape overlapping or touching shape s covers only harvest cells s covers too.
+        private boolean isForced(int s) {
+            AbstractFaceSolver.Shape shape = shapes.get(s);
+            targetsScratch.clear();
+            for (int ti : shape.targetIndices()) {
+                targetsScratch.set(ti);
+            }
+            BitSet touched = touched(shape);
+            for (int bit = touched.nextSetBit(0); bit >= 0; bit = touched.nextSetBit(bit + 1)) {
+                if (shapesAt[bit] == null) continue;
+                for (int t : shapesAt[bit]) {
+                    if (t == s || dropped[t]) continue;
+                    for (int ti : shapes.get(t).targetIndices()) {
+                        if (!targetsScratch.get(ti)) return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Drops the shape and every shape overlapping or touching it.
+        private void dropTouching(AbstractFaceSolver.Shape shape) {
+            BitSet touched = touched(shape);
+            for (int bit = touched.nextSetBit(0); bit >= 0; bit = touched.nextSetBit(bit + 1)) {
+                if (shapesAt[bit] == null) continue;
+                for (int t : shapesAt[bit]) {
+                    dropped[t] = true;
+                }
+            }
+        }
+
+        private BitSet touched(AbstractFaceSolver.Shape shape) {
+            cellsScratch.clear();
+            cellsScratch.or(shape.mask());
+            cellsScratch.or(shape.neighborsMask());
+            return cellsScratch;
+        }
+    }
+}
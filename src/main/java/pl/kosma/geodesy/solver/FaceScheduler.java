@@ -0,0 +1,193 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/*
+ * Shares one time budget and all threads between the faces of a solve.
+ *
+ * Faces run on as many lanes as the search needs to keep the threads busy: one, with all the threads, for the
+ * searches that spread a face over threads by themselves (the parallel backtracking search and the portfolio), or
+ * one per thread otherwise. On one lane the easiest faces go first, on more the hardest ones do.
+ *
+ * A face gets the share of the lane time left until the deadline, less what the running faces were promised,
+ * that its difficulty is of all faces not started yet. Whatever a face leaves unused goes to the faces started
+ * after it, and once every face left has a lane, they all get the rest of the time. Every face gets at least
+ * MIN_SLICE_SHARE of an even split of the lane time, so faces that look easy, or come last, are never left
+ * without time. A face takes the threads no running face holds, split between the faces that can start now, so
+ * the threads a finished face gives back go to the faces after it.
+ *
+ * Difficulty is estimated from the grid alone, since it is needed before anything is solved: the open cells
+ * around each harvest cell, summed over the harvest cells. That is the number of targets times a rough
+ * measure of how many shapes each of them can be covered with. The estimate takes a single pass over the
+ * grid, and counts against the timeout like everything else.
+ */
+public final class FaceScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("FaceScheduler");
+
+    private static final double MIN_SLICE_SHARE = 0.5;
+    // Open cells within this many steps of a harvest cell count towards its difficulty
+    private static final int REACH = 2;
+
+    /**
+     * A face to solve.
+     *
+     * @param grid  the face, for estimating its difficulty
+     * @param solve solves the face with the given config, which carries its share of the time and threads
+     */
+    public record Job(FaceGrid grid, Consumer<SolverConfig> solve) {}
+
+    private FaceScheduler() {}
+
+    /**
+     * Runs all jobs within the timeout of {@code config} for all of them together, using at most the parallelism
+     * of {@code config} threads. Returns once every job is done.
+     */
+    public static void run(List<Job> jobs, SolverConfig config) {
+        int lanes = config.isParallelSearch() ? 1 : Math.clamp(config.getParallelism(), 1, Math.max(1, jobs.size()));
+        Schedule schedule = new Schedule(jobs, config, lanes);
+        if (lanes == 1) {
+            schedule.work();
+            return;
+        }
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(lanes)) {
+            for (Future<Void> future : executor.invokeAll(Collections.<Callable<Void>>nCopies(lanes, schedule::work))) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while solving faces", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to solve face", e.getCause());
+        }
+    }
+
+    /*
+     * The faces not started yet, and the threads not taken by running faces. Every lane takes the next face
+     * from here until none are left.
+     */
+    private static final class Schedule {
+        private final List<Job> jobs;
+        private final SolverConfig config;
+        private final int lanes;
+        private final long deadline;
+        private final long minSlice;
+        private final double[] weights;
+        private final int[] order;
+        private double unstarted;
+        private int started;
+        private int running;
+        private int idleThreads;
+        // When each running face is due to end, 0 for the others
+        private final long[] ends;
+
+        private Schedule(List<Job> jobs, SolverConfig config, int lanes) {
+            this.jobs = jobs;
+            this.config = config;
+            this.lanes = lanes;
+            deadline = System.currentTimeMillis() + config.getTimeoutMs();
+            // Even split of the timeout between the rounds of faces the lanes run one after another
+            minSlice = (long) (MIN_SLICE_SHARE * Math.min(config.getTimeoutMs(), config.getTimeoutMs() * lanes / Math.max(1, jobs.size())));
+            idleThreads = config.getParallelism();
+            ends = new long[jobs.size()];
+
+            weights = new double[jobs.size()];
+            for (int i = 0; i < jobs.size(); i++) {
+                // Faces without harvest cells still weigh something, so the shares are always defined
+                weights[i] = Math.max(1, difficulty(jobs.get(i).grid()));
+                unstarted += weights[i];
+            }
+            order = new int[jobs.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            // One lane: easiest first, so the time they leave goes to the harder faces. More lanes: hardest first, so they
+            // get a lane while there is the most time left, and the easy faces fill the other lanes around them.
+            IntArrays.stableSort(order, (a, b) -> lanes == 1 ? Double.compare(weights[a], weights[b]) : Double.compare(weights[b], weights[a]));
+        }
+
+        // Solves faces until none are left to start.
+        private Void work() {
+            while (true) {
+                int i;
+                SolverConfig faceConfig;
+                synchronized (this) {
+                    if (started == order.length) return null;
+                    i = order[started];
+                    faceConfig = start(i);
+                }
+                try {
+                    jobs.get(i).solve().accept(faceConfig);
+                } finally {
+                    synchronized (this) {
+                        running--;
+                        idleThreads += faceConfig.getParallelism();
+                        ends[i] = 0;
+                    }
+                }
+            }
+        }
+
+        // Takes the time and threads of the next face.
+        private SolverConfig start(int i) {
+            long now = System.currentTimeMillis();
+            long remaining = Math.max(0, deadline - now);
+            int left = order.length - started;
+            // Faces after this one that have to wait for a lane
+            int waiting = Math.max(0, left - 1 - (lanes - running - 1));
+            long timeout;
+            if (waiting == 0) {
+                timeout = remaining;
+            } else {
+                // Lane time not promised to the running faces yet, and the minimum slices the other lanes have room for
+                long free = lanes * remaining;
+                long slots = (lanes - running - 1) * (remaining / Math.max(1, minSlice));
+                for (long end : ends) {
+                    free -= Math.clamp(end - now, 0, remaining);
+                    if (end != 0) slots += Math.max(0, deadline - Math.max(now, end)) / Math.max(1, minSlice);
+                }
+                // At least the minimum slice, but leave the minimum slice for every waiting face the other lanes can't fit
+                long least = Math.min(minSlice, remaining);
+                long most = Math.max(least, remaining - minSlice * Math.max(0, waiting - slots));
+                timeout = Math.clamp((long) (free * weights[i] / unstarted), least, most);
+            }
+            int threads = Math.max(1, idleThreads / Math.max(1, Math.min(lanes - running, left)));
+
+            unstarted -= weights[i];
+            started++;
+            running++;
+            idleThreads -= threads;
+            ends[i] = now + timeout;
+            LOGGER.info("Solving {} face (difficulty {}) with {}ms of the {}ms left and {} threads",
+                    jobs.get(i).grid().direction(), (long) weights[i], timeout, remaining, threads);
+            return config.toBuilder().timeoutMs(timeout).parallelism(threads).build();
+        }
+    }
+
+    // Open cells within REACH steps of each harvest cell, summed over the harvest cells.
+    static long difficulty(FaceGrid grid) {
+        int rows = grid.width();
+        int cols = grid.height();
+        long difficulty = 0;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (grid.getCell(r, c) != FaceGrid.CELL_HARVEST) continue;
+                for (int nr = Math.max(0, r - REACH); nr <= Math.min(rows - 1, r + REACH); nr++) {
+                    int span = REACH - Math.abs(nr - r);
+                    for (int nc = Math.max(0, c - span); nc <= Math.min(cols - 1, c + span); nc++) {
+                        if (grid.getCell(nr, nc) != FaceGrid.CELL_BLOCKED) difficulty++;
+                    }
+                }
+            }
+        }
+        return difficulty;
+    }
+}
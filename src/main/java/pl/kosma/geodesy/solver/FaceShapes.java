@@ -0,0 +1,373 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.*;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ReferenceLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static pl.kosma.geodesy.solver.AbstractFaceSolver.*;
+
+/*
+ * The harvest cells of a grid, and the shapes that can cover each of them: the islands all solvers search over.
+ *
+ * Shared by the solvers (see AbstractFaceSolver) and by the passes that only look at the shapes (see FaceKernel).
+ * Works on the grid it is given, not a copy, so cells blocked before findTargets are left out.
+ */
+final class FaceShapes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("FaceShapes");
+
+    // Shape codes, see shapeCode
+    private static final int ANCHOR_SHIFT = 42;
+    private static final int MAX_CELLS = 1 << 18;
+    private static final long ANCHOR_MASK = (MAX_CELLS - 1L) << ANCHOR_SHIFT;
+
+    private final byte[][] grid;
+    private final int rows;
+    private final int cols;
+
+    // Cell keys of all harvest cells
+    final IntList targets = new IntArrayList();
+    // Map cell key -> index in targets, -1 if not a target
+    final Int2IntOpenHashMap targetIndices = new Int2IntOpenHashMap();
+    // Map target index -> shapes covering it
+    final Int2ObjectOpenHashMap<List<Shape>> possibleShapes = new Int2ObjectOpenHashMap<>();
+    // Targets whose enumeration stopped at MAX_SHAPES_PER_TARGET, so some islands covering them are not in possibleShapes
+    private int truncatedTargets;
+
+    FaceShapes(byte[][] grid, int rows, int cols) {
+        this.grid = grid;
+        this.rows = rows;
+        this.cols = cols;
+        targetIndices.defaultReturnValue(-1);
+    }
+
+    int cellBit(int row, int col) {
+        return row * cols + col;
+    }
+
+    void findTargets() {
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (grid[r][c] == FaceGrid.CELL_HARVEST) {
+                    int key = cellKey(r, c);
+                    targetIndices.put(key, targets.size());
+                    targets.add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether every island that can cover a harvest cell is in possibleShapes, or dominated by one that is
+     * (see removeDominatedShapes). Only then do bounds over the shapes hold for every layout of the grid.
+     */
+    boolean complete() {
+        return truncatedTargets == 0;
+    }
+
+    // Packs a shape into a long: its PolyominoLibrary template, with the cell bit of the anchor in bits 42-59.
+    private long shapeCode(int[] cells, int count) {
+        int anchor = PolyominoLibrary.anchor(cells, count);
+        return PolyominoLibrary.encode(cells, count, anchor) | (long) cellBit(keyRow(anchor), keyCol(anchor)) << ANCHOR_SHIFT;
+    }
+
+    // Writes the cell keys of the shape into cells and returns how many there are.
+    private int decodeShape(long code, int[] cells) {
+        int anchorBit = (int) ((code & ANCHOR_MASK) >>> ANCHOR_SHIFT);
+        return PolyominoLibrary.decode(code, cellKey(anchorBit / cols, anchorBit % cols), cells);
+    }
+
+    // Fills possibleShapes, without a time limit.
+    void enumerate() {
+        enumerate(null, Long.MAX_VALUE);
+    }
+
+    /*
+     * Grows shapes from every target, breadth first, harvest cells first. While growing, a shape is only its
+     * shapeCode; cell sets and masks are built only for the shapes that end up in possibleShapes.
+     *
+     * Gives up, and returns false, once the cancellation token (if any) is cancelled or the deadline has passed.
+     * possibleShapes is incomplete then.
+     */
+    boolean enumerate(CancellationToken cancellation, long deadline) {
+        LOGGER.debug("Pre-computing shapes...");
+        if (rows * cols > MAX_CELLS) throw new IllegalArgumentException("Face too large: " + rows + "x" + cols);
+
+        SolverWorkspace workspace = SolverWorkspace.acquire(rows * cols);
+        try {
+            return enumerate(workspace, cancellation, deadline);
+        } finally {
+            workspace.release();
+        }
+    }
+
+    private boolean enumerate(SolverWorkspace workspace, CancellationToken cancellation, long deadline) {
+        LongSet seenShapesGlobal = workspace.seenShapes;
+        seenShapesGlobal.clear();
+        // Kept shapes by the harvest cells they cover, see harvestKey
+        Long2ObjectOpenHashMap<List<Shape>> shapesByHarvest = new Long2ObjectOpenHashMap<>();
+        // Cells of the shape being grown, and room for one more
+        int[] cells = workspace.shapeCells;
+
+        for (int tIdx = 0; tIdx < targets.size(); tIdx++) {
+            if (cancellation != null && cancellation.isCancelled() || deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            possibleShapes.computeIfAbsent(tIdx, k -> new ArrayList<>());
+
+            cells[0] = targets.getInt(tIdx);
+
+            // BFS to find shapes starting from this target
+            LongArrayFIFOQueue queueHarvest = workspace.queueHarvest;
+            LongArrayFIFOQueue queueAir = workspace.queueAir;
+            LongSet seenLocal = workspace.seenLocal;
+            queueHarvest.clear();
+            queueAir.clear();
+            seenLocal.clear();
+
+            long initial = shapeCode(cells, 1);
+            queueHarvest.enqueue(initial);
+            seenLocal.add(initial);
+
+            int shapesFound = 0;
+
+            while ((!queueHarvest.isEmpty() || !queueAir.isEmpty()) && shapesFound < MAX_SHAPES_PER_TARGET) {
+                long current = !queueHarvest.isEmpty() ? queueHarvest.dequeueLong() : queueAir.dequeueLong();
+
+                int size = decodeShape(current, cells);
+                if (size >= MAX_ISLAND_SIZE) continue;
+
+                for (int i = 0; i < size; i++) {
+                    for (int dir : DIRECTIONS) {
+                        int n = cells[i] + dir;
+                        int nr = keyRow(n);
+                        int nc = keyCol(n);
+                        if (nr < 0 || nr >= rows || nc < 0 || nc >= cols || grid[nr][nc] == FaceGrid.CELL_BLOCKED || contains(cells, size, n)) continue;
+
+                        cells[size] = n;
+                        long newShape = shapeCode(cells, size + 1);
+                        if (!seenLocal.add(newShape)) continue;
+
+                        // We have not seen this shape locally
+                        // Prioritize harvest-cell neighbors
+                        if (grid[nr][nc] == FaceGrid.CELL_HARVEST) {
+                            queueHarvest.enqueue(newShape);
+                        } else {
+                            queueAir.enqueue(newShape);
+                        }
+
+                        if (size + 1 < MIN_ISLAND_SIZE) continue;
+
+                        int machine = PolyominoLibrary.machine(newShape & ~ANCHOR_MASK);
+                        if (machine == PolyominoLibrary.NO_MACHINE) continue;
+
+                        if (!seenShapesGlobal.add(newShape)) continue;
+
+                        // We have not seen this shape globally
+                        // Dominated shapes are never built, and don't count towards the limit, so it holds alternatives worth searching
+                        int anchor = PolyominoLibrary.anchor(cells, size + 1);
+                        if (isDominated(workspace, shapesByHarvest, cells, size + 1, anchor, machine)) continue;
+                        IntSet shapeCells = IntSets.unmodifiable(new IntOpenHashSet(cells, 0, size + 1));
+                        Shape shape = createShape(shapeCells, flyingMachine(anchor, machine));
+                        shapesByHarvest.computeIfAbsent(harvestKey(shape.targetIndices()), k -> new ArrayList<>()).add(shape);
+
+                        // Assign shape to every target it covers
+                        for (int key : shapeCells) {
+                            int ti = targetIndices.get(key);
+                            if (ti != -1) {
+                                possibleShapes.computeIfAbsent(ti, k -> new ArrayList<>()).add(shape);
+                            }
+                        }
+
+                        shapesFound++;
+                    }
+                }
+            }
+            if (!queueHarvest.isEmpty() || !queueAir.isEmpty()) truncatedTargets++;
+            workspace.noteEnumerated();
+        }
+
+        int dominated = removeDominatedShapes(shapesByHarvest);
+        LOGGER.debug("Found {} unique shapes, dropped {} dominated by smaller ones, {} targets cut short", seenShapesGlobal.size(), dominated,
+                truncatedTargets);
+        return true;
+    }
+
+    /*
+     * A shape is dominated by a smaller shape inside it that covers the same harvest cells, and whose stem touches
+     * nothing outside the larger shape that the larger shape's stem doesn't. Any layout can swap the larger island
+     * for the smaller one: it occupies and touches only cells the larger one did, so it fits wherever that one fit,
+     * with the same material, and scores the same.
+     *
+     * Shapes found after a shape that dominates them are never added (see enumerate); this drops the ones
+     * found before it. Returns how many were dropped.
+     */
+    private int removeDominatedShapes(Long2ObjectOpenHashMap<List<Shape>> shapesByHarvest) {
+        ReferenceOpenHashSet<Shape> dominated = new ReferenceOpenHashSet<>();
+        for (List<Shape> shapes : shapesByHarvest.values()) {
+            for (Shape shape : shapes) {
+                if (isDominated(shapesByHarvest, shape)) dominated.add(shape);
+            }
+        }
+        if (dominated.isEmpty()) return 0;
+
+        for (List<Shape> shapes : possibleShapes.values()) {
+            shapes.removeIf(dominated::contains);
+        }
+        return dominated.size();
+    }
+
+    // Whether a kept shape dominates this one.
+    private boolean isDominated(Long2ObjectOpenHashMap<List<Shape>> shapesByHarvest, Shape shape) {
+        return isDominated(shapesByHarvest.get(harvestKey(shape.targetIndices())), shape.mask(), shape.flyingMachine().stemNeighborsMask(),
+                shape.cells().size(), shape.onesCovered());
+    }
+
+    // Same for a shape being grown, with the cells and flying machine it would get.
+    private boolean isDominated(SolverWorkspace workspace, Long2ObjectOpenHashMap<List<Shape>> shapesByHarvest, int[] cells, int count,
+                                int anchor, int machine) {
+        BitSet mask = workspace.shapeMask;
+        mask.clear();
+        int ones = 0;
+        long harvestKey = 0;
+        for (int i = 0; i < count; i++) {
+            mask.set(cellBit(keyRow(cells[i]), keyCol(cells[i])));
+            int ti = targetIndices.get(cells[i]);
+            if (ti != -1) {
+                ones++;
+                harvestKey ^= HashCommon.mix(ti + 1L);
+            }
+        }
+        List<Shape> sameHarvest = shapesByHarvest.get(harvestKey);
+        if (sameHarvest == null) return false;
+
+        BitSet stemNeighbors = workspace.stemNeighborsMask;
+        stemNeighbors.clear();
+        int key = anchor + PolyominoLibrary.stemCenter(machine);
+        int stemDir = PolyominoLibrary.stemAlongRows(machine) ? DIRECTIONS[2] : DIRECTIONS[0];
+        for (int stem = key - stemDir; stem != key + 2 * stemDir; stem += stemDir) {
+            for (int dir : DIRECTIONS) {
+                int n = stem + dir;
+                int nr = keyRow(n);
+                int nc = keyCol(n);
+                if (nr >= 0 && nr < rows && nc >= 0 && nc < cols && n != key - stemDir && n != key && n != key + stemDir) {
+                    stemNeighbors.set(cellBit(nr, nc));
+                }
+            }
+        }
+        return isDominated(sameHarvest, mask, stemNeighbors, count, ones);
+    }
+
+    // A dominating shape covers the same harvest cells, so only the shapes with the same harvest key are checked
+    private static boolean isDominated(List<Shape> sameHarvest, BitSet mask, BitSet stemNeighbors, int size, int ones) {
+        if (sameHarvest == null) return false;
+        for (Shape other : sameHarvest) {
+            if (dominates(other, mask, stemNeighbors, size, ones)) return true;
+        }
+        return false;
+    }
+
+    // Hash of a set of targets, the same in any order. Different sets rarely collide, and only cost a subset check.
+    private static long harvestKey(int[] targetIndices) {
+        long key = 0;
+        for (int ti : targetIndices) {
+            key ^= HashCommon.mix(ti + 1L);
+        }
+        return key;
+    }
+
+    private static boolean dominates(Shape smaller, BitSet mask, BitSet stemNeighbors, int size, int ones) {
+        // Inside the larger shape, so covering the same harvest cells means covering as many
+        if (smaller.onesCovered() != ones || smaller.cells().size() >= size) return false;
+        if (!isSubset(smaller.mask(), mask)) return false;
+
+        BitSet smallerStemNeighbors = smaller.flyingMachine().stemNeighborsMask();
+        for (int bit = smallerStemNeighbors.nextSetBit(0); bit >= 0; bit = smallerStemNeighbors.nextSetBit(bit + 1)) {
+            if (!mask.get(bit) && !stemNeighbors.get(bit)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isSubset(BitSet subset, BitSet set) {
+        for (int bit = subset.nextSetBit(0); bit >= 0; bit = subset.nextSetBit(bit + 1)) {
+            if (!set.get(bit)) return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] cells, int count, int key) {
+        for (int i = 0; i < count; i++) {
+            if (cells[i] == key) return true;
+        }
+        return false;
+    }
+
+    // Distinct shapes that add to the score, in target order. Any other island can be dropped without breaking a constraint.
+    List<Shape> profitableShapes(double islandCost) {
+        ReferenceLinkedOpenHashSet<Shape> unique = new ReferenceLinkedOpenHashSet<>();
+        for (int tIdx = 0; tIdx < targets.size(); tIdx++) {
+            for (Shape shape : possibleShapes.getOrDefault(tIdx, Collections.emptyList())) {
+                if (shape.onesCovered() > islandCost) unique.add(shape);
+            }
+        }
+        return new ArrayList<>(unique);
+    }
+
+    // The flying machine of a library machine placement, relative to the anchor of its shape
+    FlyingMachine flyingMachine(int anchor, int machine) {
+        int key = anchor + PolyominoLibrary.stemCenter(machine);
+        int stemDir = PolyominoLibrary.stemAlongRows(machine) ? DIRECTIONS[2] : DIRECTIONS[0];
+        return createFlyingMachine(key - stemDir, key, key + stemDir, anchor + PolyominoLibrary.stopper(machine));
+    }
+
+    private FlyingMachine createFlyingMachine(int prevKey, int key, int nextKey, int target) {
+        IntSet stemCells = IntSet.of(prevKey, key, nextKey);
+        return new FlyingMachine(stemCells, getMask(stemCells), getNeighborsMask(stemCells), target);
+    }
+
+    Shape createShape(IntSet newShape, FlyingMachine flyingMachine) {
+        IntList covered = new IntArrayList(newShape.size());
+
+        for (int key : newShape) {
+            int ti = targetIndices.get(key);
+            if (ti != -1) {
+                covered.add(ti);
+            }
+        }
+
+        return new Shape(newShape, getMask(newShape), getNeighborsMask(newShape), covered.size(), covered.toIntArray(), flyingMachine);
+    }
+
+    private BitSet getMask(IntSet cells) {
+        BitSet mask = new BitSet();
+        for (int key : cells) {
+            int r = keyRow(key);
+            int c = keyCol(key);
+            mask.set(cellBit(r, c));
+        }
+        return mask;
+    }
+
+    private BitSet getNeighborsMask(IntSet shape) {
+        BitSet neighborsMask = new BitSet();
+        for (int key : shape) {
+            for (int dir : DIRECTIONS) {
+                int nKey = key + dir;
+                int nr = keyRow(nKey);
+                int nc = keyCol(nKey);
+                if (nr >= 0 && nr < rows && nc >= 0 && nc < cols && !shape.contains(nKey)) {
+                    neighborsMask.set(cellBit(nr, nc));
+                }
+            }
+        }
+        return neighborsMask;
+    }
+}
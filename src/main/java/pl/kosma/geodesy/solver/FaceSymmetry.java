@@ -0,0 +1,134 @@
+package pl.kosma.geodesy.solver;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The 8 symmetries of a rectangular grid (the dihedral group D4): optional mirroring along x and y, then an optional transpose.
+ *
+ * <p>The solver only looks at the cells of a face, so faces that are rotations or mirror images of each other
+ * have the same solutions up to the symmetry. {@link #canonicalize} maps every face to a representative shared
+ * by all of its images, so they can be solved (and cached) once.
+ */
+public enum FaceSymmetry {
+    IDENTITY(false, false, false),
+    MIRROR_X(true, false, false),
+    MIRROR_Y(false, true, false),
+    ROTATE_180(true, true, false),
+    TRANSPOSE(false, false, true),
+    ROTATE_CW(true, false, true),
+    ROTATE_CCW(false, true, true),
+    ANTI_TRANSPOSE(true, true, true);
+
+    private final boolean mirrorX;
+    private final boolean mirrorY;
+    private final boolean transpose;
+
+    FaceSymmetry(boolean mirrorX, boolean mirrorY, boolean transpose) {
+        this.mirrorX = mirrorX;
+        this.mirrorY = mirrorY;
+        this.transpose = transpose;
+    }
+
+    /**
+     * A face in its canonical orientation.
+     *
+     * @param original  the face as projected
+     * @param grid      the face moved by {@code symmetry}; its direction is the original one
+     * @param symmetry  the symmetry moving the original face to the canonical one
+     */
+    public record Canonical(FaceGrid original, FaceGrid grid, FaceSymmetry symmetry) {
+        // Moves a result for the canonical grid back onto the original face.
+        public SolverResult restore(SolverResult result) {
+            return symmetry.restore(result, original);
+        }
+    }
+
+    /**
+     * Picks the image of the face with the smallest width, then the smallest cells in row-major order.
+     * Symmetric faces get IDENTITY, so nothing moves when nothing needs to.
+     */
+    public static Canonical canonicalize(FaceGrid input) {
+        FaceSymmetry best = IDENTITY;
+        FaceGrid bestGrid = input;
+        for (FaceSymmetry symmetry : values()) {
+            if (symmetry == IDENTITY) continue;
+            FaceGrid image = symmetry.apply(input);
+            if (compare(image, bestGrid) < 0) {
+                best = symmetry;
+                bestGrid = image;
+            }
+        }
+        return new Canonical(input, bestGrid, best);
+    }
+
+    public FaceGrid apply(FaceGrid input) {
+        int width = transpose ? input.height() : input.width();
+        int height = transpose ? input.width() : input.height();
+        FaceGrid image = new FaceGrid(width, height, input.direction());
+        for (int x = 0; x < input.width(); x++) {
+            for (int y = 0; y < input.height(); y++) {
+                int key = map(AbstractFaceSolver.cellKey(x, y), input.width(), input.height());
+                image.setCell(AbstractFaceSolver.keyRow(key), AbstractFaceSolver.keyCol(key), input.getCell(x, y));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Moves a result for {@code apply(original)} back onto {@code original}: placements, island cells,
+     * stems and stoppers.
+     */
+    public SolverResult restore(SolverResult result, FaceGrid original) {
+        SolverResult.Builder builder = SolverResult.builder(original.width(), original.height(), original.direction())
+                .totalHarvest(result.totalHarvest())
+                .harvestCovered(result.harvestCovered())
+                .solveTimeMs(result.solveTimeMs())
+                .stopReason(result.stopReason())
+                .upperBound(result.upperBound())
+                .shapesComplete(result.shapesComplete())
+                .cached(result.cached());
+
+        IntUnaryOperator inverse = key -> unmap(key, original.width(), original.height());
+        for (AbstractFaceSolver.Island island : result.islands()) {
+            AbstractFaceSolver.Island restored = this == IDENTITY ? island : island.remap(inverse, original.width(), original.height());
+            for (int key : restored.cells()) {
+                builder.setPlacement(AbstractFaceSolver.keyRow(key), AbstractFaceSolver.keyCol(key), restored.material());
+            }
+            builder.addIsland(restored);
+        }
+        return builder.build();
+    }
+
+    // Cell key in a width x height face -> cell key in its image
+    private int map(int key, int width, int height) {
+        int x = AbstractFaceSolver.keyRow(key);
+        int y = AbstractFaceSolver.keyCol(key);
+        if (mirrorX) x = width - 1 - x;
+        if (mirrorY) y = height - 1 - y;
+        return transpose ? AbstractFaceSolver.cellKey(y, x) : AbstractFaceSolver.cellKey(x, y);
+    }
+
+    // Cell key in the image -> cell key in the width x height face
+    private int unmap(int key, int width, int height) {
+        int x = AbstractFaceSolver.keyRow(key);
+        int y = AbstractFaceSolver.keyCol(key);
+        if (transpose) {
+            int swap = x;
+            x = y;
+            y = swap;
+        }
+        if (mirrorX) x = width - 1 - x;
+        if (mirrorY) y = height - 1 - y;
+        return AbstractFaceSolver.cellKey(x, y);
+    }
+
+    private static int compare(FaceGrid a, FaceGrid b) {
+        if (a.width() != b.width()) return Integer.compare(a.width(), b.width());
+        for (int x = 0; x < a.width(); x++) {
+            int c = Arrays.compare(a.cells()[x], b.cells()[x]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,23 @@
+package pl.kosma.geodesy.solver;
+
+/**
+ * Receives every improved solution a solver finds while it is still running.
+ * Called on the solver's threads, so implementations must be quick and thread-safe.
+ */
+@FunctionalInterface
+public interface IncumbentListener {
+    IncumbentListener NONE = (incumbent, score) -> {};
+
+    /**
+     * @param incumbent the new best solution, with the time spent so far as its solve time
+     * @param score     harvest cells covered minus the cost of the islands
+     */
+    void onIncumbent(SolverResult incumbent, double score);
+
+    /**
+     * Best score the listener knows of, from any solver. Solvers may prune everything that cannot beat it.
+     */
+    default double bestScore() {
+        return Double.NEGATIVE_INFINITY;
+    }
+}
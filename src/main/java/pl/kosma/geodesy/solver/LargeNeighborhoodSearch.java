@@ -0,0 +1,486 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static pl.kosma.geodesy.solver.AbstractFaceSolver.*;
+
+/*
+ * Large neighbourhood search over a finished solution, run in the part of the time budget kept back from the search.
+ *
+ * Every step destroys the islands touching a small window of the face and re-solves the window exactly, unless it
+ * runs out of NODE_BUDGET: a branch and bound over the enumerated shapes of the freed harvest cells, with the rest of
+ * the solution fixed. The bound also counts the uncovered harvest cells outside the window that those shapes reach.
+ * Windows are centred on an uncovered harvest cell (where score is lost) or on a random one.
+ * The new solution is accepted by a simulated annealing schedule, and the best one seen is kept.
+ *
+ * Materials are not branched on. With two materials, a set of islands can be coloured iff its adjacency graph
+ * is bipartite, which a union-find with parities checks as islands are added. When a new island joins two
+ * components, one of them is flipped as a whole: a Kempe chain recolouring, which lets a shape in between
+ * islands of both materials still be placed.
+ */
+final class LargeNeighborhoodSearch {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("LargeNeighborhoodSearch");
+
+    // Side of the destroyed window, in cells
+    private static final int WINDOW_SIZE = 6;
+    // Search nodes per window; the best set found within the budget is used.
+    private static final int NODE_BUDGET = 2_000;
+    // Annealing temperatures, in harvest cells, at the start and at the end of the time (or work) budget
+    private static final double START_TEMPERATURE = 1.0;
+    private static final double END_TEMPERATURE = 0.05;
+    private static final long SEED = 0x6E0DE5L;
+
+    private final AbstractFaceSolver solver;
+    private final int rows;
+    private final int cols;
+    private final Random random = new Random(SEED);
+
+    // Per window
+    private int[] owner;  // Per cell bit: node of the island covering it, or -1
+    private BitSet stemMask;  // Stems of all placed islands
+    private BitSet skipped;  // Window targets the search left uncovered
+    private final List<BitSet> keptNeighbors = new ArrayList<>();
+    private final ParityUnionFind components = new ParityUnionFind();
+    private List<List<AbstractFaceSolver.Shape>> candidates;
+    private double[] gains;
+    private IntList windowTargets;
+    private int keptCount;
+    private final List<AbstractFaceSolver.Shape> chosen = new ArrayList<>();
+    private List<AbstractFaceSolver.Shape> bestChosen;
+    private double bestChosenScore;
+    private int nodes;
+
+    LargeNeighborhoodSearch(AbstractFaceSolver solver) {
+        this.solver = solver;
+        this.rows = solver.rows;
+        this.cols = solver.cols;
+    }
+
+    /**
+     * Runs until the deadline, or until {@code workBudget} search nodes (plus one per step) have been used.
+     * With a work budget, the annealing schedule follows the work done instead of the clock, so the result
+     * does not depend on the machine.
+     *
+     * @param workBudget search nodes, or Long.MAX_VALUE for none
+     * @return the best solution found within the budgets, never worse than {@code solution}
+     */
+    List<AbstractFaceSolver.Island> run(List<AbstractFaceSolver.Island> solution, long startTime, long deadline, long workBudget,
+                                        CancellationToken cancellation) {
+        List<AbstractFaceSolver.Island> current = solution;
+        double currentScore = score(current);
+        List<AbstractFaceSolver.Island> best = current;
+        double bestScore = currentScore;
+
+        int steps = 0;
+        int accepted = 0;
+        long work = 0;
+        long now;
+        while ((now = System.currentTimeMillis()) < deadline && work < workBudget && !cancellation.isCancelled()) {
+            double progress = workBudget != Long.MAX_VALUE
+                    ? (double) work / workBudget
+                    : (double) (now - startTime) / Math.max(1, deadline - startTime);
+            double temperature = START_TEMPERATURE * Math.pow(END_TEMPERATURE / START_TEMPERATURE, progress);
+
+            nodes = 0;
+            List<AbstractFaceSolver.Island> next = step(current);
+            steps++;
+            work += nodes + 1;
+            if (next == null) continue;
+
+            double nextScore = score(next);
+            double delta = nextScore - currentScore;
+            if (delta >= 0 || random.nextDouble() < Math.exp(delta / temperature)) {
+                current = next;
+                currentScore = nextScore;
+                accepted++;
+                if (currentScore > bestScore + 1e-9) {
+                    best = current;
+                    bestScore = currentScore;
+                }
+            }
+        }
+
+        LOGGER.debug("{} steps ({} nodes), {} accepted, score {} -> {}", steps, work, accepted, score(solution), bestScore);
+        return best;
+    }
+
+    private double score(List<AbstractFaceSolver.Island> islands) {
+        double score = 0;
+        for (AbstractFaceSolver.Island island : islands) {
+            score += harvestCount(island.mask()) - solver.islandCost;
+        }
+        return score;
+    }
+
+    private int harvestCount(BitSet mask) {
+        int count = 0;
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            if (solver.grid[bit / cols][bit % cols] == FaceGrid.CELL_HARVEST) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Destroys and re-solves one window.
+     *
+     * @return the new solution, or null if nothing changed
+     */
+    private List<AbstractFaceSolver.Island> step(List<AbstractFaceSolver.Island> current) {
+        BitSet covered = new BitSet(rows * cols);
+        for (AbstractFaceSolver.Island island : current) {
+            covered.or(island.mask());
+        }
+
+        // Centre: an uncovered harvest cell half of the time, if there is one
+        IntList uncovered = new IntArrayList();
+        for (int key : solver.targets) {
+            if (!covered.get(keyRow(key) * cols + keyCol(key))) uncovered.add(key);
+        }
+        IntList pool = !uncovered.isEmpty() && random.nextBoolean() ? uncovered : solver.targets;
+        int center = pool.getInt(random.nextInt(pool.size()));
+        int r0 = Math.clamp(keyRow(center) - WINDOW_SIZE / 2, 0, Math.max(0, rows - WINDOW_SIZE));
+        int c0 = Math.clamp(keyCol(center) - WINDOW_SIZE / 2, 0, Math.max(0, cols - WINDOW_SIZE));
+        BitSet window = new BitSet(rows * cols);
+        for (int r = r0; r < Math.min(rows, r0 + WINDOW_SIZE); r++) {
+            window.set(r * cols + c0, r * cols + Math.min(cols, c0 + WINDOW_SIZE));
+        }
+
+        List<AbstractFaceSolver.Island> kept = new ArrayList<>();
+        List<AbstractFaceSolver.Island> destroyed = new ArrayList<>();
+        BitSet freed = (BitSet) window.clone();
+        for (AbstractFaceSolver.Island island : current) {
+            if (island.mask().intersects(window)) {
+                freed.or(island.mask());
+                destroyed.add(island);
+            } else {
+                kept.add(island);
+            }
+        }
+        if (destroyed.isEmpty() && uncovered.isEmpty()) return null;
+
+        prepare(kept, destroyed, freed);
+        if (windowTargets.isEmpty()) return null;
+
+        chosen.clear();
+        bestChosen = List.of();
+        bestChosenScore = 0;
+        nodes = 0;
+        double remainingGain = 0;
+        for (double gain : gains) remainingGain += gain;
+        search(0, 0, remainingGain);
+
+        return recolor(kept, bestChosen);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void prepare(List<AbstractFaceSolver.Island> kept, List<AbstractFaceSolver.Island> destroyed, BitSet freed) {
+        keptCount = kept.size();
+        owner = new int[rows * cols];
+        Arrays.fill(owner, -1);
+        stemMask = new BitSet(rows * cols);
+        skipped = new BitSet(rows * cols);
+        for (int i = 0; i < kept.size(); i++) {
+            AbstractFaceSolver.Island island = kept.get(i);
+            BitSet mask = island.mask();
+            for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+                owner[bit] = i;
+            }
+            stemMask.or(island.flyingMachine().stemMask());
+        }
+
+        // The destroyed islands are tried first, so the window can always be rebuilt as it was.
+        Int2ObjectOpenHashMap<List<AbstractFaceSolver.Shape>> previous = new Int2ObjectOpenHashMap<>();
+        for (AbstractFaceSolver.Island island : destroyed) {
+            AbstractFaceSolver.Shape shape = solver.createShape(island.cells(), island.flyingMachine());
+            for (int ti : shape.targetIndices()) {
+                previous.computeIfAbsent(ti, k -> new ArrayList<>()).add(shape);
+            }
+        }
+
+        // Freed harvest cells, and the shapes that could cover them next to the kept islands
+        windowTargets = new IntArrayList();
+        List<List<AbstractFaceSolver.Shape>> shapeLists = new ArrayList<>();
+        Int2IntOpenHashMap windowIndex = new Int2IntOpenHashMap();
+        for (int ti = 0; ti < solver.targets.size(); ti++) {
+            int key = solver.targets.getInt(ti);
+            int bit = keyRow(key) * cols + keyCol(key);
+            if (!freed.get(bit) || owner[bit] >= 0) continue;
+
+            List<AbstractFaceSolver.Shape> shapes = new ArrayList<>();
+            for (AbstractFaceSolver.Shape shape : solver.possibleShapes.getOrDefault(ti, List.of())) {
+                if (shape.onesCovered() <= solver.islandCost || !fits(shape)) continue;
+                shapes.add(shape);
+            }
+            shapes.sort(Comparator.comparingInt(AbstractFaceSolver.Shape::onesCovered).reversed());
+            for (AbstractFaceSolver.Shape shape : previous.getOrDefault(ti, List.of())) {
+                if (shape.onesCovered() <= solver.islandCost) continue;
+                shapes.addFirst(shape);
+            }
+            if (shapes.isEmpty()) continue;
+            windowIndex.put(ti, windowTargets.size());
+            windowTargets.add(bit);
+            shapeLists.add(shapes);
+        }
+        candidates = shapeLists;
+
+        // Bound: every target a candidate covers, in the window or not, is worth the best share of the score of the
+        // candidates covering it. A window target is settled at its own index, a target outside the window only
+        // after the last window target with a candidate that reaches it.
+        Int2DoubleOpenHashMap bestShare = new Int2DoubleOpenHashMap();
+        Int2IntOpenHashMap settledAt = new Int2IntOpenHashMap(windowIndex);
+        for (int idx = 0; idx < shapeLists.size(); idx++) {
+            for (AbstractFaceSolver.Shape shape : shapeLists.get(idx)) {
+                double share = (shape.onesCovered() - solver.islandCost) / Math.max(1, shape.targetIndices().length);
+                for (int ti : shape.targetIndices()) {
+                    bestShare.mergeDouble(ti, share, Math::max);
+                    if (!windowIndex.containsKey(ti)) settledAt.put(ti, idx);
+                }
+            }
+        }
+        gains = new double[shapeLists.size()];
+        for (Int2DoubleMap.Entry entry : bestShare.int2DoubleEntrySet()) {
+            gains[settledAt.get(entry.getIntKey())] += entry.getDoubleValue();
+        }
+
+        // Kept islands keep their relative materials
+        components.reset(keptCount + windowTargets.size());
+        keptNeighbors.clear();
+        for (int i = 0; i < kept.size(); i++) {
+            BitSet neighbors = neighborsMask(kept.get(i).cells(), rows, cols);
+            keptNeighbors.add(neighbors);
+            for (int bit = neighbors.nextSetBit(0); bit >= 0; bit = neighbors.nextSetBit(bit + 1)) {
+                if (owner[bit] >= 0) components.union(i, owner[bit]);
+            }
+        }
+        components.commit();
+    }
+
+    // Whether the shape can be placed next to the kept islands, apart from materials.
+    private boolean fits(AbstractFaceSolver.Shape shape) {
+        BitSet mask = shape.mask();
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            if (owner[bit] >= 0) return false;
+        }
+        return !stemMask.intersects(shape.flyingMachine().stemNeighborsMask());
+    }
+
+    private void search(int idx, double score, double remainingGain) {
+        if (score > bestChosenScore + 1e-9) {
+            bestChosenScore = score;
+            bestChosen = new ArrayList<>(chosen);
+        }
+        if (idx >= windowTargets.size() || ++nodes > NODE_BUDGET) return;
+        if (score + remainingGain <= bestChosenScore + 1e-9) return;
+
+        int bit = windowTargets.getInt(idx);
+        double rest = remainingGain - gains[idx];
+        if (owner[bit] >= 0) {
+            search(idx + 1, score, rest);
+            return;
+        }
+
+        int node = keptCount + chosen.size();
+        for (AbstractFaceSolver.Shape shape : candidates.get(idx)) {
+            int mark = components.mark();
+            if (!place(shape, node)) continue;
+            chosen.add(shape);
+            search(idx + 1, score + shape.onesCovered() - solver.islandCost, rest);
+            chosen.removeLast();
+            remove(shape);
+            components.rollback(mark);
+            if (nodes > NODE_BUDGET) return;
+        }
+
+        // A shape covering this target would have been tried here, so none after it may
+        skipped.set(bit);
+        search(idx + 1, score, rest);
+        skipped.clear(bit);
+    }
+
+    private boolean place(AbstractFaceSolver.Shape shape, int node) {
+        BitSet mask = shape.mask();
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            if (owner[bit] >= 0) return false;
+        }
+        if (stemMask.intersects(shape.flyingMachine().stemNeighborsMask()) || skipped.intersects(mask)) return false;
+
+        int mark = components.mark();
+        BitSet neighbors = shape.neighborsMask();
+        for (int bit = neighbors.nextSetBit(0); bit >= 0; bit = neighbors.nextSetBit(bit + 1)) {
+            if (owner[bit] >= 0 && !components.union(node, owner[bit])) {
+                components.rollback(mark);
+                return false;
+            }
+        }
+
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            owner[bit] = node;
+        }
+        stemMask.or(shape.flyingMachine().stemMask());
+        return true;
+    }
+
+    private void remove(AbstractFaceSolver.Shape shape) {
+        BitSet mask = shape.mask();
+        for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+            owner[bit] = -1;
+        }
+        stemMask.andNot(shape.flyingMachine().stemMask());
+    }
+
+    /**
+     * Colours the kept islands plus the chosen shapes. Every component keeps the material of its first kept island,
+     * the rest of it follows by parity.
+     */
+    private List<AbstractFaceSolver.Island> recolor(List<AbstractFaceSolver.Island> kept, List<AbstractFaceSolver.Shape> shapes) {
+        int total = kept.size() + shapes.size();
+        components.reset(total);
+        Arrays.fill(owner, -1);
+        List<BitSet> masks = new ArrayList<>(total);
+        List<BitSet> neighbors = new ArrayList<>(total);
+        for (AbstractFaceSolver.Island island : kept) {
+            masks.add(island.mask());
+        }
+        neighbors.addAll(keptNeighbors);
+        for (AbstractFaceSolver.Shape shape : shapes) {
+            masks.add(shape.mask());
+            neighbors.add(shape.neighborsMask());
+        }
+        for (int i = 0; i < total; i++) {
+            BitSet mask = masks.get(i);
+            for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+                owner[bit] = i;
+            }
+        }
+        for (int i = 0; i < total; i++) {
+            BitSet mask = neighbors.get(i);
+            for (int bit = mask.nextSetBit(0); bit >= 0; bit = mask.nextSetBit(bit + 1)) {
+                if (owner[bit] >= 0) components.union(i, owner[bit]);
+            }
+        }
+
+        // Material of every component root: the one making its first kept island keep its material
+        byte[] rootMaterial = new byte[total];
+        for (int i = 0; i < kept.size(); i++) {
+            int root = components.find(i);
+            if (rootMaterial[root] == 0) {
+                rootMaterial[root] = flip(kept.get(i).material(), components.parity(i));
+            }
+        }
+
+        List<AbstractFaceSolver.Island> islands = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            int root = components.find(i);
+            if (rootMaterial[root] == 0) rootMaterial[root] = SLIME;
+            byte material = flip(rootMaterial[root], components.parity(i));
+            if (i < kept.size()) {
+                AbstractFaceSolver.Island island = kept.get(i);
+                islands.add(island.material() == material ? island
+                        : new AbstractFaceSolver.Island(island.cells(), island.mask(), island.flyingMachine(), material));
+            } else {
+                AbstractFaceSolver.Shape shape = shapes.get(i - kept.size());
+                islands.add(new AbstractFaceSolver.Island(shape.cells(), shape.mask(), shape.flyingMachine(), material));
+            }
+        }
+        return islands;
+    }
+
+    private static byte flip(byte material, int parity) {
+        return parity == 0 ? material : material == SLIME ? HONEY : SLIME;
+    }
+
+    /*
+     * Union-find where every node also has a parity relative to its root: islands with different parities
+     * in one component get different materials. Unions can be rolled back in order, so it has no path compression.
+     */
+    private static final class ParityUnionFind {
+        private int[] parent = new int[0];
+        private int[] parity = new int[0];
+        private int[] size = new int[0];
+        private final IntArrayList history = new IntArrayList();  // Roots attached by each union, -1 for no-ops
+
+        private void reset(int count) {
+            if (parent.length < count) {
+                parent = new int[count];
+                parity = new int[count];
+                size = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                parent[i] = i;
+                parity[i] = 0;
+                size[i] = 1;
+            }
+            history.clear();
+        }
+
+        // Unions so far can no longer be rolled back.
+        private void commit() {
+            history.clear();
+        }
+
+        private int mark() {
+            return history.size();
+        }
+
+        private int find(int node) {
+            while (parent[node] != node) node = parent[node];
+            return node;
+        }
+
+        private int parity(int node) {
+            int p = 0;
+            while (parent[node] != node) {
+                p ^= parity[node];
+                node = parent[node];
+            }
+            return p;
+        }
+
+        /**
+         * Puts the nodes in one component with different parities.
+         *
+         * @return false if they already are in one component with the same parity
+         */
+        private boolean union(int a, int b) {
+            int rootA = find(a);
+            int rootB = find(b);
+            int p = parity(a) ^ parity(b) ^ 1;
+            if (rootA == rootB) {
+                history.add(-1);
+                return p == 0;
+            }
+            if (size[rootA] < size[rootB]) {
+                int t = rootA;
+                rootA = rootB;
+                rootB = t;
+            }
+            parent[rootB] = rootA;
+            parity[rootB] = p;
+            size[rootA] += size[rootB];
+            history.add(rootB);
+            return true;
+        }
+
+        // Undoes the unions made since the mark.
+        private void rollback(int mark) {
+            while (history.size() > mark) {
+                int root = history.removeInt(history.size() - 1);
+                if (root < 0) continue;
+                int parentRoot = parent[root];
+                size[parentRoot] -= size[root];
+                parent[root] = root;
+                parity[root] = 0;
+            }
+        }
+    }
+}
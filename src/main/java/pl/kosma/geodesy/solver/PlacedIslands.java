@@ -0,0 +1,139 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static pl.kosma.geodesy.solver.AbstractFaceSolver.*;
+
+/*
+ * Reads the islands already placed on a face back from the blocks in front of it, so a re-solve can keep them.
+ *
+ * An island is a connected group of cells of one material. Its flying machine is taken from the markers
+ * where they form one: 3 stem markers in a straight line, and a stopper marker on an island cell next to them.
+ * Otherwise the island gets a flying machine from the polyomino library, the same one the solvers would give it.
+ * Islands that are too large, or that can't hold a flying machine, are left out: they are solved again.
+ */
+public final class PlacedIslands {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("PlacedIslands");
+
+    public static final byte MARKER_NONE = 0;
+    public static final byte MARKER_STEM = 1;
+    public static final byte MARKER_STOPPER = 2;
+
+    private PlacedIslands() {}
+
+    /**
+     * @param materials material in front of every cell, indexed [x][y] like FaceGrid: 0, SLIME or HONEY
+     * @param markers   marker in front of every cell: MARKER_NONE, MARKER_STEM or MARKER_STOPPER
+     * @return the islands that can be kept
+     */
+    public static List<Island> find(byte[][] materials, byte[][] markers) {
+        // FaceGrid uses (x, y) where x=row, y=col
+        int rows = materials.length;
+        int cols = rows > 0 ? materials[0].length : 0;
+
+        List<Island> islands = new ArrayList<>();
+        boolean[][] visited = new boolean[rows][cols];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                byte material = materials[r][c];
+                if (material == 0 || visited[r][c]) continue;
+
+                IntSet cells = component(materials, visited, r, c);
+                if (cells.size() > MAX_ISLAND_SIZE) {
+                    LOGGER.debug("Not keeping island of {} cells at {},{}: too large", cells.size(), r, c);
+                    continue;
+                }
+
+                FlyingMachine flyingMachine = markedFlyingMachine(cells, markers, rows, cols);
+                if (flyingMachine == null) flyingMachine = libraryFlyingMachine(cells, rows, cols);
+                if (flyingMachine == null) {
+                    LOGGER.debug("Not keeping island of {} cells at {},{}: no flying machine fits", cells.size(), r, c);
+                    continue;
+                }
+                islands.add(new Island(cells, cellsMask(cells, cols), flyingMachine, material));
+            }
+        }
+        return islands;
+    }
+
+    // Cells of the same material connected to (row, col), marked as visited.
+    private static IntSet component(byte[][] materials, boolean[][] visited, int row, int col) {
+        byte material = materials[row][col];
+        IntSet cells = new IntOpenHashSet();
+        IntArrayFIFOQueue queue = new IntArrayFIFOQueue();
+        visited[row][col] = true;
+        queue.enqueue(cellKey(row, col));
+        while (!queue.isEmpty()) {
+            int key = queue.dequeueInt();
+            cells.add(key);
+            for (int dir : DIRECTIONS) {
+                int r = keyRow(key + dir);
+                int c = keyCol(key + dir);
+                if (r < 0 || r >= materials.length || c < 0 || c >= materials[r].length) continue;
+                if (visited[r][c] || materials[r][c] != material) continue;
+                visited[r][c] = true;
+                queue.enqueue(cellKey(r, c));
+            }
+        }
+        return IntSets.unmodifiable(cells);
+    }
+
+    // The flying machine the markers on the island describe, or null if they don't describe exactly one.
+    private static FlyingMachine markedFlyingMachine(IntSet cells, byte[][] markers, int rows, int cols) {
+        IntSet stemCells = new IntOpenHashSet(3);
+        IntSet stoppers = new IntOpenHashSet();
+        for (int key : cells) {
+            byte marker = markers[keyRow(key)][keyCol(key)];
+            if (marker == MARKER_STEM) stemCells.add(key);
+            else if (marker == MARKER_STOPPER) stoppers.add(key);
+        }
+        if (stemCells.size() != 3) return null;
+
+        // The stem must be a straight line: a middle cell with the other two on opposite sides
+        for (int key : stemCells) {
+            for (int dir : DIRECTIONS) {
+                if (!stemCells.contains(key - dir) || !stemCells.contains(key + dir)) continue;
+                for (int stopper : stoppers) {
+                    if (isNextTo(stopper, stemCells)) return flyingMachine(stemCells, stopper, rows, cols);
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isNextTo(int key, IntSet cells) {
+        for (int dir : DIRECTIONS) {
+            if (cells.contains(key + dir)) return true;
+        }
+        return false;
+    }
+
+    private static FlyingMachine libraryFlyingMachine(IntSet cells, int rows, int cols) {
+        int[] keys = cells.toIntArray();
+        int anchor = PolyominoLibrary.anchor(keys, keys.length);
+        long template = PolyominoLibrary.encode(keys, keys.length, anchor);
+        if (template == 0) return null;
+
+        int machine = PolyominoLibrary.machine(template);
+        if (machine == PolyominoLibrary.NO_MACHINE) return null;
+
+        int key = anchor + PolyominoLibrary.stemCenter(machine);
+        int stemDir = PolyominoLibrary.stemAlongRows(machine) ? DIRECTIONS[2] : DIRECTIONS[0];
+        return flyingMachine(IntSet.of(key - stemDir, key, key + stemDir), anchor + PolyominoLibrary.stopper(machine), rows, cols);
+    }
+
+    private static FlyingMachine flyingMachine(IntSet stemCells, int stopper, int rows, int cols) {
+        IntSet stem = IntSets.unmodifiable(new IntOpenHashSet(stemCells));
+        return new FlyingMachine(stem, cellsMask(stem, cols), neighborsMask(stem, rows, cols), stopper);
+    }
+}
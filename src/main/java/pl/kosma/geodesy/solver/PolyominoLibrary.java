@@ -0,0 +1,258 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+import static pl.kosma.geodesy.solver.AbstractFaceSolver.*;
+
+/*
+ * Library of all fixed polyominoes of MIN_ISLAND_SIZE to MAX_ISLAND_SIZE cells that can hold a flying machine,
+ * together with the placement of that machine. It is enumerated once per JVM, the first time it is used.
+ *
+ * A polyomino is stored as a template: a bitmap of its bounding box, packed into a long.
+ * A connected shape of n cells has width + height - 1 <= n, so the bounding box of an island
+ * is at most 6x7 = 42 cells and always fits:
+ * - bits 0-41: cells, row-major (bit = row * width + col), relative to the top-left corner of the bounding box
+ * - bits 42-59: unused, free for the caller
+ * - bits 60-63: width of the bounding box
+ * The top-left corner itself (the anchor) is kept separately by the caller, as a cell key.
+ */
+public final class PolyominoLibrary {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("PolyominoLibrary");
+
+    static final int NO_MACHINE = -1;
+
+    private static final int TEMPLATE_BITS = 42;
+    static final long CELLS_MASK = (1L << TEMPLATE_BITS) - 1;
+    private static final int WIDTH_SHIFT = 60;
+
+    private PolyominoLibrary() {}
+
+    // Enumerates the library ahead of time, so the first solve doesn't pay for it.
+    public static void preload() {
+        Holder.MACHINES.size();
+    }
+
+    /**
+     * @return the cell key of the top-left corner of the bounding box of the first {@code count} cells
+     */
+    static int anchor(int[] cells, int count) {
+        int minRow = Integer.MAX_VALUE;
+        int minCol = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minRow = Math.min(minRow, keyRow(cells[i]));
+            minCol = Math.min(minCol, keyCol(cells[i]));
+        }
+        return cellKey(minRow, minCol);
+    }
+
+    /**
+     * @return the template of the first {@code count} cells, or 0 if their bounding box is too big to be an island
+     */
+    static long encode(int[] cells, int count, int anchor) {
+        int anchorRow = keyRow(anchor);
+        int anchorCol = keyCol(anchor);
+        int width = 0;
+        int height = 0;
+        for (int i = 0; i < count; i++) {
+            width = Math.max(width, keyCol(cells[i]) - anchorCol + 1);
+            height = Math.max(height, keyRow(cells[i]) - anchorRow + 1);
+        }
+        if (width > MAX_ISLAND_SIZE || width * height > TEMPLATE_BITS) return 0;
+
+        long bits = 0;
+        for (int i = 0; i < count; i++) {
+            bits |= 1L << ((keyRow(cells[i]) - anchorRow) * width + keyCol(cells[i]) - anchorCol);
+        }
+        return bits | (long) width << WIDTH_SHIFT;
+    }
+
+    /**
+     * Writes the cell keys of a template placed at the anchor into {@code cells}, in row-major order.
+     *
+     * @return the number of cells
+     */
+    static int decode(long template, int anchor, int[] cells) {
+        int width = (int) (template >>> WIDTH_SHIFT);
+        long bits = template & CELLS_MASK;
+        int count = 0;
+        for (; bits != 0; bits &= bits - 1) {
+            int bit = Long.numberOfTrailingZeros(bits);
+            cells[count++] = anchor + cellKey(bit / width, bit % width);
+        }
+        return count;
+    }
+
+    /**
+     * @return the packed machine placement for the template, or {@link #NO_MACHINE} if it cannot hold one
+     */
+    static int machine(long template) {
+        return Holder.MACHINES.get(template);
+    }
+
+    // Relative cell key of the middle cell of the stem.
+    static int stemCenter(int machine) {
+        return cellKey(machine & 0xF, machine >> 4 & 0xF);
+    }
+
+    // Whether the stem runs along the rows (vertical) rather than along the columns.
+    static boolean stemAlongRows(int machine) {
+        return (machine >> 8 & 1) != 0;
+    }
+
+    // Relative cell key of the stopper cell.
+    static int stopper(int machine) {
+        return cellKey(machine >> 9 & 0xF, machine >> 13 & 0xF);
+    }
+
+    private static int packMachine(int centerRow, int centerCol, boolean alongRows, int stopperRow, int stopperCol) {
+        return centerRow | centerCol << 4 | (alongRows ? 1 << 8 : 0) | stopperRow << 9 | stopperCol << 13;
+    }
+
+    // Lazy holder, so the enumeration runs on first use rather than on class loading.
+    private static final class Holder {
+        private static final Long2IntOpenHashMap MACHINES = enumerate();
+    }
+
+    /*
+     * Redelmeier's algorithm: grows polyominoes cell by cell from the origin, only into the half-plane
+     * (row > 0, or row == 0 and col >= 0), never adding a cell that an earlier sibling branch already tried.
+     * This produces every fixed polyomino exactly once.
+     */
+    private static Long2IntOpenHashMap enumerate() {
+        long startTime = System.currentTimeMillis();
+
+        Enumerator enumerator = new Enumerator();
+        enumerator.run();
+
+        enumerator.machines.trim();
+        LOGGER.info("Enumerated {} polyomino templates in {}ms", enumerator.machines.size(), System.currentTimeMillis() - startTime);
+        return enumerator.machines;
+    }
+
+    private static final class Enumerator {
+        // Lattice with the origin at (row 0, col MAX_ISLAND_SIZE), so columns never go negative.
+        private static final int STRIDE = 2 * MAX_ISLAND_SIZE + 1;
+        private static final int ORIGIN = MAX_ISLAND_SIZE;
+
+        private final Long2IntOpenHashMap machines = new Long2IntOpenHashMap();
+        private final boolean[] reached = new boolean[MAX_ISLAND_SIZE * STRIDE];
+        private final int[] cells = new int[MAX_ISLAND_SIZE];
+        private final boolean[] bitmap = new boolean[TEMPLATE_BITS];
+
+        private Enumerator() {
+            machines.defaultReturnValue(NO_MACHINE);
+        }
+
+        private void run() {
+            reached[ORIGIN] = true;
+            grow(new int[]{ORIGIN}, 1, 0);
+        }
+
+        private void grow(int[] untried, int untriedSize, int size) {
+            while (untriedSize > 0) {
+                int cell = untried[--untriedSize];
+                cells[size] = cell;
+
+                if (size + 1 >= MIN_ISLAND_SIZE) {
+                    record(size + 1);
+                }
+                if (size + 1 == MAX_ISLAND_SIZE) continue;
+
+                // New candidates: neighbors of this cell that were never reached in this branch.
+                int[] next = new int[untriedSize + 4];
+                System.arraycopy(untried, 0, next, 0, untriedSize);
+                int nextSize = untriedSize;
+                int row = cell / STRIDE;
+                int col = cell % STRIDE;
+                for (int[] d : NEIGHBOR_OFFSETS) {
+                    int nr = row + d[0];
+                    int nc = col + d[1];
+                    if (nr < 0 || nr >= MAX_ISLAND_SIZE || nc < 0 || nc >= STRIDE || (nr == 0 && nc < ORIGIN)) continue;
+                    int neighbor = nr * STRIDE + nc;
+                    if (reached[neighbor]) continue;
+                    reached[neighbor] = true;
+                    next[nextSize++] = neighbor;
+                }
+
+                grow(next, nextSize, size + 1);
+
+                for (int i = untriedSize; i < nextSize; i++) {
+                    reached[next[i]] = false;
+                }
+            }
+        }
+
+        private void record(int size) {
+            int minCol = Integer.MAX_VALUE;
+            int width = 0;
+            int height = 0;
+            for (int i = 0; i < size; i++) {
+                minCol = Math.min(minCol, cells[i] % STRIDE);
+            }
+            for (int i = 0; i < size; i++) {
+                width = Math.max(width, cells[i] % STRIDE - minCol + 1);
+                height = Math.max(height, cells[i] / STRIDE + 1);
+            }
+
+            Arrays.fill(bitmap, false);
+            long template = (long) width << WIDTH_SHIFT;
+            for (int i = 0; i < size; i++) {
+                int bit = cells[i] / STRIDE * width + cells[i] % STRIDE - minCol;
+                bitmap[bit] = true;
+                template |= 1L << bit;
+            }
+
+            int machine = findMachine(width, height);
+            if (machine != NO_MACHINE) {
+                machines.put(template, machine);
+            }
+        }
+
+        private boolean contains(int width, int height, int row, int col) {
+            return row >= 0 && row < height && col >= 0 && col < width && bitmap[row * width + col];
+        }
+
+        // Finds a 3-cell straight stem with a stopper next to it, trying the sides first and the ends last.
+        private int findMachine(int width, int height) {
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    if (!contains(width, height, row, col)) continue;
+
+                    for (int alongRows = 0; alongRows <= 1; alongRows++) {
+                        int dr = alongRows;
+                        int dc = 1 - alongRows;
+                        if (!contains(width, height, row - dr, col - dc) || !contains(width, height, row + dr, col + dc)) continue;
+
+                        // Perpendicular direction
+                        int pr = dc;
+                        int pc = dr;
+                        for (int side = 1; side >= -1; side -= 2) {
+                            for (int along = -1; along <= 1; along++) {
+                                int sr = row + along * dr + side * pr;
+                                int sc = col + along * dc + side * pc;
+                                if (contains(width, height, sr, sc)) {
+                                    return packMachine(row, col, alongRows == 1, sr, sc);
+                                }
+                            }
+                        }
+
+                        // 1x4 case: stopper at either end of the stem
+                        for (int end = -2; end <= 2; end += 4) {
+                            int sr = row + end * dr;
+                            int sc = col + end * dc;
+                            if (contains(width, height, sr, sc)) {
+                                return packMachine(row, col, alongRows == 1, sr, sc);
+                            }
+                        }
+                    }
+                }
+            }
+            return NO_MACHINE;
+        }
+    }
+}
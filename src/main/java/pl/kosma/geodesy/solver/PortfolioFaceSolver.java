@@ -0,0 +1,148 @@
+package pl.kosma.geodesy.solver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/*
+ * Races several solvers with different strategies on the same grid, and keeps the best result.
+ *
+ * No single search order wins everywhere: scarcity-first backtracking is strong on sparse faces, row-by-row
+ * backtracking and dancing links on dense ones, SAT on small faces it can prove optimal, and beam search gets a
+ * good layout of large faces early. The racers share their incumbents through IncumbentListener.bestScore, so
+ * each one also prunes with the others' solutions.
+ *
+ * Every racer gets the whole time budget on its own thread, so there are only as many racers as the grid's
+ * parallelism (but at least MIN_RACERS). As soon as one of them finishes its search in time, nothing better
+ * than the shared incumbent exists among the shapes they all search, and if those are all the islands the
+ * grid allows (see SolverResult.shapesComplete), the others are stopped. Otherwise they go on, since their
+ * local searches can still find islands outside the shapes.
+ *
+ * With a work budget, the result must not depend on which racer gets how far when: the racers then neither prune
+ * with each other's incumbents nor stop each other, and ties go to the first racer in RACERS.
+ */
+public class PortfolioFaceSolver implements FaceSolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("PortfolioFaceSolver");
+
+    // Seed for the racer that breaks ties in its orderings randomly.
+    private static final long SHUFFLE_SEED = 0x9E3779B97F4A7C15L;
+
+    private static final int MIN_RACERS = 2;
+
+    private record Racer(String name, BiFunction<FaceGrid, SolverConfig, FaceSolver> factory) {}
+
+    // Most complementary first, since only as many racers run as there are threads for the grid.
+    private static final List<Racer> RACERS = List.of(
+            new Racer("backtracking", BacktrackingFaceSolver::new),
+            new Racer("dlx", DlxFaceSolver::new),
+            new Racer("backtracking by rows", (grid, config) -> new BacktrackingFaceSolver(grid, config,
+                    BacktrackingFaceSolver.TargetOrder.ROW_MAJOR, BacktrackingFaceSolver.ShapeOrder.MOST_HARVEST, 0)),
+            new Racer("backtracking, densest shapes, shuffled", (grid, config) -> new BacktrackingFaceSolver(grid, config,
+                    BacktrackingFaceSolver.TargetOrder.SCARCITY, BacktrackingFaceSolver.ShapeOrder.DENSEST, SHUFFLE_SEED)),
+            new Racer("sat", SatFaceSolver::new),
+            // Gets far on large faces quickly, so the others prune with its layout early
+            new Racer("beam", BeamFaceSolver::new)
+    );
+
+    @Override
+    public SolverResult solve(FaceGrid input, SolverConfig config) {
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + config.getTimeoutMs();
+
+        CancellationToken race = config.getCancellation().child();
+        boolean independent = config.getWorkBudget() > 0;
+        SharedIncumbent shared = new SharedIncumbent(config.getIncumbentListener(), !independent);
+        // FINISHED, or WITHIN_TOLERANCE, of the racer that stopped the race
+        AtomicReference<SolverResult.StopReason> finish = new AtomicReference<>(SolverResult.StopReason.FINISHED);
+
+        // One racer per thread the grid may use, but always at least two
+        List<Racer> racers = RACERS.subList(0, Math.clamp(config.getParallelism(), MIN_RACERS, RACERS.size()));
+        List<Callable<SolverResult>> tasks = racers.stream()
+                .<Callable<SolverResult>>map(racer -> () -> {
+                    // Racers that start late only get what is left of the budget.
+                    SolverConfig racerConfig = config.toBuilder()
+                            .timeoutMs(Math.max(0, deadline - System.currentTimeMillis()))
+                            .parallelism(1)
+                            .incumbentListener(shared)
+                            .cancellation(race)
+                            .build();
+                    SolverResult result = racer.factory().apply(input, racerConfig).solve(input, racerConfig);
+                    if (!independent && !result.timedOut() && result.shapesComplete() && !race.isCancelled()) {
+                        LOGGER.debug("{} finished its search after {}ms, stopping the others", racer.name(), result.solveTimeMs());
+                        finish.set(result.stopReason());
+                        race.cancel();
+                    }
+                    return result;
+                })
+                .toList();
+
+        // Platform threads: the racers never block, so virtual threads would run them one after another.
+        List<SolverResult> results = new ArrayList<>(tasks.size());
+        try (ExecutorService executor = Executors.newFixedThreadPool(tasks.size())) {
+            for (Future<SolverResult> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while racing solvers", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Solver failed", e.getCause());
+        }
+
+        // The race was only stopped early if some racer finished in time.
+        boolean proven = race.isCancelled() && !config.getCancellation().isCancelled();
+        int best = 0;
+        // Every racer's bound holds for the shapes they all search, so the lowest one does too
+        double upperBound = Double.POSITIVE_INFINITY;
+        boolean shapesComplete = true;
+        // Unless the race was proven, a longer race could still improve on the racer that stopped last
+        SolverResult.StopReason stopReason = SolverResult.StopReason.FINISHED;
+        for (int i = 0; i < results.size(); i++) {
+            if (score(results.get(i), config) > score(results.get(best), config)) best = i;
+            upperBound = Math.min(upperBound, results.get(i).upperBound());
+            shapesComplete &= results.get(i).shapesComplete();
+            stopReason = stopReason.combine(results.get(i).stopReason());
+        }
+        SolverResult result = results.get(best);
+        LOGGER.info("Best result by {}: {}", racers.get(best).name(), result);
+
+        if (proven) stopReason = finish.get();
+        return new SolverResult(result.width(), result.height(), result.direction(), result.placements(), result.islands(),
+                result.harvestCovered(), result.totalHarvest(), System.currentTimeMillis() - startTime, stopReason,
+                Math.max(score(result, config), upperBound), shapesComplete, result.cached());
+    }
+
+    private static double score(SolverResult result, SolverConfig config) {
+        return result.harvestCovered() - result.islands().size() * config.getCostThreshold();
+    }
+
+    // Best incumbent of all racers. Only improvements on it are passed on, and racers prune with it if sharing is on.
+    private static final class SharedIncumbent implements IncumbentListener {
+        private final IncumbentListener listener;
+        private final boolean sharing;
+        private volatile double bestScore = Double.NEGATIVE_INFINITY;
+
+        private SharedIncumbent(IncumbentListener listener, boolean sharing) {
+            this.listener = listener;
+            this.sharing = sharing;
+        }
+
+        @Override
+        public synchronized void onIncumbent(SolverResult incumbent, double score) {
+            if (score <= bestScore) return;
+            bestScore = score;
+            listener.onIncumbent(incumbent, score);
+        }
+
+        @Override
+        public double bestScore() {
+            return sharing ? bestScore : Double.NEGATIVE_INFINITY;
+        }
+    }
+}
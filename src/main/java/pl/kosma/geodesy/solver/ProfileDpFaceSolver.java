@@ -0,0 +1,344 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * Broken-profile dynamic programming for narrow faces.
+ *
+ * Cells are swept one at a time along the long side of the grid, so the short side (the width W)
+ * is the only thing the frontier grows with. At every cell the DP either places nothing, or places one
+ * of the shapes whose first cell (in sweep order) is this one, in either material.
+ *
+ * The state at a cell is the profile: material and stem flag of every placed cell from W cells back onwards.
+ * Nothing further back can touch a cell that is still to come, so two partial solutions with the same
+ * profile have the same future, and only the better one is kept. States are interned in a primitive
+ * hash map keyed by a 64-bit hash of the profile.
+ *
+ * The result is optimal over the enumerated shapes. A partial sweep is worth little, so if the frontier
+ * grows past MAX_STATES or the sweep takes more than TIME_SHARE of the budget, the face is handed to the
+ * fallback solver with the remaining time.
+ */
+public class ProfileDpFaceSolver extends AbstractFaceSolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("ProfileDpFaceSolver");
+
+    // Fixed point scale of scores, so equal profiles compare exactly.
+    private static final int SCORE_SCALE = 1000;
+    // Frontier states kept at a single cell before giving up on the DP
+    private static final int MAX_STATES = 200_000;
+    // Share of the time budget the DP may use before giving up on it
+    private static final double TIME_SHARE = 0.5;
+
+    // Profile codes: position << 3 | stem << 2 | material
+    private static final int STEM_FLAG = 4;
+    private static final int MATERIAL_BITS = 3;
+
+    private final FaceSolver fallback;
+
+    // Sweep order: position of every cell bit
+    private int width;
+    private int[] positionOf;
+
+    // Per shape, in positions
+    private List<Shape> shapes;
+    private long[] shapeScores;
+    private int[][] shapeCodes;  // Sorted profile codes of the shape's cells, without the material
+    private long[][] shapeHashes;  // Sum of the code hashes of the shape's cells, per material
+    private int[][] shapeNeighbors;
+    private int[][] shapeStemNeighbors;
+    private IntArrayList[] shapesAt;  // Shapes by their first position
+
+    // Scratch profile of the state being expanded, by position
+    private byte[] material;
+    private boolean[] stem;
+
+    // Shapes placed on the way to a state, newest first
+    private record Placement(int shape, byte material, Placement previous) {}
+
+    public ProfileDpFaceSolver(FaceGrid input, SolverConfig config, FaceSolver fallback) {
+        super(input, config);
+        this.fallback = fallback;
+    }
+
+    @Override
+    public SolverResult solve(FaceGrid input, SolverConfig config) {
+        startTime = System.currentTimeMillis();
+
+        findTargets();
+        if (targets.isEmpty()) {
+            LOGGER.info("No harvest cells to solve");
+            return SolverResult.empty(input);
+        }
+
+        LOGGER.info("Solving {}x{} grid with {} harvest cells", rows, cols, targets.size());
+
+        precomputeShapes();
+        shapes = profitableShapes();
+        prepare();
+
+        Layer last = sweep();
+        if (last == null) {
+            long remaining = remainingMs();
+            LOGGER.info("Profile DP gave up, falling back with {}ms left", remaining);
+            return fallback.solve(input, config.toBuilder().timeoutMs(remaining).build());
+        }
+
+        int best = last.best();
+        saveSolution(last.histories.get(best));
+        // The sweep is exact, so the layout is its own bound, unless it was cut short
+        recordBound((double) last.scores.getLong(best) / SCORE_SCALE, Double.POSITIVE_INFINITY);
+        hillClimbSolution();
+
+        long solveTime = System.currentTimeMillis() - startTime;
+        return buildResult(input, bestSolution, solveTime);
+    }
+
+    private void prepare() {
+        int totalCells = rows * cols;
+        boolean alongRows = rows >= cols;
+        width = alongRows ? cols : rows;
+        positionOf = new int[totalCells];
+        for (int bit = 0; bit < totalCells; bit++) {
+            positionOf[bit] = alongRows ? bit : bit % cols * rows + bit / cols;
+        }
+
+        material = new byte[totalCells];
+        stem = new boolean[totalCells];
+        shapesAt = new IntArrayList[totalCells];
+        shapeScores = new long[shapes.size()];
+        shapeCodes = new int[shapes.size()][];
+        shapeHashes = new long[shapes.size()][2];
+        shapeNeighbors = new int[shapes.size()][];
+        shapeStemNeighbors = new int[shapes.size()][];
+        for (int s = 0; s < shapes.size(); s++) {
+            Shape shape = shapes.get(s);
+            BitSet stemMask = shape.flyingMachine().stemMask();
+            shapeScores[s] = Math.round((shape.onesCovered() - islandCost) * SCORE_SCALE);
+            shapeCodes[s] = shape.mask().stream()
+                    .map(bit -> positionOf[bit] << MATERIAL_BITS | (stemMask.get(bit) ? STEM_FLAG : 0))
+                    .sorted()
+                    .toArray();
+            for (int code : shapeCodes[s]) {
+                shapeHashes[s][0] += codeHash(code | SLIME);
+                shapeHashes[s][1] += codeHash(code | HONEY);
+            }
+            shapeNeighbors[s] = positions(shape.neighborsMask());
+            shapeStemNeighbors[s] = positions(shape.flyingMachine().stemNeighborsMask());
+
+            int first = shapeCodes[s][0] >> MATERIAL_BITS;
+            if (shapesAt[first] == null) shapesAt[first] = new IntArrayList();
+            shapesAt[first].add(s);
+        }
+    }
+
+    private int[] positions(BitSet mask) {
+        return mask.stream().map(bit -> positionOf[bit]).toArray();
+    }
+
+    /**
+     * @return the states after the last cell (or the last cell reached, if cancelled),
+     * or null if the frontier got too big or the sweep too slow
+     */
+    private Layer sweep() {
+        long deadline = startTime + (long) (timeoutMs * TIME_SHARE);
+        Layer current = new Layer();
+        current.offer(new int[0], 0, null, 0, 0, 0, null, -1);
+        int peak = 1;
+
+        for (int p = 0; p < positionOf.length; p++) {
+            if (cancellation.isCancelled()) {
+                // Every state is a valid partial solution, so stop with the best one so far.
+                stop(SolverResult.StopReason.CANCELLED);
+                break;
+            }
+            if (System.currentTimeMillis() > deadline) return null;
+
+            Layer next = new Layer();
+            // Placed cells this far back can't touch anything from the next cell on.
+            int keepFrom = (p + 1 - width) << MATERIAL_BITS;
+            IntArrayList candidates = shapesAt[p];
+
+            for (int i = 0; i < current.size(); i++) {
+                int[] state = current.states.get(i);
+                long score = current.scores.getLong(i);
+                Placement history = current.histories.get(i);
+
+                int start = 0;
+                long hash = current.hashes.getLong(i);
+                while (start < state.length && state[start] < keepFrom) {
+                    hash -= codeHash(state[start++]);
+                }
+
+                next.offer(state, start, null, 0, hash, score, history, -1);
+                if (candidates == null) continue;
+
+                paint(state);
+                for (int s : candidates) {
+                    int allowed = allowedMaterials(s);
+                    for (byte m = SLIME; m <= HONEY; m++) {
+                        if ((allowed & m) == 0) continue;
+                        next.offer(state, start, shapeCodes[s], m, hash + shapeHashes[s][m - 1], score + shapeScores[s], history, s);
+                    }
+                }
+                clear(state);
+            }
+
+            if (next.size() > MAX_STATES) return null;
+            peak = Math.max(peak, next.size());
+            current = next;
+        }
+
+        LOGGER.debug("Swept {} cells {} wide, at most {} states per cell", positionOf.length, width, peak);
+        return current;
+    }
+
+    // States are hashed as the sum of their code hashes, so a transition updates the hash without rehashing.
+    private static long codeHash(int code) {
+        return HashCommon.mix((long) code);
+    }
+
+    private void paint(int[] state) {
+        for (int code : state) {
+            material[code >> MATERIAL_BITS] = (byte) (code & (STEM_FLAG - 1));
+            stem[code >> MATERIAL_BITS] = (code & STEM_FLAG) != 0;
+        }
+    }
+
+    private void clear(int[] state) {
+        for (int code : state) {
+            material[code >> MATERIAL_BITS] = 0;
+            stem[code >> MATERIAL_BITS] = false;
+        }
+    }
+
+    /**
+     * @return bit set of the materials the shape can get on top of the painted profile, 0 if it doesn't fit
+     */
+    private int allowedMaterials(int s) {
+        for (int code : shapeCodes[s]) {
+            if (material[code >> MATERIAL_BITS] != 0) return 0;
+        }
+        // Flying machines of different islands cannot be adjacent
+        for (int position : shapeStemNeighbors[s]) {
+            if (stem[position]) return 0;
+        }
+
+        int allowed = SLIME | HONEY;
+        for (int position : shapeNeighbors[s]) {
+            allowed &= ~material[position];
+        }
+        return allowed;
+    }
+
+    private void saveSolution(Placement history) {
+        bestSolution = new ArrayList<>();
+        bestSolutionSlimeMask = new BitSet();
+        bestSolutionHoneyMask = new BitSet();
+        for (Placement placement = history; placement != null; placement = placement.previous()) {
+            Shape shape = shapes.get(placement.shape());
+            bestSolution.add(new Island(shape.cells(), shape.mask(), shape.flyingMachine(), placement.material()));
+            (placement.material() == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask).or(shape.mask());
+        }
+    }
+
+    /*
+     * States at one cell of the sweep. Profiles are interned by their hash; a collision moves on to the next key.
+     * Every state is kept with the best score reaching it, and the placements that got there.
+     */
+    private static final class Layer {
+        private final Long2IntOpenHashMap index = new Long2IntOpenHashMap();
+        private final ObjectArrayList<int[]> states = new ObjectArrayList<>();
+        private final LongArrayList hashes = new LongArrayList();
+        private final LongArrayList scores = new LongArrayList();
+        private final ObjectArrayList<Placement> histories = new ObjectArrayList<>();
+
+        private Layer() {
+            index.defaultReturnValue(-1);
+        }
+
+        private int size() {
+            return states.size();
+        }
+
+        private int best() {
+            int best = 0;
+            for (int i = 1; i < size(); i++) {
+                if (scores.getLong(i) > scores.getLong(best)) best = i;
+            }
+            return best;
+        }
+
+        /**
+         * Adds the codes of {@code state} from {@code start} on, merged with {@code added} in the given material.
+         * The merged profile is only built if it is new.
+         *
+         * @param hash  hash of the merged profile
+         * @param shape shape placed by this transition, or -1
+         */
+        private void offer(int[] state, int start, int[] added, int addedMaterial, long hash, long score, Placement history, int shape) {
+            long key = hash;
+            while (true) {
+                int slot = index.get(key);
+                if (slot < 0) {
+                    index.put(key, size());
+                    states.add(merge(state, start, added, addedMaterial));
+                    hashes.add(hash);
+                    scores.add(score);
+                    histories.add(shape < 0 ? history : new Placement(shape, (byte) addedMaterial, history));
+                    return;
+                }
+                if (matches(states.get(slot), state, start, added, addedMaterial)) {
+                    if (score > scores.getLong(slot)) {
+                        scores.set(slot, score);
+                        histories.set(slot, shape < 0 ? history : new Placement(shape, (byte) addedMaterial, history));
+                    }
+                    return;
+                }
+                key++;
+            }
+        }
+
+        private static int[] merge(int[] state, int start, int[] added, int addedMaterial) {
+            int addedLength = added == null ? 0 : added.length;
+            int[] merged = new int[state.length - start + addedLength];
+            int i = start;
+            int j = 0;
+            for (int k = 0; k < merged.length; k++) {
+                if (j == addedLength || (i < state.length && state[i] < added[j])) {
+                    merged[k] = state[i++];
+                } else {
+                    merged[k] = added[j++] | addedMaterial;
+                }
+            }
+            return merged;
+        }
+
+        // Same as Arrays.equals(stored, merge(state, start, added, addedMaterial)), without building the merge.
+        private static boolean matches(int[] stored, int[] state, int start, int[] added, int addedMaterial) {
+            int addedLength = added == null ? 0 : added.length;
+            if (stored.length != state.length - start + addedLength) return false;
+            int i = start;
+            int j = 0;
+            for (int code : stored) {
+                int expected;
+                if (j == addedLength || (i < state.length && state[i] < added[j])) {
+                    expected = state[i++];
+                } else {
+                    expected = added[j++] | addedMaterial;
+                }
+                if (code != expected) return false;
+            }
+            return true;
+        }
+    }
+}
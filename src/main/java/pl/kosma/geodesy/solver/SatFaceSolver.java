@@ -0,0 +1,318 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/*
+ * Face solver that encodes island placement as a pseudo-boolean optimization problem
+ * and solves it with the embedded CDCL engine (CdclSolver).
+ *
+ * Variables:
+ * - place(S): shape S is used as an island, colour(S): it is slime (true) or honey (false)
+ * - slime(c), honey(c): cell c belongs to a slime / honey island
+ * - stem(c): cell c belongs to a flying machine stem
+ * Constraints:
+ * - at most one placed shape per cell (sequential counter encoding)
+ * - place(S) and colour(S) force slime(c) or honey(c) on the cells of S,
+ *   and forbid the same material on the cells around S
+ * - place(S) forces stem(c) on its stem and forbids stem(c) next to it
+ * - objective: sum((ones(S) - islandCost) * place(S)) >= bound, in fixed point
+ *
+ * The bound is raised past every solution found until the problem becomes unsatisfiable (the last
+ * solution is optimal over the enumerated shapes) or the time runs out.
+ */
+public class SatFaceSolver extends AbstractFaceSolver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("SatFaceSolver");
+
+    // Fixed point scale of the objective weights.
+    private static final int WEIGHT_SCALE = 1000;
+
+    // Groups up to this size get pairwise at-most-one clauses, larger ones a sequential counter.
+    private static final int PAIRWISE_AMO_LIMIT = 5;
+
+    private final CdclSolver sat = new CdclSolver();
+
+    // Variables per cell bit, created on demand
+    private final Int2IntOpenHashMap slimeVars = new Int2IntOpenHashMap();
+    private final Int2IntOpenHashMap honeyVars = new Int2IntOpenHashMap();
+    private final Int2IntOpenHashMap stemVars = new Int2IntOpenHashMap();
+
+    // Candidate islands and their placement and colour variables
+    private List<Shape> shapes;
+    private int[] placeVars;
+    private int[] colorVars;
+
+    // Index of the objective constraint in the CDCL solver, and the constant added to its bound
+    private int objective;
+    private long objectiveOffset;
+
+    public SatFaceSolver(FaceGrid input, SolverConfig config) {
+        super(input, config);
+    }
+
+    @Override
+    public SolverResult solve(FaceGrid input, SolverConfig config) {
+        startTime = System.currentTimeMillis();
+
+        findTargets();
+        if (targets.isEmpty()) {
+            LOGGER.info("No harvest cells to solve");
+            return SolverResult.empty(input);
+        }
+
+        LOGGER.info("Solving {}x{} grid with {} harvest cells", rows, cols, targets.size());
+
+        precomputeShapes();
+        shapes = profitableShapes();
+        encode();
+        optimize();
+        improveSolution();
+
+        long solveTime = System.currentTimeMillis() - startTime;
+        return buildResult(input, bestSolution, solveTime);
+    }
+
+    private long weight(Shape shape) {
+        return Math.round((shape.onesCovered() - islandCost) * WEIGHT_SCALE);
+    }
+
+    private void encode() {
+        placeVars = new int[shapes.size()];
+        colorVars = new int[shapes.size()];
+        Int2ObjectOpenHashMap<IntList> shapesAtCell = new Int2ObjectOpenHashMap<>();
+
+        for (int i = 0; i < shapes.size(); i++) {
+            placeVars[i] = sat.newVariable();
+            colorVars[i] = sat.newVariable();
+            for (int bit = shapes.get(i).mask().nextSetBit(0); bit >= 0; bit = shapes.get(i).mask().nextSetBit(bit + 1)) {
+                shapesAtCell.computeIfAbsent(bit, k -> new IntArrayList()).add(placeVars[i]);
+                slimeVars.computeIfAbsent(bit, k -> sat.newVariable());
+                honeyVars.computeIfAbsent(bit, k -> sat.newVariable());
+            }
+            BitSet stemMask = shapes.get(i).flyingMachine().stemMask();
+            for (int bit = stemMask.nextSetBit(0); bit >= 0; bit = stemMask.nextSetBit(bit + 1)) {
+                stemVars.computeIfAbsent(bit, k -> sat.newVariable());
+            }
+        }
+
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape shape = shapes.get(i);
+            int notPlaced = CdclSolver.literal(placeVars[i], false);
+            int slime = CdclSolver.literal(colorVars[i], true);
+            int honey = CdclSolver.literal(colorVars[i], false);
+
+            // Material of the island's own cells
+            for (int bit = shape.mask().nextSetBit(0); bit >= 0; bit = shape.mask().nextSetBit(bit + 1)) {
+                sat.addClause(notPlaced, honey, CdclSolver.literal(slimeVars.get(bit), true));
+                sat.addClause(notPlaced, slime, CdclSolver.literal(honeyVars.get(bit), true));
+            }
+
+            // Adjacent islands must have different materials
+            for (int bit = shape.neighborsMask().nextSetBit(0); bit >= 0; bit = shape.neighborsMask().nextSetBit(bit + 1)) {
+                if (!slimeVars.containsKey(bit)) continue;
+                sat.addClause(notPlaced, honey, CdclSolver.literal(slimeVars.get(bit), false));
+                sat.addClause(notPlaced, slime, CdclSolver.literal(honeyVars.get(bit), false));
+            }
+
+            // Flying machines of different islands cannot be adjacent
+            FlyingMachine flyingMachine = shape.flyingMachine();
+            for (int bit = flyingMachine.stemMask().nextSetBit(0); bit >= 0; bit = flyingMachine.stemMask().nextSetBit(bit + 1)) {
+                sat.addClause(notPlaced, CdclSolver.literal(stemVars.get(bit), true));
+            }
+            BitSet stemNeighbors = flyingMachine.stemNeighborsMask();
+            for (int bit = stemNeighbors.nextSetBit(0); bit >= 0; bit = stemNeighbors.nextSetBit(bit + 1)) {
+                if (!stemVars.containsKey(bit)) continue;
+                sat.addClause(notPlaced, CdclSolver.literal(stemVars.get(bit), false));
+            }
+        }
+
+        // Islands cannot overlap
+        for (IntList vars : shapesAtCell.values()) {
+            addAtMostOne(vars);
+        }
+
+        objectiveOffset = addObjective();
+
+        LOGGER.debug("Encoded {} shapes as {} variables and {} clauses", shapes.size(), sat.variableCount(), sat.clauseCount());
+    }
+
+    /*
+     * Objective: sum((ones(S) - islandCost) * place(S)) >= bound. Written like this, its slack counts every
+     * shape that is still possible, even though most of them overlap, so it hardly ever propagates.
+     *
+     * An island covering n targets adds n - islandCost, i.e. (n - islandCost) / n per target, so the best
+     * such share g(t) over the shapes covering a target bounds what covering it can add. The objective equals
+     *   sum(g(t) * covered(t)) - sum(gap(S) * place(S)),  gap(S) = sum(g(t) for t in S) - (ones(S) - islandCost)
+     * and in that form the slack is exactly the bound of the backtracking solver: it drops by g(t) once no
+     * shape can cover t anymore, and by gap(S) once S is placed.
+     * covered(t) only implies that some shape covers t, which keeps the constraint valid and is enough.
+     *
+     * @return the sum of the gaps, the constant to add to the bound for the negated place(S) terms
+     */
+    private long addObjective() {
+        long[] gains = new long[targets.size()];
+        IntList[] coveringShapes = new IntList[targets.size()];
+        for (int i = 0; i < shapes.size(); i++) {
+            Shape shape = shapes.get(i);
+            for (int ti : shape.targetIndices()) {
+                // Rounded up, so that no gap is negative
+                gains[ti] = Math.max(gains[ti], (long) Math.ceil((shape.onesCovered() - islandCost) / shape.onesCovered() * WEIGHT_SCALE));
+                if (coveringShapes[ti] == null) coveringShapes[ti] = new IntArrayList();
+                coveringShapes[ti].add(placeVars[i]);
+            }
+        }
+
+        IntList lits = new IntArrayList();
+        LongList weights = new LongArrayList();
+        for (int ti = 0; ti < targets.size(); ti++) {
+            if (coveringShapes[ti] == null) continue;
+
+            int covered = sat.newVariable();
+            int[] clause = new int[coveringShapes[ti].size() + 1];
+            clause[0] = CdclSolver.literal(covered, false);
+            for (int k = 0; k < coveringShapes[ti].size(); k++) {
+                clause[k + 1] = CdclSolver.literal(coveringShapes[ti].getInt(k), true);
+            }
+            sat.addClause(clause);
+            sat.suggest(covered, true, 0);
+
+            lits.add(CdclSolver.literal(covered, true));
+            weights.add(gains[ti]);
+        }
+
+        // -gap * place(S) = gap * not place(S) - gap
+        long gapSum = 0;
+        for (int i = 0; i < shapes.size(); i++) {
+            long gap = -weight(shapes.get(i));
+            for (int ti : shapes.get(i).targetIndices()) {
+                gap += gains[ti];
+            }
+            if (gap == 0) continue;
+            lits.add(CdclSolver.literal(placeVars[i], false));
+            weights.add(gap);
+            gapSum += gap;
+        }
+
+        objective = sat.addLinearConstraint(lits.toIntArray(), weights.toLongArray());
+        return gapSum;
+    }
+
+    private void addAtMostOne(IntList vars) {
+        int n = vars.size();
+        if (n <= PAIRWISE_AMO_LIMIT) {
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    sat.addClause(CdclSolver.literal(vars.getInt(i), false), CdclSolver.literal(vars.getInt(j), false));
+                }
+            }
+            return;
+        }
+
+        // Sequential counter: s(i) means one of the first i + 1 variables is true.
+        int previous = sat.newVariable();
+        sat.addClause(CdclSolver.literal(vars.getInt(0), false), CdclSolver.literal(previous, true));
+        for (int i = 1; i < n - 1; i++) {
+            int x = vars.getInt(i);
+            int s = sat.newVariable();
+            sat.addClause(CdclSolver.literal(x, false), CdclSolver.literal(s, true));
+            sat.addClause(CdclSolver.literal(previous, false), CdclSolver.literal(s, true));
+            sat.addClause(CdclSolver.literal(x, false), CdclSolver.literal(previous, false));
+            previous = s;
+        }
+        sat.addClause(CdclSolver.literal(vars.getInt(n - 1), false), CdclSolver.literal(previous, false));
+    }
+
+    /*
+     * Greedy packing, largest shapes first. It is the starting solution, and the first descent of the search
+     * is pointed at it, so the search spends its time improving on it rather than rediscovering it.
+     *
+     * @return its objective value
+     */
+    private long greedySolution() {
+        Integer[] order = new Integer[shapes.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> shapes.get(i).onesCovered()).reversed());
+
+        BitSet occupiedMask = new BitSet();
+        BitSet slimeMask = new BitSet();
+        BitSet honeyMask = new BitSet();
+        BitSet stemMask = new BitSet();
+        long value = 0;
+        for (int i : order) {
+            sat.suggest(placeVars[i], false, 1);
+            Shape shape = shapes.get(i);
+            if (occupiedMask.intersects(shape.mask()) || isAdjacent(stemMask, shape.flyingMachine())) continue;
+            boolean slimeAdj = isAdjacent(slimeMask, shape);
+            if (slimeAdj && isAdjacent(honeyMask, shape)) continue;
+
+            (slimeAdj ? honeyMask : slimeMask).or(shape.mask());
+            occupiedMask.or(shape.mask());
+            stemMask.or(shape.flyingMachine().stemMask());
+            sat.suggest(placeVars[i], true, 2);
+            sat.suggest(colorVars[i], !slimeAdj, 2);
+            bestSolution.add(new Island(shape.cells(), shape.mask(), shape.flyingMachine(), slimeAdj ? HONEY : SLIME));
+            value += weight(shape);
+        }
+
+        bestSolutionSlimeMask = slimeMask;
+        bestSolutionHoneyMask = honeyMask;
+        return value;
+    }
+
+    private void optimize() {
+        long best = greedySolution();
+        publishIncumbent(bestSolution, (double) best / WEIGHT_SCALE);
+        while (true) {
+            // Only layouts better by more than the gap tolerance are asked for
+            long target = Math.max(best + 1, (long) Math.floor(best / (1 - gapTolerance)) + 1);
+            sat.setBound(objective, target + objectiveOffset);
+            // Work is counted in conflicts
+            CdclSolver.Result result = sat.solve(() -> limitReached(sat.conflictCount(), true));
+            if (result == CdclSolver.Result.UNKNOWN) break;
+            if (result == CdclSolver.Result.UNSATISFIABLE) {
+                LOGGER.debug("Proved no layout reaches {} after {} conflicts", (double) target / WEIGHT_SCALE, sat.conflictCount());
+                // Whatever lies between the best layout and the target was left out for the tolerance
+                if (target > best + 1) prunable((double) (target - 1) / WEIGHT_SCALE, (double) best / WEIGHT_SCALE);
+                break;
+            }
+
+            best = decode();
+            LOGGER.debug("Found solution with score {} after {}ms", (double) best / WEIGHT_SCALE, System.currentTimeMillis() - startTime);
+            publishIncumbent(bestSolution, (double) best / WEIGHT_SCALE);
+        }
+        // Nothing is known about the layouts not ruled out yet if the search stopped early
+        recordBound((double) best / WEIGHT_SCALE, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Turns the model into the best solution.
+     *
+     * @return its objective value
+     */
+    private long decode() {
+        bestSolution = new ArrayList<>();
+        bestSolutionSlimeMask = new BitSet();
+        bestSolutionHoneyMask = new BitSet();
+
+        long value = 0;
+        for (int i = 0; i < shapes.size(); i++) {
+            if (!sat.modelValue(placeVars[i])) continue;
+
+            Shape shape = shapes.get(i);
+            byte material = sat.modelValue(colorVars[i]) ? SLIME : HONEY;
+            bestSolution.add(new Island(shape.cells(), shape.mask(), shape.flyingMachine(), material));
+            (material == SLIME ? bestSolutionSlimeMask : bestSolutionHoneyMask).or(shape.mask());
+            value += weight(shape);
+        }
+        return value;
+    }
+}
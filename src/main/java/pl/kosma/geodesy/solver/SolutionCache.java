@@ -0,0 +1,276 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Persistent cache of solver results, keyed by the content of the face and the settings that change the result.
+ *
+ * Results are kept in memory in least recently used order, with the islands encoded as compact byte arrays,
+ * and written to a single binary file. Once the encoded results take more than MAX_BYTES, the least recently
+ * used ones are dropped.
+ *
+ * A result is reused for any timeout up to the one it was solved with, and for any timeout at all if the
+ * search finished (or got within its gap tolerance), or was stopped by a configured work budget rather than the
+ * clock. A truncated beam search spent the rest of its timeout improving the layout, so it counts as timed out.
+ * The work budget, the gap tolerance, the beam width, the restart unit, the seed and the transposition table size
+ * are part of the key.
+ */
+public class SolutionCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("SolutionCache");
+
+    // Bump whenever a solver change makes older results worth solving again.
+    public static final int SOLVER_VERSION = 1;
+
+    private static final int MAGIC = 0x47454f44;  // "GEOD"
+    private static final int FORMAT_VERSION = 6;
+    private static final long MAX_BYTES = 8L << 20;
+
+    private record Key(long high, long low) {}
+
+    private record Entry(long timeoutMs, SolverResult.StopReason stopReason, byte[] data) {
+        // Whether this result is at least as good as what a solve with the config would find. Only a finished search,
+        // or one stopped by a work budget that was actually set, would end the same way with a longer timeout.
+        private boolean covers(SolverConfig config) {
+            boolean untimed = !SolverResult.timedOut(stopReason)
+                    || stopReason == SolverResult.StopReason.WORK_BUDGET && config.getWorkBudget() > 0;
+            return untimed || this.timeoutMs >= config.getTimeoutMs();
+        }
+    }
+
+    private final Path file;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private boolean loaded;
+    private boolean dirty;
+
+    public SolutionCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the cached result for this face and config, or null if there is none good enough for the config's timeout
+     */
+    public synchronized SolverResult get(FaceGrid input, SolverConfig config) {
+        ensureLoaded();
+        Key key = key(input, config);
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.covers(config)) return null;
+
+        try {
+            SolverResult result = decode(input, entry);
+            dirty = true;  // LRU order changed
+            LOGGER.info("Using cached result for {}x{} face, solved with a {}ms timeout", input.width(), input.height(), entry.timeoutMs());
+            return result;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Dropping unreadable cached result", e);
+            remove(key);
+            return null;
+        }
+    }
+
+    // Stores the result of solving the face with this config, unless a result at least as good is cached already.
+    public synchronized void put(FaceGrid input, SolverConfig config, SolverResult result) {
+        ensureLoaded();
+        Key key = key(input, config);
+        Entry existing = entries.get(key);
+        if (existing != null && existing.covers(config) && result.timedOut()) return;
+
+        remove(key);
+        Entry entry = new Entry(config.getTimeoutMs(), result.stopReason(), encode(result));
+        entries.put(key, entry);
+        totalBytes += entry.data().length;
+        dirty = true;
+        evict();
+    }
+
+    // Writes the cache to disk if it changed. The file is replaced atomically, so a crash never leaves half of it.
+    public synchronized void save() {
+        if (!dirty) return;
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                // Least recently used first, so loading restores the order
+                for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+                    out.writeLong(e.getKey().high());
+                    out.writeLong(e.getKey().low());
+                    out.writeLong(e.getValue().timeoutMs());
+                    out.writeByte(e.getValue().stopReason().ordinal());
+                    out.writeInt(e.getValue().data().length);
+                    out.write(e.getValue().data());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+            LOGGER.debug("Saved {} cached results ({} bytes) to {}", entries.size(), totalBytes, file);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save solution cache to {}", file, e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                LOGGER.info("Ignoring solution cache in an unknown format: {}", file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Key key = new Key(in.readLong(), in.readLong());
+                long timeoutMs = in.readLong();
+                SolverResult.StopReason stopReason = SolverResult.StopReason.values()[in.readUnsignedByte()];
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                entries.put(key, new Entry(timeoutMs, stopReason, data));
+                totalBytes += data.length;
+            }
+            evict();
+            LOGGER.debug("Loaded {} cached results from {}", entries.size(), file);
+        } catch (NoSuchFileException e) {
+            // Nothing cached yet
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to load solution cache from {}, starting empty", file, e);
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            totalBytes -= removed.data().length;
+            dirty = true;
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > MAX_BYTES && it.hasNext()) {
+            totalBytes -= it.next().data().length;
+            it.remove();
+            dirty = true;
+        }
+    }
+
+    // SHA-256 of the face cells and every setting that changes the result, except the timeout.
+    private static Key key(FaceGrid input, SolverConfig config) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(68)
+                .putInt(SOLVER_VERSION)
+                .putInt(input.width())
+                .putInt(input.height())
+                .putDouble(config.getCostThreshold())
+                .putInt(config.getProfileWidth())
+                .putDouble(config.getLnsShare())
+                .putLong(config.getWorkBudget())
+                .putDouble(config.getGapTolerance())
+                .putInt(config.getBeamWidth())
+                .putInt(config.getRestartUnit())
+                .putLong(config.getSeed())
+                .putInt(config.getTranspositionTableSize());
+        digest.update(header.array());
+        digest.update(config.getAlgorithm().name().getBytes(StandardCharsets.UTF_8));
+        for (byte[] column : input.cells()) {
+            digest.update(column);
+        }
+
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+        return new Key(hash.getLong(), hash.getLong());
+    }
+
+    private static byte[] encode(SolverResult result) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(result.harvestCovered());
+            out.writeDouble(result.upperBound());
+            out.writeBoolean(result.shapesComplete());
+            out.writeLong(result.solveTimeMs());
+            out.writeShort(result.islands().size());
+            for (AbstractFaceSolver.Island island : result.islands()) {
+                out.writeByte(island.material());
+                writeCells(out, island.cells());
+                writeCells(out, island.flyingMachine().stemCells());
+                out.writeInt(island.flyingMachine().stopperCell());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeCells(DataOutputStream out, IntSet cells) throws IOException {
+        out.writeByte(cells.size());
+        for (int key : cells) {
+            out.writeInt(key);
+        }
+    }
+
+    private static SolverResult decode(FaceGrid input, Entry entry) throws IOException {
+        // FaceGrid uses (x, y) where x=row, y=col
+        int rows = input.width();
+        int cols = input.height();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.data()));
+
+        SolverResult.Builder builder = SolverResult.builder(input.width(), input.height(), input.direction())
+                .totalHarvest(input.getHarvestCount())
+                .harvestCovered(in.readInt())
+                .upperBound(in.readDouble())
+                .shapesComplete(in.readBoolean())
+                .solveTimeMs(in.readLong())
+                .stopReason(entry.stopReason())
+                .cached(true);
+        int islandCount = in.readUnsignedShort();
+        for (int i = 0; i < islandCount; i++) {
+            byte material = in.readByte();
+            IntSet cells = readCells(in);
+            IntSet stemCells = readCells(in);
+            int stopperCell = in.readInt();
+
+            AbstractFaceSolver.FlyingMachine flyingMachine = new AbstractFaceSolver.FlyingMachine(stemCells,
+                    AbstractFaceSolver.cellsMask(stemCells, cols), AbstractFaceSolver.neighborsMask(stemCells, rows, cols), stopperCell);
+            for (int key : cells) {
+                builder.setPlacement(AbstractFaceSolver.keyRow(key), AbstractFaceSolver.keyCol(key), material);
+            }
+            builder.addIsland(new AbstractFaceSolver.Island(cells, AbstractFaceSolver.cellsMask(cells, cols), flyingMachine, material));
+        }
+        return builder.build();
+    }
+
+    private static IntSet readCells(DataInputStream in) throws IOException {
+        int size = in.readUnsignedByte();
+        IntSet cells = new IntOpenHashSet(size);
+        for (int i = 0; i < size; i++) {
+            cells.add(in.readInt());
+        }
+        return IntSets.unmodifiable(cells);
+    }
+}
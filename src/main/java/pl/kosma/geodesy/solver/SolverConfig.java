@@ -1,5 +1,10 @@
 package pl.kosma.geodesy.solver;
 
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.util.List;
+import java.util.function.BiFunction;
+
 /**
  * Configuration parameters for the face solver algorithm.
  */
@@ -11,39 +16,224 @@ public class SolverConfig {
     public static final double MIN_COST_THRESHOLD = 1.0;
     // Above 12.0 (max island size), even a fully productive island would be penalized out.
     public static final double MAX_COST_THRESHOLD = 12.0;
+    // 1 runs the backtracking search serially on the calling thread.
+    public static final int DEFAULT_PARALLELISM = 1;
+    public static final Algorithm DEFAULT_ALGORITHM = Algorithm.BACKTRACKING;
+    // Faces (or parts of them) at most this many cells across are solved exactly by ProfileDpFaceSolver. 0 disables it.
+    public static final int DEFAULT_PROFILE_WIDTH = 3;
+    // Share of the time budget kept for the large neighbourhood search after a search that runs out of time. 0 disables it.
+    public static final double DEFAULT_LNS_SHARE = 0.25;
+    public static final double MAX_LNS_SHARE = 0.9;
+    // Entries in the transposition table of each backtracking search, 16 bytes each. 0 disables it.
+    public static final int DEFAULT_TRANSPOSITION_TABLE_SIZE = 1 << 18;
+    // Search steps (backtracking or dancing links calls, SAT conflicts, large neighbourhood search nodes) the solvers
+    // may take, split between the search and the large neighbourhood search like the timeout. 0 means no limit.
+    // Searches stopped by it give the same layout on any machine, as long as the timeout isn't reached first: with a
+    // budget the backtracking search runs serially whatever the parallelism, and portfolio racers run independently.
+    public static final long DEFAULT_WORK_BUDGET = 0;
+    // Backtracking calls per unit of the Luby restart sequence of the backtracking search. 0 disables restarts:
+    // on the faces tried so far, the heuristic order without restarts scores higher and proves more faces optimal.
+    public static final int DEFAULT_RESTART_UNIT = 0;
+    // Share of the upper bound the best layout may still be missing when the search stops, see SolverResult.gap.
+    // 0 searches until the layout is proven optimal.
+    public static final double DEFAULT_GAP_TOLERANCE = 0;
+    public static final double MAX_GAP_TOLERANCE = 0.5;
+    // Seed of every random choice the solvers make, so runs with the same seed and work are reproducible.
+    public static final long DEFAULT_SEED = 0;
+    // Partial layouts the beam search keeps at each target. Its time grows linearly with this and with the face size.
+    public static final int DEFAULT_BEAM_WIDTH = 128;
+    public static final int MAX_BEAM_WIDTH = 1 << 14;
+
+    // Search engine used for each face, or for each independent part of it.
+    public enum Algorithm {
+        BACKTRACKING(BacktrackingFaceSolver::new),
+        SAT(SatFaceSolver::new),
+        DLX(DlxFaceSolver::new),
+        // Not exact, but takes predictable time on faces too large to search
+        BEAM(BeamFaceSolver::new),
+        // All of the above, with different search orders, racing on the same grid
+        PORTFOLIO((grid, config) -> new PortfolioFaceSolver());
+
+        private final BiFunction<FaceGrid, SolverConfig, FaceSolver> factory;
+
+        Algorithm(BiFunction<FaceGrid, SolverConfig, FaceSolver> factory) {
+            this.factory = factory;
+        }
+
+        // Solvers keep per-grid state, so this creates a new one for every grid.
+        // Narrow grids go to the profile DP first, with this algorithm as its fallback.
+        public FaceSolver solver() {
+            return (grid, config) -> {
+                FaceSolver solver = factory.apply(grid, config);
+                if (Math.min(grid.width(), grid.height()) <= config.getProfileWidth()) {
+                    solver = new ProfileDpFaceSolver(grid, config, solver);
+                }
+                return solver.solve(grid, config);
+            };
+        }
+    }
 
     private final long timeoutMs;
+    private final long workBudget;
     private final double costThreshold;
+    private final int parallelism;
+    private final Algorithm algorithm;
+    private final int profileWidth;
+    private final double lnsShare;
+    private final int transpositionTableSize;
+    private final int restartUnit;
+    private final long seed;
+    private final double gapTolerance;
+    private final int beamWidth;
+    private final List<AbstractFaceSolver.Island> fixedIslands;
+    private final IntSet searchArea;
+    private final IncumbentListener incumbentListener;
+    private final CancellationToken cancellation;
 
     private SolverConfig(Builder builder) {
         this.timeoutMs = builder.timeoutMs;
+        this.workBudget = builder.workBudget;
         this.costThreshold = builder.costThreshold;
+        this.parallelism = builder.parallelism;
+        this.algorithm = builder.algorithm;
+        this.profileWidth = builder.profileWidth;
+        this.lnsShare = builder.lnsShare;
+        this.transpositionTableSize = builder.transpositionTableSize;
+        this.restartUnit = builder.restartUnit;
+        this.seed = builder.seed;
+        this.gapTolerance = builder.gapTolerance;
+        this.beamWidth = builder.beamWidth;
+        this.fixedIslands = builder.fixedIslands;
+        this.searchArea = builder.searchArea;
+        this.incumbentListener = builder.incumbentListener;
+        this.cancellation = builder.cancellation;
     }
 
     public long getTimeoutMs() {
         return timeoutMs;
     }
 
+    public long getWorkBudget() {
+        return workBudget;
+    }
+
     public double getCostThreshold() {
         return costThreshold;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getProfileWidth() {
+        return profileWidth;
+    }
+
+    public double getLnsShare() {
+        return lnsShare;
+    }
+
+    public int getTranspositionTableSize() {
+        return transpositionTableSize;
+    }
+
+    public int getRestartUnit() {
+        return restartUnit;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public double getGapTolerance() {
+        return gapTolerance;
+    }
+
+    public int getBeamWidth() {
+        return beamWidth;
+    }
+
+    public List<AbstractFaceSolver.Island> getFixedIslands() {
+        return fixedIslands;
+    }
+
+    public IntSet getSearchArea() {
+        return searchArea;
+    }
+
+    public IncumbentListener getIncumbentListener() {
+        return incumbentListener;
+    }
+
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
+    // Whether the backtracking search runs on one thread whatever the parallelism, see BacktrackingFaceSolver.
+    public boolean isSerialBacktracking() {
+        return workBudget > 0 || restartUnit > 0;
+    }
+
+    // Whether a single face keeps all the parallelism busy. The other searches run on one thread, and only use more
+    // for the independent parts of a face.
+    public boolean isParallelSearch() {
+        return algorithm == Algorithm.PORTFOLIO || algorithm == Algorithm.BACKTRACKING && !isSerialBacktracking();
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
+    public Builder toBuilder() {
+        return new Builder()
+                .timeoutMs(timeoutMs)
+                .workBudget(workBudget)
+                .costThreshold(costThreshold)
+                .parallelism(parallelism)
+                .algorithm(algorithm)
+                .profileWidth(profileWidth)
+                .lnsShare(lnsShare)
+                .transpositionTableSize(transpositionTableSize)
+                .restartUnit(restartUnit)
+                .seed(seed)
+                .gapTolerance(gapTolerance)
+                .beamWidth(beamWidth)
+                .fixedIslands(fixedIslands)
+                .searchArea(searchArea)
+                .incumbentListener(incumbentListener)
+                .cancellation(cancellation);
+    }
+
     public static SolverConfig defaults() {
         return builder().build();
     }
 
     @Override
     public String toString() {
-        return "SolverConfig[timeoutMs=" + timeoutMs + ", costThreshold=" + costThreshold + "]";
+        return "SolverConfig[timeoutMs=" + timeoutMs + ", workBudget=" + workBudget + ", costThreshold=" + costThreshold + ", parallelism=" + parallelism + ", algorithm=" + algorithm + ", profileWidth=" + profileWidth + ", lnsShare=" + lnsShare + ", transpositionTableSize=" + transpositionTableSize + ", restartUnit=" + restartUnit + ", seed=" + seed + ", gapTolerance=" + gapTolerance + ", beamWidth=" + beamWidth + ", fixedIslands=" + fixedIslands.size() + ", searchArea=" + (searchArea == null ? "all" : searchArea.size()) + "]";
     }
 
     public static class Builder {
         private long timeoutMs = DEFAULT_TIMEOUT_MS;
+        private long workBudget = DEFAULT_WORK_BUDGET;
         private double costThreshold = DEFAULT_COST_THRESHOLD;
+        private int parallelism = DEFAULT_PARALLELISM;
+        private Algorithm algorithm = DEFAULT_ALGORITHM;
+        private int profileWidth = DEFAULT_PROFILE_WIDTH;
+        private double lnsShare = DEFAULT_LNS_SHARE;
+        private int transpositionTableSize = DEFAULT_TRANSPOSITION_TABLE_SIZE;
+        private int restartUnit = DEFAULT_RESTART_UNIT;
+        private long seed = DEFAULT_SEED;
+        private double gapTolerance = DEFAULT_GAP_TOLERANCE;
+        private int beamWidth = DEFAULT_BEAM_WIDTH;
+        private List<AbstractFaceSolver.Island> fixedIslands = List.of();
+        private IntSet searchArea = null;
+        private IncumbentListener incumbentListener = IncumbentListener.NONE;
+        private CancellationToken cancellation = new CancellationToken();
 
         private Builder() {}
 
@@ -52,12 +242,96 @@ public class SolverConfig {
             return this;
         }
 
+        // Values below 0 are treated as 0 (no limit).
+        public Builder workBudget(long workBudget) {
+            this.workBudget = Math.max(0, workBudget);
+            return this;
+        }
+
         // Value is clamped to [MIN_COST_THRESHOLD, MAX_COST_THRESHOLD].
         public Builder costThreshold(double costThreshold) {
             this.costThreshold = Math.clamp(costThreshold, MIN_COST_THRESHOLD, MAX_COST_THRESHOLD);
             return this;
         }
 
+        // Number of worker threads used to search a single face. Values below 1 are treated as 1.
+        public Builder parallelism(int parallelism) {
+            this.parallelism = Math.max(1, parallelism);
+            return this;
+        }
+
+        public Builder algorithm(Algorithm algorithm) {
+            this.algorithm = algorithm;
+            return this;
+        }
+
+        // Values below 0 are treated as 0 (never use the profile DP).
+        public Builder profileWidth(int profileWidth) {
+            this.profileWidth = Math.max(0, profileWidth);
+            return this;
+        }
+
+        // Value is clamped to [0, MAX_LNS_SHARE].
+        public Builder lnsShare(double lnsShare) {
+            this.lnsShare = Math.clamp(lnsShare, 0, MAX_LNS_SHARE);
+            return this;
+        }
+
+        // Rounded down to a power of two. Values below 0 are treated as 0 (no transposition table).
+        public Builder transpositionTableSize(int transpositionTableSize) {
+            this.transpositionTableSize = Math.max(0, transpositionTableSize);
+            return this;
+        }
+
+        // Values below 0 are treated as 0 (no restarts).
+        public Builder restartUnit(int restartUnit) {
+            this.restartUnit = Math.max(0, restartUnit);
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        // Branches that can't beat the incumbent by more than this share of their bound are not searched.
+        // Value is clamped to [0, MAX_GAP_TOLERANCE]. Only the backtracking, SAT and beam solvers honor this.
+        public Builder gapTolerance(double gapTolerance) {
+            this.gapTolerance = Math.clamp(gapTolerance, 0, MAX_GAP_TOLERANCE);
+            return this;
+        }
+
+        // Value is clamped to [1, MAX_BEAM_WIDTH]. Only the beam solver uses this.
+        public Builder beamWidth(int beamWidth) {
+            this.beamWidth = Math.clamp(beamWidth, 1, MAX_BEAM_WIDTH);
+            return this;
+        }
+
+        // Islands already placed on the face, kept as they are and part of the result. The solver places new islands
+        // only on the cells around them. Only the backtracking solver honors this.
+        public Builder fixedIslands(List<AbstractFaceSolver.Island> fixedIslands) {
+            this.fixedIslands = List.copyOf(fixedIslands);
+            return this;
+        }
+
+        // Cell keys new islands may cover, or null for the whole face. Only the backtracking solver honors this.
+        public Builder searchArea(IntSet searchArea) {
+            this.searchArea = searchArea;
+            return this;
+        }
+
+        // Receives improved solutions while the solve is still running.
+        public Builder incumbentListener(IncumbentListener incumbentListener) {
+            this.incumbentListener = incumbentListener;
+            return this;
+        }
+
+        // Token the caller can use to stop the solve early.
+        public Builder cancellation(CancellationToken cancellation) {
+            this.cancellation = cancellation;
+            return this;
+        }
+
         public SolverConfig build() {
             return new SolverConfig(this);
         }
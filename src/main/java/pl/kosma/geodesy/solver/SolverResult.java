@@ -9,13 +9,63 @@ import java.util.List;
 /**
  * Represents the result of solving a single face.
  * Contains placement instructions (NONE, SLIME, HONEY) for each cell.
+ *
+ * <p>{@code upperBound} bounds the score of any layout built from the shapes the solvers consider
+ * (harvest covered minus island cost, like the solvers' own score), or is infinite if the solver can't tell.
+ * The solvers only consider up to a limit of shapes per harvest cell; {@code shapesComplete} tells whether
+ * they are every island the face allows (see FaceShapes.complete). Only then does the bound hold for every layout.
  */
 public record SolverResult(int width, int height, Direction direction,
                            byte[][] placements, List<AbstractFaceSolver.Island> islands,
-                           int harvestCovered, int totalHarvest, long solveTimeMs, boolean timedOut) {
+                           int harvestCovered, int totalHarvest, long solveTimeMs, StopReason stopReason, double upperBound, boolean shapesComplete,
+                           boolean cached) {
+
+    /**
+     * Why the search ended. Anything but FINISHED means a better layout may exist.
+     * When results are combined, the later reason in this order wins.
+     */
+    public enum StopReason {
+        FINISHED,
+        // Proven within the gap tolerance of the config, see SolverConfig.Builder.gapTolerance
+        WITHIN_TOLERANCE,
+        // Ran to the end, but left out part of the search on its way (the beam search dropped layouts)
+        TRUNCATED,
+        WORK_BUDGET,
+        TIMEOUT,
+        CANCELLED;
+
+        public StopReason combine(StopReason other) {
+            return compareTo(other) >= 0 ? this : other;
+        }
+    }
 
     private SolverResult(Builder builder) {
-        this(builder.width, builder.height, builder.direction, builder.placements, Collections.unmodifiableList(builder.islands), builder.harvestCovered, builder.totalHarvest, builder.solveTimeMs, builder.timedOut);
+        this(builder.width, builder.height, builder.direction, builder.placements, Collections.unmodifiableList(builder.islands), builder.harvestCovered, builder.totalHarvest, builder.solveTimeMs, builder.stopReason, builder.upperBound, builder.shapesComplete, builder.cached);
+    }
+
+    // Whether the search ran out of time or work, left part of the search out, or was cancelled, before it could prove
+    // the layout good enough.
+    public boolean timedOut() {
+        return timedOut(stopReason);
+    }
+
+    static boolean timedOut(StopReason stopReason) {
+        return stopReason.compareTo(StopReason.WITHIN_TOLERANCE) > 0;
+    }
+
+    public double score(double costThreshold) {
+        return harvestCovered - islands.size() * costThreshold;
+    }
+
+    /**
+     * @return how much better than this layout the best one of the considered shapes may be, as a share of the
+     * upper bound: 0 if none is better, infinite if nothing is known. Only a gap of 0 with shapesComplete set
+     * proves the layout optimal.
+     */
+    public double gap(double costThreshold) {
+        if (upperBound <= 0) return 0;
+        if (upperBound == Double.POSITIVE_INFINITY) return Double.POSITIVE_INFINITY;
+        return Math.max(0, (upperBound - score(costThreshold)) / upperBound);
     }
 
     public byte getPlacement(int x, int y) {
@@ -48,14 +98,28 @@ public record SolverResult(int width, int height, Direction direction,
                 .totalHarvest(input.getHarvestCount())
                 .harvestCovered(0)
                 .solveTimeMs(0)
+                // Optimal if there is nothing to cover
+                .upperBound(input.getHarvestCount() == 0 ? 0 : Double.POSITIVE_INFINITY)
+                .shapesComplete(true)
                 .build();
     }
 
     @Override
     public String toString() {
-        return String.format("SolverResult[%dx%d, direction=%s, coverage=%.1f%% (%d/%d), blocks=%d, time=%dms%s]",
+        return String.format("SolverResult[%dx%d, direction=%s, coverage=%.1f%% (%d/%d), blocks=%d, time=%dms%s%s]",
                 width, height, direction, getCoveragePercent(), harvestCovered, totalHarvest,
-                getBlockCount(), solveTimeMs, timedOut ? ", TIMED OUT" : "");
+                getBlockCount(), solveTimeMs, stopReasonString(), cached ? ", CACHED" : "");
+    }
+
+    private String stopReasonString() {
+        return switch (stopReason) {
+            case FINISHED -> "";
+            case WITHIN_TOLERANCE -> ", WITHIN TOLERANCE";
+            case TRUNCATED -> ", TRUNCATED";
+            case WORK_BUDGET -> ", OUT OF WORK BUDGET";
+            case TIMEOUT -> ", TIMED OUT";
+            case CANCELLED -> ", CANCELLED";
+        };
     }
 
     public static class Builder {
@@ -67,7 +131,10 @@ public record SolverResult(int width, int height, Direction direction,
         private int harvestCovered = 0;
         private int totalHarvest = 0;
         private long solveTimeMs = 0;
-        private boolean timedOut = false;
+        private StopReason stopReason = StopReason.FINISHED;
+        private double upperBound = Double.POSITIVE_INFINITY;
+        private boolean shapesComplete = false;
+        private boolean cached = false;
 
         private Builder(int width, int height, Direction direction) {
             this.width = width;
@@ -101,8 +168,25 @@ public record SolverResult(int width, int height, Direction direction,
             return this;
         }
 
-        public Builder timedOut(boolean timedOut) {
-            this.timedOut = timedOut;
+        public Builder stopReason(StopReason stopReason) {
+            this.stopReason = stopReason;
+            return this;
+        }
+
+        public Builder upperBound(double upperBound) {
+            this.upperBound = upperBound;
+            return this;
+        }
+
+        // Whether the solver considered every island the face allows, see SolverResult.
+        public Builder shapesComplete(boolean shapesComplete) {
+            this.shapesComplete = shapesComplete;
+            return this;
+        }
+
+        // Set on results loaded from a SolutionCache instead of solved.
+        public Builder cached(boolean cached) {
+            this.cached = cached;
             return this;
         }
 
@@ -0,0 +1,193 @@
+package pl.kosma.geodesy.solver;
+
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/*
+ * Buffers of a backtracking search, kept between solves so a solve on the server allocates almost nothing.
+ *
+ * Holds everything sized by the face that a solver only needs while it runs: the sets and queues of the shape
+ * enumeration, the transposition table, the Zobrist keys, and the masks and per-target arrays of the search state.
+ * Nothing a result refers to lives here, so the shapes that are kept and the islands are still allocated per solve.
+ *
+ * Workspaces come in power-of-two size classes of cells. Every solver takes its own one (independent parts and
+ * portfolio racers run at the same time), and at most MAX_POOLED of each class are kept for later solves, as long
+ * as all kept workspaces together take at most MAX_POOLED_BYTES. The transposition tables, by far the largest part,
+ * are pooled on their own by size, up to MAX_POOLED_TABLE_BYTES, and handed to whichever workspace needs one.
+ */
+final class SolverWorkspace {
+
+    private static final int MIN_CELLS = 256;
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors();
+    private static final long MAX_POOLED_BYTES = 16L << 20;
+    // Upper estimate of the arrays sized by the capacity: six long and one double array, and six bit sets.
+    // The shape enumeration buffers come on top, see bytes().
+    private static final int BYTES_PER_CELL = 60;
+    // Room for a few tables of the default size, enough for the racers of a portfolio on most machines
+    private static final long MAX_POOLED_TABLE_BYTES = 32L << 20;
+    private static final long ZOBRIST_SEED = 0x5EEDL;
+
+    // Free workspaces by size class
+    private static final Map<Integer, ArrayDeque<SolverWorkspace>> POOL = new HashMap<>();
+    // Free transposition tables by number of entries
+    private static final Map<Integer, ArrayDeque<TranspositionTable>> TABLES = new HashMap<>();
+    // Estimated size of the workspaces and the tables in the pool, guarded by POOL
+    private static long pooledBytes;
+    private static long pooledTableBytes;
+    // Every workspace draws its depth keys from its own stream split off this one, guarded by POOL
+    private static final SplittableRandom DEPTH_RANDOM = new SplittableRandom(ZOBRIST_SEED);
+
+    private final int capacity;
+    // Zobrist keys per cell, the same for every solve
+    final long[] slimeKeys;
+    final long[] honeyKeys;
+    final long[] stemKeys;
+    final long[] skipKeys;
+    // Keys per search depth, drawn anew for every search order, so entries of earlier searches never match again
+    final long[] depthKeys;
+    private final SplittableRandom depthRandom;
+    // State of the search, see BacktrackingFaceSolver.Search
+    final BitSet slimeMask;
+    final BitSet honeyMask;
+    final BitSet stemMask;
+    final BitSet occupiedMask;
+    final long[] frozenHashes;
+    final double[] openBounds;
+    private TranspositionTable transpositions;
+    // Shape enumeration, see FaceShapes.enumerate
+    final LongOpenHashSet seenShapes = new LongOpenHashSet();
+    final LongOpenHashSet seenLocal = new LongOpenHashSet();
+    final LongArrayFIFOQueue queueHarvest = new LongArrayFIFOQueue();
+    final LongArrayFIFOQueue queueAir = new LongArrayFIFOQueue();
+    final int[] shapeCells = new int[AbstractFaceSolver.MAX_ISLAND_SIZE + 1];
+    final BitSet shapeMask;
+    final BitSet stemNeighborsMask;
+    private int seenShapesPeak;
+    private int seenLocalPeak;
+
+    private SolverWorkspace(int capacity) {
+        this.capacity = capacity;
+        SplittableRandom random = new SplittableRandom(ZOBRIST_SEED);
+        slimeKeys = random.longs(capacity).toArray();
+        honeyKeys = random.longs(capacity).toArray();
+        stemKeys = random.longs(capacity).toArray();
+        skipKeys = random.longs(capacity).toArray();
+        // There are never more targets than cells
+        depthKeys = new long[capacity];
+        synchronized (POOL) {
+            depthRandom = DEPTH_RANDOM.split();
+        }
+        slimeMask = new BitSet(capacity);
+        honeyMask = new BitSet(capacity);
+        stemMask = new BitSet(capacity);
+        occupiedMask = new BitSet(capacity);
+        shapeMask = new BitSet(capacity);
+        stemNeighborsMask = new BitSet(capacity);
+        frozenHashes = new long[capacity];
+        openBounds = new double[capacity + 1];
+    }
+
+    // A workspace for a face of this many cells, to be released when the search is done.
+    static SolverWorkspace acquire(int cells) {
+        int capacity = Math.max(MIN_CELLS, Integer.highestOneBit(Math.max(1, cells - 1)) << 1);
+        synchronized (POOL) {
+            ArrayDeque<SolverWorkspace> free = POOL.get(capacity);
+            if (free != null && !free.isEmpty()) {
+                SolverWorkspace workspace = free.pop();
+                pooledBytes -= workspace.bytes();
+                return workspace;
+            }
+        }
+        return new SolverWorkspace(capacity);
+    }
+
+    void release() {
+        releaseTranspositions();
+        synchronized (POOL) {
+            ArrayDeque<SolverWorkspace> free = POOL.computeIfAbsent(capacity, k -> new ArrayDeque<>());
+            if (free.size() < MAX_POOLED && pooledBytes + bytes() <= MAX_POOLED_BYTES) {
+                free.push(this);
+                pooledBytes += bytes();
+            }
+        }
+    }
+
+    // Records how full the shape enumeration buffers got. Cleared sets and queues keep their arrays, so they take
+    // as much as they ever held.
+    void noteEnumerated() {
+        seenShapesPeak = Math.max(seenShapesPeak, seenShapes.size());
+        seenLocalPeak = Math.max(seenLocalPeak, seenLocal.size());
+    }
+
+    // Upper estimate of the memory this workspace holds. Every queued shape is in seenLocal, so the queues never
+    // hold more than it does.
+    private long bytes() {
+        return (long) capacity * BYTES_PER_CELL
+                + 8L * HashCommon.arraySize(seenShapesPeak, Hash.DEFAULT_LOAD_FACTOR)
+                + 8L * HashCommon.arraySize(seenLocalPeak, Hash.DEFAULT_LOAD_FACTOR)
+                + 2 * 8L * HashCommon.nextPowerOfTwo(seenLocalPeak + 1);
+    }
+
+    // Fresh keys for the first count depths
+    void newDepthKeys(int count) {
+        for (int i = 0; i < count; i++) {
+            depthKeys[i] = depthRandom.nextLong();
+        }
+    }
+
+    /**
+     * A table with room for the given number of entries. It may still hold entries of earlier searches, of this or
+     * any other workspace, which never match again once newDepthKeys has been called, since no two workspaces draw
+     * the same depth keys.
+     */
+    TranspositionTable transpositions(int size) {
+        int entries = Integer.highestOneBit(Math.max(1, size));
+        if (transpositions != null && transpositions.size() == entries) return transpositions;
+
+        releaseTranspositions();
+        synchronized (POOL) {
+            ArrayDeque<TranspositionTable> free = TABLES.get(entries);
+            if (free != null && !free.isEmpty()) {
+                pooledTableBytes -= TranspositionTable.bytes(entries);
+                transpositions = free.pop();
+                return transpositions;
+            }
+        }
+        transpositions = new TranspositionTable(entries);
+        return transpositions;
+    }
+
+    private void releaseTranspositions() {
+        if (transpositions == null) return;
+        long bytes = TranspositionTable.bytes(transpositions.size());
+        synchronized (POOL) {
+            if (pooledTableBytes + bytes <= MAX_POOLED_TABLE_BYTES) {
+                TABLES.computeIfAbsent(transpositions.size(), k -> new ArrayDeque<>()).push(transpositions);
+                pooledTableBytes += bytes;
+            }
+        }
+        transpositions = null;
+    }
+
+    // Resets the search state to the fixed islands of a solve.
+    void reset(BitSet fixedSlimeMask, BitSet fixedHoneyMask, BitSet fixedStemMask) {
+        copy(fixedSlimeMask, slimeMask);
+        copy(fixedHoneyMask, honeyMask);
+        copy(fixedStemMask, stemMask);
+        copy(fixedSlimeMask, occupiedMask);
+        occupiedMask.or(fixedHoneyMask);
+    }
+
+    private static void copy(BitSet from, BitSet to) {
+        to.clear();
+        to.or(from);
+    }
+}
@@ -0,0 +1,53 @@
+package pl.kosma.geodesy.solver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Fixed-size, lock-free table of the best score each search state has been reached with.
+ *
+ * Every slot is two longs: the key XORed with the value, and the value. Threads read and write them without locking;
+ * a torn slot (key and value from different writes) no longer XORs back to its key and reads as a miss.
+ * Slots are always replaced, so the newest states win.
+ */
+final class TranspositionTable {
+
+    private final AtomicLongArray slots;
+    private final int mask;
+
+    /**
+     * @param size number of entries, rounded down to a power of two
+     */
+    TranspositionTable(int size) {
+        int entries = Integer.highestOneBit(Math.max(1, size));
+        slots = new AtomicLongArray(2 * entries);
+        mask = entries - 1;
+    }
+
+    // Number of entries
+    int size() {
+        return slots.length() / 2;
+    }
+
+    // Memory taken by a table with this many entries
+    static long bytes(int size) {
+        return 16L * size;
+    }
+
+    /**
+     * Records that the state was reached with this score.
+     *
+     * @return false if it was already reached with a score at least as high, so it needs no searching again
+     */
+    boolean offer(long key, double score) {
+        int slot = 2 * ((int) (key ^ key >>> 32) & mask);
+        long value = slots.get(slot + 1);
+        if ((slots.get(slot) ^ value) == key && Double.longBitsToDouble(value) >= score) {
+            return false;
+        }
+
+        value = Double.doubleToRawLongBits(score);
+        slots.set(slot, key ^ value);
+        slots.set(slot + 1, value);
+        return true;
+    }
+}